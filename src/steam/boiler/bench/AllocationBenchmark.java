@@ -0,0 +1,138 @@
+package steam.boiler.bench;
+
+import java.lang.management.ManagementFactory;
+
+import steam.boiler.core.BoundedMailbox;
+import steam.boiler.core.SteamBoilerController;
+import steam.boiler.model.PhysicalUnits;
+import steam.boiler.runner.SimulatedBoiler;
+import steam.boiler.util.Mailbox;
+import steam.boiler.util.SteamBoilerCharacteristics;
+
+/**
+ * Measures the number of bytes allocated by a steady-state controller tick. The
+ * controller is first driven into normal mode against the physical units, after
+ * which the last set of incoming messages is replayed repeatedly into the same
+ * outgoing mailbox so that only the controller itself is measured. Finally a whole
+ * transmission cycle of a {@link SimulatedBoiler} is measured, which includes the
+ * physical units transmitting to and receiving from the (bounded) mailboxes.
+ *
+ * <p>Run with <code>java steam.boiler.bench.AllocationBenchmark [pumps] [ticks]</code>.
+ *
+ * @author Harsh
+ *
+ */
+public class AllocationBenchmark {
+
+  /**
+   * Entry point.
+   *
+   * @param args
+   *          Optional number of pumps and number of measured ticks.
+   */
+  public static void main(String[] args) {
+    int pumps = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+    int ticks = args.length > 1 ? Integer.parseInt(args[1]) : 1_000_000;
+    SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+    config = config.setNumberOfPumps(pumps, config.getPumpCapacity(0));
+    for (boolean pooling : new boolean[] { false, true }) {
+      double bytes = bytesPerTick(config, pooling, ticks);
+      System.out.printf("pumps=%d pooling=%b bytes/tick=%.3f%n", pumps, pooling, bytes);
+    }
+    double bytes = bytesPerCycle(config, ticks / 100);
+    System.out.printf("pumps=%d simulated bytes/cycle=%.3f%n", pumps, bytes);
+  }
+
+  /**
+   * Determine the average number of bytes allocated by a single steady-state tick.
+   *
+   * @param config
+   *          The boiler characteristics to use.
+   * @param pooling
+   *          Whether the controller should take its messages from its pool.
+   * @param ticks
+   *          The number of ticks to measure over.
+   * @return The average number of bytes allocated per tick.
+   */
+  public static double bytesPerTick(SteamBoilerCharacteristics config, boolean pooling,
+      int ticks) {
+    SteamBoilerController controller = new SteamBoilerController(config);
+    controller.setMessagePooling(pooling);
+    Mailbox input = warmUp(controller, config);
+    Mailbox output = new BoundedMailbox(4 * config.getNumberOfPumps() + 16);
+    // Let the JIT settle and the mailboxes reach their final size before measuring.
+    for (int i = 0; i != 100_000; ++i) {
+      output.clearAll();
+      controller.clock(input, output);
+    }
+    com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory
+        .getThreadMXBean();
+    long thread = Thread.currentThread().getId();
+    long before = threads.getThreadAllocatedBytes(thread);
+    for (int i = 0; i != ticks; ++i) {
+      output.clearAll();
+      controller.clock(input, output);
+    }
+    long after = threads.getThreadAllocatedBytes(thread);
+    return (double) (after - before) / ticks;
+  }
+
+  /**
+   * Determine the average number of bytes allocated by a simulated boiler over one
+   * transmission period, with message pooling enabled.
+   *
+   * @param config
+   *          The boiler characteristics to use.
+   * @param cycles
+   *          The number of transmission periods to measure over.
+   * @return The average number of bytes allocated per period.
+   */
+  public static double bytesPerCycle(SteamBoilerCharacteristics config, int cycles) {
+    SimulatedBoiler boiler = SimulatedBoiler.waiting(config);
+    boiler.getController().setMessagePooling(true);
+    for (int i = 0; i != 1000; ++i) {
+      boiler.clockPeriod();
+    }
+    com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory
+        .getThreadMXBean();
+    long thread = Thread.currentThread().getId();
+    long before = threads.getThreadAllocatedBytes(thread);
+    for (int i = 0; i != cycles; ++i) {
+      boiler.clockPeriod();
+    }
+    long after = threads.getThreadAllocatedBytes(thread);
+    return (double) (after - before) / cycles;
+  }
+
+  /**
+   * Clock the controller against a set of physical units until it reaches normal
+   * mode.
+   *
+   * @param controller
+   *          The controller to warm up.
+   * @param config
+   *          The boiler characteristics used for the physical units.
+   * @return The last set of messages transmitted by the physical units.
+   */
+  private static Mailbox warmUp(SteamBoilerController controller,
+      SteamBoilerCharacteristics config) {
+    PhysicalUnits physicalUnits = new PhysicalUnits.Template(config).construct();
+    physicalUnits.setMode(PhysicalUnits.Mode.WAITING);
+    Mailbox input = new BoundedMailbox(4 * config.getNumberOfPumps() + 16);
+    Mailbox output = new BoundedMailbox(4 * config.getNumberOfPumps() + 16);
+    for (int time = 0; time < 600_000; time += 100) {
+      physicalUnits.clock(100);
+      if ((time % 5000) == 0) {
+        input.clearAll();
+        output.clearAll();
+        physicalUnits.transmit(input);
+        controller.clock(input, output);
+        physicalUnits.receive(output);
+        if (controller.getMode() == Mailbox.Mode.NORMAL && time >= 60_000) {
+          break;
+        }
+      }
+    }
+    return input;
+  }
+}
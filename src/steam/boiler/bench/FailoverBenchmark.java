@@ -0,0 +1,82 @@
+package steam.boiler.bench;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import steam.boiler.core.StateFile;
+import steam.boiler.core.SteamBoilerController;
+import steam.boiler.runner.SimulatedBoiler;
+import steam.boiler.util.Mailbox;
+import steam.boiler.util.SteamBoilerCharacteristics;
+
+/**
+ * Measures how long it takes to save the state of a controller into a {@link StateFile}
+ * and to restore it, and checks that a controller restored from the file takes over
+ * a running boiler within one transmission cycle. For each pump count a boiler is run
+ * into normal mode while saving its state every cycle, then a new controller is
+ * restored from the file and clocked against the same physical units.
+ *
+ * <p>Run with <code>java steam.boiler.bench.FailoverBenchmark [iterations]</code>.
+ *
+ * @author Harsh
+ *
+ */
+public class FailoverBenchmark {
+
+  /**
+   * Entry point.
+   *
+   * @param args
+   *          Optional number of saves and restores per measurement.
+   * @throws IOException
+   *           If the state file cannot be created.
+   */
+  public static void main(String[] args) throws IOException {
+    int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+    System.out.println("pumps,state_bytes,save_ns,restore_ns,mode_before,mode_after_failover");
+    for (int pumps = 4; pumps <= 1024; pumps *= 4) {
+      SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+      config = config.setNumberOfPumps(pumps, config.getPumpCapacity(0));
+      Path path = Files.createTempFile("controller", ".state");
+      try {
+        run(config, path, iterations);
+      } finally {
+        Files.delete(path);
+      }
+    }
+  }
+
+  private static void run(SteamBoilerCharacteristics config, Path path, int iterations)
+      throws IOException {
+    SimulatedBoiler primary = SimulatedBoiler.waiting(config);
+    SteamBoilerController controller = primary.getController();
+    try (StateFile file = new StateFile(path, controller)) {
+      controller.setStateFile(file);
+      while (primary.getTotalElapsed() < 120_000) {
+        primary.clockPeriod();
+      }
+      controller.setStateFile(null);
+      long start = System.nanoTime();
+      for (int i = 0; i != iterations; ++i) {
+        file.save(controller);
+      }
+      double save = (double) (System.nanoTime() - start) / iterations;
+      // the primary dies here, a standby takes over from the file.
+      SteamBoilerController standby = new SteamBoilerController(config);
+      double restore;
+      try (StateFile recovered = new StateFile(path, standby)) {
+        start = System.nanoTime();
+        for (int i = 0; i != iterations; ++i) {
+          recovered.restore(standby);
+        }
+        restore = (double) (System.nanoTime() - start) / iterations;
+      }
+      SimulatedBoiler takeover = new SimulatedBoiler(standby, primary.getPhysicalUnits());
+      takeover.clockPeriod();
+      Mailbox.Mode before = controller.getMode();
+      System.out.printf("%d,%d,%.0f,%.0f,%s,%s%n", config.getNumberOfPumps(),
+          controller.getStateSize(), save, restore, before, standby.getMode());
+    }
+  }
+}
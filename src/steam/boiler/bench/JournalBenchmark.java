@@ -0,0 +1,97 @@
+package steam.boiler.bench;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+import steam.boiler.core.BoundedMailbox;
+import steam.boiler.journal.JournalReader;
+import steam.boiler.journal.JournalWriter;
+import steam.boiler.runner.SimulatedBoiler;
+import steam.boiler.util.Mailbox;
+import steam.boiler.util.Mailbox.Message;
+import steam.boiler.util.Mailbox.MessageKind;
+import steam.boiler.util.SteamBoilerCharacteristics;
+
+/**
+ * Measures how many messages per second {@link JournalWriter} can append and
+ * {@link JournalReader} can read back. The messages are those of a real boiler: one
+ * transmission cycle of a boiler in normal mode is captured and then journalled over
+ * and over, into segments which are rolled and deleted as they fill up.
+ *
+ * <p>Run with <code>java steam.boiler.bench.JournalBenchmark [messages]</code>.
+ *
+ * @author Harsh
+ *
+ */
+public class JournalBenchmark {
+
+  private static final int SEGMENT_RECORDS = 1 << 20;
+  private static final int MAX_SEGMENTS = 8;
+
+  /**
+   * Entry point.
+   *
+   * @param args
+   *          Optional number of messages to write per measurement.
+   * @throws IOException
+   *           If the journal cannot be written.
+   */
+  public static void main(String[] args) throws IOException {
+    long messages = args.length > 0 ? Long.parseLong(args[0]) : 50_000_000L;
+    SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+    SimulatedBoiler boiler = SimulatedBoiler.waiting(config);
+    while (boiler.getTotalElapsed() < 120_000) {
+      boiler.clockPeriod();
+    }
+    Mailbox input = copy(boiler.getInput());
+    Mailbox output = copy(boiler.getOutput());
+    int perTick = input.size() + output.size();
+    for (int round = 0; round != 3; ++round) {
+      Path directory = Files.createTempDirectory("journal");
+      try {
+        long ticks = messages / perTick;
+        long start = System.nanoTime();
+        try (JournalWriter journal = new JournalWriter(directory, SEGMENT_RECORDS,
+            MAX_SEGMENTS)) {
+          for (int tick = 0; tick != ticks; ++tick) {
+            journal.record(tick, input, output);
+          }
+        }
+        double write = ticks * perTick / ((System.nanoTime() - start) / 1e9);
+        long read = 0;
+        start = System.nanoTime();
+        Message message = new Message(MessageKind.STOP);
+        try (JournalReader reader = new JournalReader(directory)) {
+          while (reader.next()) {
+            reader.getMessage(message);
+            read++;
+          }
+        }
+        double readRate = read / ((System.nanoTime() - start) / 1e9);
+        System.out.printf("write=%.1fM msg/s read=%.1fM msg/s (%d read back)%n", write / 1e6,
+            readRate / 1e6, read);
+      } finally {
+        delete(directory);
+      }
+    }
+  }
+
+  private static Mailbox copy(Mailbox mailbox) {
+    Mailbox result = new BoundedMailbox(mailbox.size());
+    for (int i = 0; i != mailbox.size(); ++i) {
+      result.send(mailbox.read(i));
+    }
+    return result;
+  }
+
+  private static void delete(Path directory) throws IOException {
+    try (Stream<Path> files = Files.list(directory)) {
+      for (Path file : (Iterable<Path>) files::iterator) {
+        Files.delete(file);
+      }
+    }
+    Files.delete(directory);
+  }
+}
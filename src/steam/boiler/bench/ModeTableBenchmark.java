@@ -0,0 +1,207 @@
+package steam.boiler.bench;
+
+import java.util.Random;
+
+import steam.boiler.core.ModeTable;
+import steam.boiler.runner.FaultComponent;
+import steam.boiler.runner.SimulatedBoiler;
+import steam.boiler.util.Mailbox.Mode;
+import steam.boiler.util.SteamBoilerCharacteristics;
+
+/**
+ * Compares the cost of choosing what the controller does on a clock signal using the
+ * {@link ModeTable} against the switch over the mode which it replaced, where each mode
+ * method re-ran its own level and steam checks. Both are fed the same random mix of
+ * modes and readings, and both produce the set of actions to take. Afterwards every
+ * fault model is run for a few minutes and the table is printed with the number of
+ * times each row fired, so that rows which are never exercised stand out.
+ *
+ * <p>Run with <code>java steam.boiler.bench.ModeTableBenchmark [samples]</code>.
+ *
+ * @author Harsh
+ *
+ */
+public class ModeTableBenchmark {
+
+  private static final Mode[] MODES = Mode.values();
+
+  /**
+   * Entry point.
+   *
+   * @param args
+   *          Optional number of decisions per measurement.
+   */
+  public static void main(String[] args) {
+    int samples = args.length > 0 ? Integer.parseInt(args[0]) : 10_000_000;
+    SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+    Random random = new Random(1);
+    int size = 4096;
+    Mode[] modes = new Mode[size];
+    double[] levels = new double[size];
+    double[] steams = new double[size];
+    boolean[] ready = new boolean[size];
+    for (int i = 0; i != size; ++i) {
+      modes[i] = MODES[random.nextInt(MODES.length)];
+      levels[i] = random.nextDouble() * config.getCapacity() * 1.2 - config.getCapacity() * 0.1;
+      steams[i] = random.nextInt(8) == 0 ? -1 : random.nextDouble() * config.getCapacity();
+      ready[i] = random.nextBoolean();
+    }
+    // agreement is checked sample by sample, since disagreements could cancel in a sum.
+    for (int i = 0; i != size; ++i) {
+      int expected = legacy(config, modes[i], levels[i], steams[i], ready[i]);
+      int actual = table(config, modes[i], levels[i], steams[i], ready[i]);
+      if (expected != actual) {
+        throw new IllegalStateException(String.format(
+            "table and switch disagree: mode=%s level=%.2f steam=%.2f ready=%b switch=%s table=%s",
+            modes[i], levels[i], steams[i], ready[i], Integer.toBinaryString(expected),
+            Integer.toBinaryString(actual)));
+      }
+    }
+    // the sums keep the timed loops from being optimised away.
+    long check = 0;
+    double legacy = 0;
+    double table = 0;
+    for (int round = 0; round != 3; ++round) {
+      long start = System.nanoTime();
+      for (int i = 0; i != samples; ++i) {
+        int j = i & (size - 1);
+        check += legacy(config, modes[j], levels[j], steams[j], ready[j]);
+      }
+      legacy = (double) (System.nanoTime() - start) / samples;
+      start = System.nanoTime();
+      for (int i = 0; i != samples; ++i) {
+        int j = i & (size - 1);
+        check -= table(config, modes[j], levels[j], steams[j], ready[j]);
+      }
+      table = (double) (System.nanoTime() - start) / samples;
+    }
+    System.out.printf("switch_ns=%.2f table_ns=%.2f check=%d%n", legacy, table, check);
+    System.out.println();
+    System.out.print(coverage(config));
+  }
+
+  /**
+   * Runs every fault model and returns the exported mode table of the controllers.
+   *
+   * @param config
+   *          The boiler characteristics to use.
+   * @return The table, with the number of times each row fired across all runs.
+   */
+  private static String coverage(SteamBoilerCharacteristics config) {
+    long[] fired = null;
+    String table = null;
+    for (FaultComponent component : FaultComponent.values()) {
+      for (Class<?> model : component.getModels()) {
+        SimulatedBoiler boiler = SimulatedBoiler.waiting(config);
+        component.inject(boiler.getPhysicalUnits(), config, model, 0);
+        for (int time = 0; time < 300_000; time += SimulatedBoiler.TRANSMISSION_PERIOD) {
+          boiler.clockPeriod();
+        }
+        ModeTable modes = boiler.getController().getModeTable();
+        long[] rows = modes.getRowCoverage();
+        if (fired == null) {
+          fired = rows;
+          table = modes.export();
+        } else {
+          for (int row = 0; row != rows.length; ++row) {
+            fired[row] += rows[row];
+          }
+        }
+      }
+    }
+    // replace the fired column of the last table with the totals.
+    StringBuilder result = new StringBuilder();
+    String[] lines = table.split("\n");
+    result.append(lines[0]).append('\n');
+    for (int row = 0; row != fired.length; ++row) {
+      String line = lines[row + 1];
+      result.append(line, 0, line.lastIndexOf(',') + 1).append(fired[row]).append('\n');
+    }
+    return result.toString();
+  }
+
+  /**
+   * The actions of the mode table for a given mode and readings.
+   */
+  private static int table(SteamBoilerCharacteristics config, Mode mode, double level,
+      double steam, boolean ready) {
+    double capacity = config.getCapacity();
+    int guards = 0;
+    if (level < config.getMinimalLimitLevel() || level > config.getMaximalLimitLevel()) {
+      guards |= ModeTable.LEVEL_OUTSIDE_LIMITS;
+    }
+    if (level < 0 || level >= capacity) {
+      guards |= ModeTable.LEVEL_FAILED;
+    }
+    if (steam < 0 || steam >= capacity) {
+      guards |= ModeTable.STEAM_FAILED;
+    }
+    if (steam <= 0 || steam >= capacity) {
+      guards |= ModeTable.STEAM_STOPPED;
+    }
+    if (level < 0 || level > capacity) {
+      guards |= ModeTable.LEVEL_OUTSIDE_TANK;
+    }
+    if (ready) {
+      guards |= ModeTable.READY;
+    }
+    return ModeTable.getActions(ModeTable.cell(mode, guards));
+  }
+
+  /**
+   * The actions taken by the switch over the mode which the table replaced.
+   */
+  private static int legacy(SteamBoilerCharacteristics config, Mode mode, double level,
+      double steam, boolean ready) {
+    double capacity = config.getCapacity();
+    int actions = 0;
+    switch (mode) {
+      case INITIALISATION:
+        if (level < 0 || level > capacity) {
+          actions |= ModeTable.EMERGENCY_STOP;
+        }
+        actions |= ready ? ModeTable.START : ModeTable.WAIT;
+        break;
+      case NORMAL:
+        actions |= waterLevelCheck(config, level);
+        if (level < 0 || level >= capacity) {
+          actions |= ModeTable.LEVEL_FAILURE;
+        }
+        if (steam < 0 || steam >= capacity) {
+          actions |= ModeTable.STEAM_FAILURE;
+        }
+        if ((steam <= 0 || steam >= capacity) && (level < 0 || level >= capacity)) {
+          actions |= ModeTable.EMERGENCY_STOP;
+        }
+        actions |= ModeTable.MAINTAIN_LEVEL;
+        break;
+      case DEGRADED:
+        actions |= waterLevelCheck(config, level);
+        if (level < 0 || level >= capacity) {
+          actions |= ModeTable.LEVEL_FAILURE;
+        }
+        actions |= ModeTable.MAINTAIN_LEVEL;
+        break;
+      case RESCUE:
+        actions |= waterLevelCheck(config, level);
+        if (steam < 0 || steam >= capacity) {
+          actions |= ModeTable.EMERGENCY_STOP;
+        }
+        actions |= ModeTable.MAINTAIN_LEVEL;
+        break;
+      case EMERGENCY_STOP:
+        actions |= ModeTable.EMERGENCY_STOP;
+        break;
+      default:
+        break;
+    }
+    return actions;
+  }
+
+  private static int waterLevelCheck(SteamBoilerCharacteristics config, double level) {
+    if (level < config.getMinimalLimitLevel() || level > config.getMaximalLimitLevel()) {
+      return ModeTable.EMERGENCY_STOP;
+    }
+    return 0;
+  }
+}
@@ -0,0 +1,66 @@
+package steam.boiler.bench;
+
+import java.util.Random;
+
+import steam.boiler.core.PumpSelector;
+import steam.boiler.core.PumpStore;
+
+/**
+ * Measures the time taken by {@link PumpSelector} to choose a set of pumps with mixed
+ * capacities, both when the sorted capacity index is up to date and when a pump has
+ * just broken and the index must be rebuilt. It also reports how far the capacity
+ * chosen is from the inflow asked for.
+ *
+ * <p>Run with <code>java steam.boiler.bench.PumpSelectorBenchmark [iterations]</code>.
+ *
+ * @author Harsh
+ *
+ */
+public class PumpSelectorBenchmark {
+
+  /**
+   * Entry point.
+   *
+   * @param args
+   *          Optional number of selections per measurement.
+   */
+  public static void main(String[] args) {
+    int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+    System.out.println("pumps,select_ns,select_after_break_ns,mean_error");
+    for (int pumps = 16; pumps <= 1024; pumps *= 2) {
+      Random random = new Random(pumps);
+      PumpStore store = new PumpStore(pumps);
+      double total = 0;
+      for (int index = 0; index != pumps; ++index) {
+        double capacity = 1 + random.nextInt(16) / 2.0;
+        store.setCapacity(index, capacity);
+        total += capacity;
+      }
+      PumpSelector selector = new PumpSelector(store);
+      double[] targets = new double[1024];
+      for (int i = 0; i != targets.length; ++i) {
+        targets[i] = random.nextDouble() * total;
+      }
+      // warm up
+      double error = 0;
+      for (int i = 0; i != iterations; ++i) {
+        double target = targets[i & 1023];
+        error += Math.abs(selector.select(target) - target);
+      }
+      long start = System.nanoTime();
+      for (int i = 0; i != iterations; ++i) {
+        selector.select(targets[i & 1023]);
+      }
+      double select = (double) (System.nanoTime() - start) / iterations;
+      int rebuilds = Math.max(1, iterations / 1000);
+      start = System.nanoTime();
+      for (int i = 0; i != rebuilds; ++i) {
+        int index = i % pumps;
+        store.setBroken(index, !store.isBroken(index));
+        selector.select(targets[i & 1023]);
+      }
+      double rebuild = (double) (System.nanoTime() - start) / rebuilds;
+      System.out.printf("%d,%.0f,%.0f,%.3f%n", pumps, select, rebuild, error / iterations);
+    }
+  }
+}
@@ -0,0 +1,85 @@
+package steam.boiler.bench;
+
+import steam.boiler.core.LatencyHistogram;
+import steam.boiler.runner.FaultComponent;
+import steam.boiler.runner.SimulatedBoiler;
+import steam.boiler.util.SteamBoilerCharacteristics;
+
+/**
+ * Measures the throughput and latency of <code>SteamBoilerController.clock()</code>
+ * for every fault model provided by the simulation, over boilers with 1 to 1024
+ * pumps. For each combination a number of fresh boilers are started with the fault
+ * already present and run for a fixed amount of simulated time. Only the time spent
+ * inside the controller is measured; the physical units are clocked in between.
+ *
+ * <p>Run with <code>java steam.boiler.bench.TickBenchmark [component] [maxPumps]
+ * [iterations]</code>, where component is one of the {@link FaultComponent} names or
+ * <code>ALL</code>. Output is one CSV row per combination.
+ *
+ * @author Harsh
+ *
+ */
+public class TickBenchmark {
+
+  private static final int WARMUP_ITERATIONS = 3;
+  private static final int SIMULATED_SECONDS = 300;
+
+  /**
+   * Entry point.
+   *
+   * @param args
+   *          Optional component, maximum number of pumps and number of iterations.
+   */
+  public static void main(String[] args) {
+    String only = args.length > 0 ? args[0] : "ALL";
+    int maxPumps = args.length > 1 ? Integer.parseInt(args[1]) : 1024;
+    int iterations = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+    System.out.println("component,model,pumps,ticks,ticks/s,mean_ns,p50_ns,p99_ns,max_ns");
+    for (FaultComponent component : FaultComponent.values()) {
+      if (!only.equals("ALL") && !only.equals(component.name())) {
+        continue;
+      }
+      for (Class<?> model : component.getModels()) {
+        for (int pumps = 1; pumps <= maxPumps; pumps *= 2) {
+          LatencyHistogram latency = measure(component, model, pumps, iterations);
+          System.out.printf("%s,%s,%d,%d,%.0f,%.0f,%d,%d,%d%n", component,
+              model.getSimpleName(), pumps, latency.getCount(), 1e9 / latency.getMean(),
+              latency.getMean(), latency.getPercentile(50), latency.getPercentile(99),
+              latency.getMax());
+        }
+      }
+    }
+  }
+
+  /**
+   * Measure the controller tick latency for a given fault model.
+   *
+   * @param component
+   *          The component which is faulty.
+   * @param model
+   *          The fault model used for that component.
+   * @param pumps
+   *          The number of pumps in the boiler.
+   * @param iterations
+   *          The number of boilers to measure over.
+   * @return The histogram of tick latencies in nanoseconds.
+   */
+  public static LatencyHistogram measure(FaultComponent component, Class<?> model, int pumps,
+      int iterations) {
+    SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+    config = config.setNumberOfPumps(pumps, config.getPumpCapacity(0));
+    LatencyHistogram latency = new LatencyHistogram();
+    for (int i = 0; i != WARMUP_ITERATIONS + iterations; ++i) {
+      SimulatedBoiler boiler = SimulatedBoiler.waiting(config);
+      component.inject(boiler.getPhysicalUnits(), config, model, 0);
+      for (int time = 0; time < SIMULATED_SECONDS * 1000;
+          time += SimulatedBoiler.TRANSMISSION_PERIOD) {
+        boiler.clockPeriod();
+        if (i >= WARMUP_ITERATIONS) {
+          latency.record(boiler.getLastTickNanos());
+        }
+      }
+    }
+    return latency;
+  }
+}
@@ -0,0 +1,78 @@
+package steam.boiler.bench;
+
+import steam.boiler.runner.SimulatedBoiler;
+import steam.boiler.util.Mailbox;
+import steam.boiler.util.SteamBoilerCharacteristics;
+
+/**
+ * Compares the default water level heuristic of the controller against predictive
+ * control. For each pump count an ideal boiler is run from start up in both modes, and
+ * the following are reported:
+ *
+ * <ul>
+ * <li>settle: the simulated time after which the (true) water level never leaves the
+ * normal range again.</li>
+ * <li>switches: the number of OPEN_PUMP_n and CLOSE_PUMP_n commands sent.</li>
+ * <li>deviation: the mean distance of the water level from the middle of the normal
+ * range, once the controller reaches normal mode.</li>
+ * </ul>
+ *
+ * <p>The last pair of rows is for a boiler with pumps of 2, 3, 5 and 8 litres per second.
+ *
+ * <p>Run with <code>java steam.boiler.bench.WaterLevelBenchmark [seconds]</code>.
+ *
+ * @author Harsh
+ *
+ */
+public class WaterLevelBenchmark {
+
+  /**
+   * Entry point.
+   *
+   * @param args
+   *          Optional amount of simulated time (in seconds) per run.
+   */
+  public static void main(String[] args) {
+    int time = args.length > 0 ? Integer.parseInt(args[0]) : 3600;
+    System.out.println("pumps,mode,settle_s,switches,deviation,final_mode");
+    for (int pumps = 2; pumps <= 8; ++pumps) {
+      SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+      config = config.setNumberOfPumps(pumps, config.getPumpCapacity(0));
+      for (boolean predictive : new boolean[] { false, true }) {
+        run(config, predictive, time);
+      }
+    }
+    // A boiler whose pumps all have different capacities, setNumberOfPumps() leaves the
+    // first pump at its old capacity.
+    SteamBoilerCharacteristics mixed = SteamBoilerCharacteristics.DEFAULT.setNumberOfPumps(4, 2)
+        .setPumpCapacity(0, 2).setPumpCapacity(1, 3).setPumpCapacity(2, 5)
+        .setPumpCapacity(3, 8);
+    for (boolean predictive : new boolean[] { false, true }) {
+      run(mixed, predictive, time);
+    }
+  }
+
+  private static void run(SteamBoilerCharacteristics config, boolean predictive, int time) {
+    SimulatedBoiler boiler = SimulatedBoiler.waiting(config);
+    boiler.getController().setPredictiveControl(predictive);
+    double middle = (config.getMinimalNormalLevel() + config.getMaximalNormalLevel()) / 2;
+    long settle = 0;
+    double deviation = 0;
+    int samples = 0;
+    while (boiler.getTotalElapsed() < time * 1000) {
+      boiler.clockPeriod();
+      double level = boiler.getPhysicalUnits().getBoiler().getWaterLevel();
+      if (level < config.getMinimalNormalLevel() || level > config.getMaximalNormalLevel()) {
+        settle = boiler.getTotalElapsed();
+      }
+      if (boiler.getController().getMode() == Mailbox.Mode.NORMAL) {
+        deviation += Math.abs(level - middle);
+        samples++;
+      }
+    }
+    System.out.printf("%d,%s,%d,%d,%.2f,%s%n", config.getNumberOfPumps(),
+        predictive ? "predictive" : "heuristic", settle / 1000,
+        boiler.getController().getPumpCommandsSent(), samples == 0 ? 0 : deviation / samples,
+        boiler.getController().getMode());
+  }
+}
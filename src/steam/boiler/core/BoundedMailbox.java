@@ -0,0 +1,163 @@
+package steam.boiler.core;
+
+import steam.boiler.util.Mailbox;
+import steam.boiler.util.Mailbox.Message;
+import steam.boiler.util.Mailbox.MessageKind;
+
+/**
+ * A mailbox with a fixed number of preallocated message slots. A message sent to the
+ * mailbox is copied into the next free slot, so the sender may reuse its message
+ * straight away, and read() hands back the slot itself without copying. clearAll()
+ * resets the mailbox in place, hence once constructed the mailbox never allocates.
+ * The messages of each kind are chained together so that looking up a kind does not
+ * have to scan the whole mailbox.
+ * @author Harsh
+ *
+ */
+public class BoundedMailbox implements Mailbox {
+
+  private static final MessageKind[] KINDS = MessageKind.values();
+
+  private final Message[] slots;
+  private final int[] nextOfKind;
+  private final int[] firstOfKind;
+  private final int[] lastOfKind;
+  private final int[] countOfKind;
+  private long kinds;
+  private int size;
+
+  /**
+   * Construct a mailbox which can hold a given number of messages.
+ * @param capacity
+ *    The maximum number of messages held between two calls to clearAll().
+ */
+  public BoundedMailbox(int capacity) {
+    assert capacity >= 0;
+    this.slots = new Message[capacity];
+    for (int index = 0; index < capacity; index++) {
+      this.slots[index] = new Message(MessageKind.STOP);
+    }
+    this.nextOfKind = new int[capacity];
+    this.firstOfKind = new int[KINDS.length];
+    this.lastOfKind = new int[KINDS.length];
+    this.countOfKind = new int[KINDS.length];
+    this.kinds = 0;
+    this.size = 0;
+  }
+
+  @Override
+  public int size() {
+    return this.size;
+  }
+
+  @Override
+  public boolean contains(Message message) {
+    for (int index = indexOf(message.getKind()); index >= 0; index = this.nextOfKind[index]) {
+      if (Messages.same(this.slots[index], message)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  @Override
+  public Message read(int index) {
+    if (index < 0 || index >= this.size) {
+      throw new IndexOutOfBoundsException();
+    }
+    return this.slots[index];
+  }
+
+  /**
+   * Copies a message into the next free slot of this mailbox.
+ * @param message
+ *    The message to send, which is not retained by the mailbox.
+ */
+  @Override
+  public void send(Message message) {
+    if (this.size == this.slots.length) {
+      throw new IllegalStateException("mailbox full (" + this.size + " messages)");
+    }
+    int index = this.size++;
+    Messages.copy(message, this.slots[index]);
+    int kind = message.getKind().ordinal();
+    this.nextOfKind[index] = -1;
+    if ((this.kinds & (1L << kind)) == 0) {
+      this.kinds |= 1L << kind;
+      this.firstOfKind[kind] = index;
+      this.countOfKind[kind] = 0;
+    } else {
+      this.nextOfKind[this.lastOfKind[kind]] = index;
+    }
+    this.lastOfKind[kind] = index;
+    this.countOfKind[kind]++;
+  }
+
+  @Override
+  public void clearAll() {
+    this.kinds = 0;
+    this.size = 0;
+  }
+
+  /**
+   * Whether this mailbox holds any message of a given kind.
+ * @param kind
+ *    The kind of message.
+ * @return
+ *    True if at least one message of this kind has been sent.
+ */
+  public boolean contains(MessageKind kind) {
+    return (this.kinds & (1L << kind.ordinal())) != 0;
+  }
+
+  /**
+   * Returns the position of the first message of a given kind.
+ * @param kind
+ *    The kind of message.
+ * @return
+ *    The position of the message, or -1 if there is none.
+ */
+  public int indexOf(MessageKind kind) {
+    return contains(kind) ? this.firstOfKind[kind.ordinal()] : -1;
+  }
+
+  /**
+   * Returns the position of the next message with the same kind as a given message.
+ * @param index
+ *    The position of a message in this mailbox.
+ * @return
+ *    The position of the next message of the same kind, or -1 if there is none.
+ */
+  public int nextIndexOf(int index) {
+    assert index >= 0 && index < this.size;
+    return this.nextOfKind[index];
+  }
+
+  /**
+   * Returns the number of messages of a given kind.
+ * @param kind
+ *    The kind of message.
+ * @return
+ *    The number of messages of this kind.
+ */
+  public int count(MessageKind kind) {
+    return contains(kind) ? this.countOfKind[kind.ordinal()] : 0;
+  }
+
+  public int getCapacity() {
+    return this.slots.length;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder result = new StringBuilder("[");
+    for (int index = 0; index < this.size; index++) {
+      if (index != 0) {
+        result.append(',');
+      }
+      result.append(this.slots[index]);
+    }
+    return result.append(']').toString();
+  }
+
+}
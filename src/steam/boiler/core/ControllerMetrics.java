@@ -0,0 +1,360 @@
+package steam.boiler.core;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import steam.boiler.util.Mailbox;
+import steam.boiler.util.Mailbox.MessageKind;
+
+/**
+ * Counts what a controller does on every clock signal: how long the tick took, how many
+ * messages of each kind were received and sent, and how many ticks were spent in each
+ * mode. Pump switches and failure detections are the counts of the matching outgoing
+ * messages. A controller records into its own metrics from the thread which clocks it,
+ * while any number of other threads read them, either one value at a time (for example
+ * through JMX) or all at once with {@link #snapshot()}.
+ *
+ * <p>Recording never blocks or allocates. Each counter has a single writer, so counts are
+ * accumulated in plain fields and published with ordered stores at the end of the tick,
+ * rather than with atomic read-modify-write operations. Readers therefore see every
+ * counter as it was at the end of some tick, but different counters may be from
+ * different ticks unless the controller is idle.
+ * @author Harsh
+ *
+ */
+public class ControllerMetrics implements ControllerMetricsMXBean {
+
+  private static final MessageKind[] KINDS = MessageKind.values();
+  private static final Mailbox.Mode[] MODES = Mailbox.Mode.values();
+
+  /**
+   * The time (in seconds) between two clock signals, which is the time spent in a mode
+   * for each tick counted against it.
+   */
+  private static final long TICK_SECONDS = 5;
+
+  private final LatencyHistogram tickNanos = new LatencyHistogram();
+
+  // written by the controller thread only.
+  private final long[] localIn = new long[KINDS.length];
+  private final long[] localOut = new long[KINDS.length];
+  private final long[] localDwell = new long[MODES.length];
+  private long localTicks;
+  private long localTransitions;
+  private Mailbox.Mode lastMode;
+
+  // published copies of the above, for readers.
+  private final AtomicLongArray in = new AtomicLongArray(KINDS.length);
+  private final AtomicLongArray out = new AtomicLongArray(KINDS.length);
+  private final AtomicLongArray dwell = new AtomicLongArray(MODES.length);
+  private final AtomicLongArray totals = new AtomicLongArray(2);
+
+  /**
+   * Record a single tick. This must only be called by the thread which clocks the
+   * controller.
+ * @param incoming
+ *    The messages received on the tick.
+ * @param outgoing
+ *    The messages sent on the tick.
+ * @param mode
+ *    The mode of the controller at the end of the tick.
+ * @param nanos
+ *    The time taken by the tick in nanoseconds.
+ */
+  public void recordTick(Mailbox incoming, Mailbox outgoing, Mailbox.Mode mode, long nanos) {
+    this.tickNanos.record(nanos);
+    long touchedIn = count(incoming, this.localIn);
+    long touchedOut = count(outgoing, this.localOut);
+    publish(touchedIn, this.localIn, this.in);
+    publish(touchedOut, this.localOut, this.out);
+    int m = mode.ordinal();
+    this.dwell.lazySet(m, ++this.localDwell[m]);
+    if (this.lastMode != null && this.lastMode != mode) {
+      this.totals.lazySet(1, ++this.localTransitions);
+    }
+    this.lastMode = mode;
+    this.totals.lazySet(0, ++this.localTicks);
+  }
+
+  /**
+   * Adds the kind of every message in a mailbox to a set of counts.
+ * @return
+ *    The kinds which were seen, one bit per kind.
+ */
+  private static long count(Mailbox mailbox, long[] counts) {
+    long touched = 0;
+    for (int i = 0; i != mailbox.size(); ++i) {
+      int kind = mailbox.read(i).getKind().ordinal();
+      counts[kind]++;
+      touched |= 1L << kind;
+    }
+    return touched;
+  }
+
+  private static void publish(long touched, long[] counts, AtomicLongArray published) {
+    while (touched != 0) {
+      int kind = Long.numberOfTrailingZeros(touched);
+      published.lazySet(kind, counts[kind]);
+      touched &= touched - 1;
+    }
+  }
+
+  @Override
+  public long getTicks() {
+    return this.totals.get(0);
+  }
+
+  @Override
+  public long getModeTransitions() {
+    return this.totals.get(1);
+  }
+
+  @Override
+  public double getTickMeanNanos() {
+    return this.tickNanos.getMean();
+  }
+
+  @Override
+  public long getTickP50Nanos() {
+    return this.tickNanos.getPercentile(50);
+  }
+
+  @Override
+  public long getTickP99Nanos() {
+    return this.tickNanos.getPercentile(99);
+  }
+
+  @Override
+  public long getTickMaxNanos() {
+    return this.tickNanos.getMax();
+  }
+
+  /**
+   * The histogram of tick durations, which readers must not reset.
+ * @return
+ *    The histogram in nanoseconds.
+ */
+  public LatencyHistogram getTickNanos() {
+    return this.tickNanos;
+  }
+
+  /**
+   * The number of messages of a given kind received so far.
+ * @param kind
+ *    The kind of message.
+ * @return
+ *    The number of messages.
+ */
+  public long getReceived(MessageKind kind) {
+    return this.in.get(kind.ordinal());
+  }
+
+  /**
+   * The number of messages of a given kind sent so far.
+ * @param kind
+ *    The kind of message.
+ * @return
+ *    The number of messages.
+ */
+  public long getSent(MessageKind kind) {
+    return this.out.get(kind.ordinal());
+  }
+
+  /**
+   * The number of ticks which ended in a given mode.
+ * @param mode
+ *    The mode.
+ * @return
+ *    The number of ticks.
+ */
+  public long getDwellTicks(Mailbox.Mode mode) {
+    return this.dwell.get(mode.ordinal());
+  }
+
+  @Override
+  public long getPumpSwitches() {
+    return getSent(MessageKind.OPEN_PUMP_n) + getSent(MessageKind.CLOSE_PUMP_n);
+  }
+
+  @Override
+  public long getFailureDetections() {
+    return getSent(MessageKind.PUMP_FAILURE_DETECTION_n)
+        + getSent(MessageKind.PUMP_CONTROL_FAILURE_DETECTION_n)
+        + getSent(MessageKind.LEVEL_FAILURE_DETECTION)
+        + getSent(MessageKind.STEAM_FAILURE_DETECTION);
+  }
+
+  @Override
+  public Map<String, Long> getMessagesReceived() {
+    return byKind(this.in);
+  }
+
+  @Override
+  public Map<String, Long> getMessagesSent() {
+    return byKind(this.out);
+  }
+
+  @Override
+  public Map<String, Long> getModeDwellSeconds() {
+    Map<String, Long> result = new LinkedHashMap<>();
+    for (Mailbox.Mode mode : MODES) {
+      result.put(mode.name(), getDwellTicks(mode) * TICK_SECONDS);
+    }
+    return result;
+  }
+
+  private static Map<String, Long> byKind(AtomicLongArray counts) {
+    Map<String, Long> result = new LinkedHashMap<>();
+    for (MessageKind kind : KINDS) {
+      long count = counts.get(kind.ordinal());
+      if (count != 0) {
+        result.put(kind.name(), count);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Take a copy of every counter, which can then be read at leisure.
+ * @return
+ *    The snapshot.
+ */
+  public Snapshot snapshot() {
+    return new Snapshot(this);
+  }
+
+  /**
+   * Register these metrics with the platform MBean server.
+ * @param name
+ *    The name to register under, for example
+ *    <code>steam.boiler:type=Controller,name=boiler-1</code>.
+ * @return
+ *    The name registered under.
+ * @throws JMException
+ *    If the name is invalid or already registered.
+ */
+  public ObjectName register(String name) throws JMException {
+    ObjectName objectName = new ObjectName(name);
+    ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+    return objectName;
+  }
+
+  /**
+   * An immutable copy of the counters of some metrics.
+   */
+  public static final class Snapshot {
+    private final long ticks;
+    private final long transitions;
+    private final double tickMean;
+    private final long tickP50;
+    private final long tickP99;
+    private final long tickMax;
+    private final Map<MessageKind, Long> received;
+    private final Map<MessageKind, Long> sent;
+    private final Map<Mailbox.Mode, Long> dwellTicks;
+
+    Snapshot(ControllerMetrics metrics) {
+      this.ticks = metrics.getTicks();
+      this.transitions = metrics.getModeTransitions();
+      this.tickMean = metrics.getTickMeanNanos();
+      this.tickP50 = metrics.getTickP50Nanos();
+      this.tickP99 = metrics.getTickP99Nanos();
+      this.tickMax = metrics.getTickMaxNanos();
+      Map<MessageKind, Long> in = new EnumMap<>(MessageKind.class);
+      Map<MessageKind, Long> out = new EnumMap<>(MessageKind.class);
+      for (MessageKind kind : KINDS) {
+        in.put(kind, metrics.getReceived(kind));
+        out.put(kind, metrics.getSent(kind));
+      }
+      Map<Mailbox.Mode, Long> modes = new EnumMap<>(Mailbox.Mode.class);
+      for (Mailbox.Mode mode : MODES) {
+        modes.put(mode, metrics.getDwellTicks(mode));
+      }
+      this.received = Collections.unmodifiableMap(in);
+      this.sent = Collections.unmodifiableMap(out);
+      this.dwellTicks = Collections.unmodifiableMap(modes);
+    }
+
+    public long getTicks() {
+      return this.ticks;
+    }
+
+    public long getModeTransitions() {
+      return this.transitions;
+    }
+
+    public double getTickMeanNanos() {
+      return this.tickMean;
+    }
+
+    public long getTickP50Nanos() {
+      return this.tickP50;
+    }
+
+    public long getTickP99Nanos() {
+      return this.tickP99;
+    }
+
+    public long getTickMaxNanos() {
+      return this.tickMax;
+    }
+
+    public Map<MessageKind, Long> getReceived() {
+      return this.received;
+    }
+
+    public Map<MessageKind, Long> getSent() {
+      return this.sent;
+    }
+
+    public Map<Mailbox.Mode, Long> getDwellTicks() {
+      return this.dwellTicks;
+    }
+
+    public long getPumpSwitches() {
+      return this.sent.get(MessageKind.OPEN_PUMP_n) + this.sent.get(MessageKind.CLOSE_PUMP_n);
+    }
+
+    /**
+     * The number of failure detection messages of every kind which were sent.
+ * @return
+ *    The number of messages.
+ */
+    public long getFailureDetections() {
+      return this.sent.get(MessageKind.PUMP_FAILURE_DETECTION_n)
+          + this.sent.get(MessageKind.PUMP_CONTROL_FAILURE_DETECTION_n)
+          + this.sent.get(MessageKind.LEVEL_FAILURE_DETECTION)
+          + this.sent.get(MessageKind.STEAM_FAILURE_DETECTION);
+    }
+
+    @Override
+    public String toString() {
+      StringBuilder result = new StringBuilder();
+      result.append(String.format(
+          "ticks=%d transitions=%d pump_switches=%d failure_detections=%d%n", this.ticks,
+          this.transitions, getPumpSwitches(), getFailureDetections()));
+      result.append(String.format("tick_ns mean=%.0f p50=%d p99=%d max=%d%n", this.tickMean,
+          this.tickP50, this.tickP99, this.tickMax));
+      for (Map.Entry<Mailbox.Mode, Long> entry : this.dwellTicks.entrySet()) {
+        if (entry.getValue() != 0) {
+          result.append(String.format("  %-15s ticks=%d%n", entry.getKey(),
+              entry.getValue()));
+        }
+      }
+      for (MessageKind kind : KINDS) {
+        if (this.received.get(kind) != 0 || this.sent.get(kind) != 0) {
+          result.append(String.format("  %-40s in=%d out=%d%n", kind, this.received.get(kind),
+              this.sent.get(kind)));
+        }
+      }
+      return result.toString();
+    }
+  }
+}
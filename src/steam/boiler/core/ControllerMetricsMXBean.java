@@ -0,0 +1,69 @@
+package steam.boiler.core;
+
+import java.util.Map;
+
+/**
+ * The view of {@link ControllerMetrics} published through JMX.
+ * @author Harsh
+ *
+ */
+public interface ControllerMetricsMXBean {
+
+  /**
+   * The number of clock signals processed.
+ * @return
+ *    The number of ticks.
+ */
+  long getTicks();
+
+  /**
+   * The number of times the mode at the end of a tick differed from the tick before.
+ * @return
+ *    The number of mode changes.
+ */
+  long getModeTransitions();
+
+  double getTickMeanNanos();
+
+  long getTickP50Nanos();
+
+  long getTickP99Nanos();
+
+  long getTickMaxNanos();
+
+  /**
+   * The number of OPEN_PUMP_n and CLOSE_PUMP_n messages sent.
+ * @return
+ *    The number of pump switches.
+ */
+  long getPumpSwitches();
+
+  /**
+   * The number of failure detection messages sent for pumps, pump controllers and
+   * sensors.
+ * @return
+ *    The number of failure detections.
+ */
+  long getFailureDetections();
+
+  /**
+   * The number of messages received of each kind, leaving out kinds never received.
+ * @return
+ *    The counts keyed by message kind.
+ */
+  Map<String, Long> getMessagesReceived();
+
+  /**
+   * The number of messages sent of each kind, leaving out kinds never sent.
+ * @return
+ *    The counts keyed by message kind.
+ */
+  Map<String, Long> getMessagesSent();
+
+  /**
+   * The simulated time spent in each mode.
+ * @return
+ *    The time in seconds keyed by mode.
+ */
+  Map<String, Long> getModeDwellSeconds();
+}
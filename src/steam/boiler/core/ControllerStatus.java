@@ -0,0 +1,75 @@
+package steam.boiler.core;
+
+import steam.boiler.util.Mailbox;
+
+/**
+ * The state of a controller at the end of one clock signal, as published by
+ * {@link StatusPublisher}. A status never changes once constructed, so it can be
+ * passed between threads and kept for as long as needed.
+ * @author Harsh
+ *
+ */
+public final class ControllerStatus {
+
+  private final long tick;
+  private final Mailbox.Mode mode;
+  private final double waterLevel;
+  private final double steam;
+  private final int openPumps;
+  private final int pumps;
+
+  /**
+   * Construct a status.
+ * @param tick
+ *    The number of clock signals processed, so 1 after the first.
+ * @param mode
+ *    The mode of the controller.
+ * @param waterLevel
+ *    The last water level reported.
+ * @param steam
+ *    The last steam output reported.
+ * @param openPumps
+ *    The number of pumps the controller believes to be open.
+ * @param pumps
+ *    The number of pumps.
+ */
+  public ControllerStatus(long tick, Mailbox.Mode mode, double waterLevel, double steam,
+      int openPumps, int pumps) {
+    this.tick = tick;
+    this.mode = mode;
+    this.waterLevel = waterLevel;
+    this.steam = steam;
+    this.openPumps = openPumps;
+    this.pumps = pumps;
+  }
+
+  public long getTick() {
+    return this.tick;
+  }
+
+  public Mailbox.Mode getMode() {
+    return this.mode;
+  }
+
+  public double getWaterLevel() {
+    return this.waterLevel;
+  }
+
+  public double getSteam() {
+    return this.steam;
+  }
+
+  public int getOpenPumps() {
+    return this.openPumps;
+  }
+
+  public int getPumps() {
+    return this.pumps;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%s level=%.1f steam=%.1f pumps=%d/%d", this.mode, this.waterLevel,
+        this.steam, this.openPumps, this.pumps);
+  }
+}
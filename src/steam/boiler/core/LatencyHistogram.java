@@ -0,0 +1,142 @@
+package steam.boiler.core;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed size, log-linear histogram of non-negative values (typically nanoseconds).
+ * Every power of two is split into 32 linear buckets, giving roughly 3% precision over
+ * the full range of a long. Recording never blocks or allocates, and may be done from
+ * any number of threads at the same time.
+ * @author Harsh
+ *
+ */
+public class LatencyHistogram {
+
+  private static final int SUB_BUCKET_BITS = 5;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+  private final AtomicLong count = new AtomicLong();
+  private final AtomicLong total = new AtomicLong();
+  private final AtomicLong max = new AtomicLong();
+
+  /**
+   * Record a single value, negative values are recorded as zero.
+ * @param value
+ *    The value to record.
+ */
+  public void record(long value) {
+    if (value < 0) {
+      value = 0;
+    }
+    this.counts.incrementAndGet(bucketOf(value));
+    this.count.incrementAndGet();
+    this.total.addAndGet(value);
+    long current = this.max.get();
+    while (value > current && !this.max.compareAndSet(current, value)) {
+      current = this.max.get();
+    }
+  }
+
+  /**
+   * Returns the value below which the given percentage of recorded values fall.
+ * @param percentile
+ *    The percentile between 0 and 100.
+ * @return
+ *    The highest value in the bucket holding the percentile, or 0 if nothing was recorded.
+ */
+  public long getPercentile(double percentile) {
+    assert percentile >= 0 && percentile <= 100;
+    long recorded = this.count.get();
+    if (recorded == 0) {
+      return 0;
+    }
+    long rank = Math.max(1, (long) Math.ceil(recorded * percentile / 100.0));
+    long seen = 0;
+    for (int index = 0; index < BUCKETS; index++) {
+      seen += this.counts.get(index);
+      if (seen >= rank) {
+        return Math.min(highestValueOf(index), getMax());
+      }
+    }
+    return getMax();
+  }
+
+  /**
+   * Adds every value recorded in another histogram to this one.
+ * @param other
+ *    The histogram to add.
+ */
+  public void add(LatencyHistogram other) {
+    for (int index = 0; index < BUCKETS; index++) {
+      long value = other.counts.get(index);
+      if (value != 0) {
+        this.counts.addAndGet(index, value);
+      }
+    }
+    this.count.addAndGet(other.count.get());
+    this.total.addAndGet(other.total.get());
+    long otherMax = other.max.get();
+    long current = this.max.get();
+    while (otherMax > current && !this.max.compareAndSet(current, otherMax)) {
+      current = this.max.get();
+    }
+  }
+
+  /**
+   * Forget every recorded value. This should not be called whilst values are
+   * being recorded.
+   */
+  public void reset() {
+    for (int index = 0; index < BUCKETS; index++) {
+      this.counts.set(index, 0);
+    }
+    this.count.set(0);
+    this.total.set(0);
+    this.max.set(0);
+  }
+
+  public long getCount() {
+    return this.count.get();
+  }
+
+  public long getMax() {
+    return this.max.get();
+  }
+
+  /**
+   * Returns the arithmetic mean of every recorded value.
+ * @return
+ *    The mean, or 0 if nothing was recorded.
+ */
+  public double getMean() {
+    long recorded = this.count.get();
+    return recorded == 0 ? 0 : (double) this.total.get() / recorded;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("count=%d mean=%.0f p50=%d p90=%d p99=%d p99.9=%d max=%d",
+        getCount(), getMean(), getPercentile(50), getPercentile(90), getPercentile(99),
+        getPercentile(99.9), getMax());
+  }
+
+  private static int bucketOf(long value) {
+    if (value < SUB_BUCKETS) {
+      return (int) value;
+    }
+    int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+    return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) - SUB_BUCKETS);
+  }
+
+  private static long highestValueOf(int bucket) {
+    if (bucket < SUB_BUCKETS) {
+      return bucket;
+    }
+    int shift = bucket / SUB_BUCKETS - 1;
+    long lowest = (long) (bucket % SUB_BUCKETS + SUB_BUCKETS) << shift;
+    return lowest + (1L << shift) - 1;
+  }
+}
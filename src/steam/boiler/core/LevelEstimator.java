@@ -0,0 +1,212 @@
+package steam.boiler.core;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Estimates the water level once the level sensor can no longer be trusted, by
+ * integrating the last trusted reading forward with the mass balance of the boiler.
+ * Over each cycle the level rises by the water pumped in and falls by the water
+ * evacuated through the valve and the water boiled off, which is the steam gain learned
+ * by the {@link MassBalanceFilter} times the STEAM_v readings at either end of the
+ * cycle. The estimate comes with an uncertainty which starts at zero and widens on
+ * every cycle it is carried forward:
+ * <ul>
+ * <li>by a fixed amount for the error in the gain and the pump capacities;</li>
+ * <li>by half the capacity of every failed pump whose report disagrees with its
+ * command, since it may be pumping or not, the estimate taking the middle;</li>
+ * <li>by half the maximal steam over a cycle when the steam is not known, the estimate
+ * again taking the middle.</li>
+ * </ul>
+ * Every trusted reading resets the estimate to the reading. Each update takes time
+ * linear in the number of pumps.
+ * @author Harsh
+ *
+ */
+public class LevelEstimator {
+
+  private final double cycleTime;
+  private final double maximalSteam;
+  private final double growth;
+  private boolean primed = false;
+  private boolean estimating = false;
+  private double estimate;
+  private double uncertainty = 0;
+  private double previousSteam = Double.NaN;
+  private int cycles = 0;
+
+  /**
+   * Construct an estimator for a boiler.
+ * @param cycleTime
+ *    The time between two clock signals in seconds.
+ * @param maximalSteamRate
+ *    The maximal steam rate of the boiler in litres per second.
+ * @param growth
+ *    The litres by which the uncertainty widens on every cycle the estimate is carried
+ *    forward, whatever the pumps and steam.
+ */
+  public LevelEstimator(double cycleTime, double maximalSteamRate, double growth) {
+    this.cycleTime = cycleTime;
+    this.maximalSteam = maximalSteamRate * cycleTime;
+    this.growth = growth;
+  }
+
+  /**
+   * Take a trusted level reading, which becomes the estimate.
+ * @param level
+ *    The water level reported.
+ * @param steam
+ *    The steam output reported, or NaN if the steam sensor is not trusted.
+ */
+  public void observe(double level, double steam) {
+    this.estimate = level;
+    this.uncertainty = 0;
+    this.previousSteam = steam;
+    this.primed = true;
+    this.estimating = false;
+    this.cycles = 0;
+  }
+
+  /**
+   * Carry the estimate forward over the cycle which ended with this clock signal,
+   * since the level reading of the clock signal cannot be trusted. Nothing is done
+   * before a first trusted reading.
+ * @param store
+ *    The pumps, holding the states reported on this clock signal and the states they
+ *    were commanded into for the cycle.
+ * @param steam
+ *    The steam output reported, or NaN if the steam sensor is not trusted.
+ * @param gain
+ *    The litres boiled off over a cycle per unit of STEAM_v, or zero if not known.
+ * @param evacuation
+ *    The rate at which the valve was evacuating water, in litres per second.
+ */
+  public void predict(PumpStore store, double steam, double gain, double evacuation) {
+    if (!this.primed) {
+      return;
+    }
+    double inflow = 0;
+    double unsure = 0;
+    for (int index = 0; index < store.size(); index++) {
+      boolean on = store.isOn(index);
+      if (!store.isBroken(index)) {
+        inflow += on ? store.getCapacity(index) : 0;
+      } else if (on == store.isCommandedOpen(index)) {
+        // stuck and misreporting pumps agree with the command when both say the same.
+        inflow += on ? store.getCapacity(index) : 0;
+      } else {
+        unsure += store.getCapacity(index) / 2;
+      }
+    }
+    double boiled;
+    double spread = this.growth + unsure * this.cycleTime;
+    if (gain > 0 && !Double.isNaN(steam) && !Double.isNaN(this.previousSteam)) {
+      boiled = gain * (this.previousSteam + steam) / 2;
+    } else {
+      boiled = this.maximalSteam / 2;
+      spread += this.maximalSteam / 2;
+    }
+    this.estimate += (inflow + unsure - evacuation) * this.cycleTime - boiled;
+    this.uncertainty += spread;
+    this.previousSteam = steam;
+    this.estimating = true;
+    this.cycles++;
+  }
+
+  /**
+   * Forget the estimate, for example when the boiler is not being controlled, so that
+   * nothing is estimated until the next trusted reading.
+   */
+  public void reset() {
+    this.primed = false;
+    this.estimating = false;
+    this.uncertainty = 0;
+    this.previousSteam = Double.NaN;
+    this.cycles = 0;
+  }
+
+  /**
+   * The number of bytes written by write().
+ * @return
+ *    The size of the estimator state in bytes.
+ */
+  public int getStateSize() {
+    return 1 + 3 * 8 + 4;
+  }
+
+  /**
+   * Writes the estimate and how it was reached, so that estimating can carry on from
+   * where it was.
+ * @param buffer
+ *    The buffer written to.
+ */
+  public void write(ByteBuffer buffer) {
+    int flags = 0;
+    flags |= this.primed ? 1 : 0;
+    flags |= this.estimating ? 2 : 0;
+    buffer.put((byte) flags);
+    buffer.putDouble(this.estimate);
+    buffer.putDouble(this.uncertainty);
+    buffer.putDouble(this.previousSteam);
+    buffer.putInt(this.cycles);
+  }
+
+  /**
+   * Reads back the estimator state as written by write().
+ * @param buffer
+ *    The buffer read from.
+ */
+  public void read(ByteBuffer buffer) {
+    int flags = buffer.get();
+    this.primed = (flags & 1) != 0;
+    this.estimating = (flags & 2) != 0;
+    this.estimate = buffer.getDouble();
+    this.uncertainty = buffer.getDouble();
+    this.previousSteam = buffer.getDouble();
+    this.cycles = buffer.getInt();
+  }
+
+  /**
+   * Whether the level is currently being estimated rather than read.
+ * @return
+ *    Whether the estimate was carried forward on the last clock signal.
+ */
+  public boolean isEstimating() {
+    return this.estimating;
+  }
+
+  /**
+   * The estimated water level, which is the last trusted reading when not estimating.
+ * @return
+ *    The level in litres.
+ */
+  public double getEstimate() {
+    return this.estimate;
+  }
+
+  /**
+   * How far the real level may be from the estimate.
+ * @return
+ *    The uncertainty in litres.
+ */
+  public double getUncertainty() {
+    return this.uncertainty;
+  }
+
+  public double getLowerBound() {
+    return this.estimate - this.uncertainty;
+  }
+
+  public double getUpperBound() {
+    return this.estimate + this.uncertainty;
+  }
+
+  /**
+   * The number of cycles the estimate has been carried forward since the last trusted
+   * reading.
+ * @return
+ *    The number of cycles.
+ */
+  public int getCycles() {
+    return this.cycles;
+  }
+}
@@ -0,0 +1,264 @@
+package steam.boiler.core;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Checks the level and steam readings against each other with a mass balance of the
+ * boiler. Over one cycle the water level must change by the water pumped in, less the
+ * water evacuated through the valve, less the water boiled off as steam. STEAM_v says
+ * nothing about its units, so the litres boiled off per unit of STEAM_v over a cycle
+ * (the steam gain) is learned from the cycles whose balance already holds. Each clock
+ * signal then predicts the level from the last one, and the difference between the
+ * reading and the prediction (the residual) shows which sensor cannot be trusted:
+ * <ul>
+ * <li>The level reading is anomalous when the residual is larger than even a wrong
+ * report for every pump could explain, or when the reading has not moved on two clock
+ * signals in a row although the balance says it should have.</li>
+ * <li>The steam reading is anomalous when it is more than the boiler can produce, or
+ * when it jumps by more than the steam rate can change in a cycle while the level
+ * carries on as if it had not moved.</li>
+ * </ul>
+ * Smaller residuals which persist are left alone, since a pump which does not do what
+ * its state says gives the same picture. An anomaly is reported on the clock signal it
+ * is first seen and then latched, as the controller never learns of sensor repairs.
+ * Each update takes constant time and the filter keeps only the last readings.
+ * @author Harsh
+ *
+ */
+public class MassBalanceFilter {
+
+  /**
+   * The level reading is inconsistent with the mass balance.
+   */
+  public static final int LEVEL_ANOMALY = 1;
+
+  /**
+   * The steam reading is inconsistent with the mass balance.
+   */
+  public static final int STEAM_ANOMALY = 1 << 1;
+
+  /**
+   * How quickly the steam gain follows new samples.
+   */
+  private static final double GAIN_WEIGHT = 0.25;
+
+  private final double cycleTime;
+  private final double totalCapacity;
+  private final double maximalSteam;
+  private final double tolerance;
+  private boolean primed = false;
+  private double previousLevel;
+  private double previousSteam;
+  private double gain = 0;
+  private double residual = 0;
+  private boolean residualKnown = false;
+  private int frozenCycles = 0;
+  private boolean levelFailed = false;
+  private boolean steamFailed = false;
+
+  /**
+   * Construct a filter for a boiler.
+ * @param cycleTime
+ *    The time between two clock signals in seconds.
+ * @param totalCapacity
+ *    The combined capacity of all pumps in litres per second.
+ * @param smallestCapacity
+ *    The capacity of the smallest pump in litres per second. Residuals within a
+ *    quarter of what it pumps in a cycle are treated as noise.
+ * @param maximalSteamRate
+ *    The maximal steam rate of the boiler in litres per second.
+ */
+  public MassBalanceFilter(double cycleTime, double totalCapacity, double smallestCapacity,
+      double maximalSteamRate) {
+    this.cycleTime = cycleTime;
+    this.totalCapacity = totalCapacity * cycleTime;
+    this.maximalSteam = maximalSteamRate * cycleTime;
+    this.tolerance = smallestCapacity * cycleTime / 4;
+  }
+
+  /**
+   * Check the readings of one clock signal against those of the last.
+ * @param level
+ *    The water level reported.
+ * @param steam
+ *    The steam output reported, or NaN if the steam sensor is not trusted.
+ * @param inflow
+ *    The combined capacity of the pumps reported open, in litres per second.
+ * @param evacuation
+ *    The rate at which the valve is evacuating water, in litres per second.
+ * @return
+ *    The anomalies first seen on this clock signal, as LEVEL_ANOMALY and STEAM_ANOMALY
+ *    bits.
+ */
+  public int update(double level, double steam, double inflow, double evacuation) {
+    this.residualKnown = false;
+    if (!this.primed || this.levelFailed) {
+      remember(level, steam);
+      return 0;
+    }
+    boolean steamValid = !Double.isNaN(steam) && !Double.isNaN(this.previousSteam);
+    boolean steamKnown = steamValid && this.gain > 0;
+    double change = level - this.previousLevel;
+    double drift = (inflow - evacuation) * this.cycleTime;
+    double boiled = steamKnown ? this.gain * (this.previousSteam + steam) / 2 : 0;
+    this.residual = change - (drift - boiled);
+    int anomalies = 0;
+    if (steamKnown && !this.steamFailed && isSteamAnomaly(steam, change, drift)) {
+      anomalies |= STEAM_ANOMALY;
+      this.steamFailed = true;
+      steamKnown = false;
+      // judge the level as if the steam had not changed.
+      this.residual = change - (drift - this.gain * this.previousSteam);
+    }
+    double bound = this.totalCapacity + this.tolerance;
+    if (!steamKnown) {
+      bound += this.maximalSteam;
+    }
+    // a level which happens to balance a faulty pump for one cycle may not move either.
+    boolean frozen = change == 0 && steamKnown && Math.abs(drift - boiled) > this.tolerance;
+    this.frozenCycles = frozen ? this.frozenCycles + 1 : 0;
+    if (Math.abs(this.residual) > bound || this.frozenCycles > 1) {
+      anomalies |= LEVEL_ANOMALY;
+      this.levelFailed = true;
+    } else if (steamValid && anomalies == 0 && steam > 0 && this.previousSteam > 0
+        && (this.gain == 0 || Math.abs(this.residual) <= this.tolerance)) {
+      learn(drift - change, (this.previousSteam + steam) / 2);
+    }
+    this.residualKnown = steamKnown && anomalies == 0;
+    remember(level, this.steamFailed ? Double.NaN : steam);
+    return anomalies;
+  }
+
+  /**
+   * A steam reading is anomalous if the steam rate it implies is more than the boiler
+   * can produce, or if it moved by more than a quarter of the maximal steam rate while
+   * the level followed the steam of the last cycle instead.
+   */
+  private boolean isSteamAnomaly(double steam, double change, double drift) {
+    if (this.gain * steam > this.maximalSteam * 1.25) {
+      return true;
+    }
+    if (this.gain * Math.abs(steam - this.previousSteam) <= this.maximalSteam / 4) {
+      return false;
+    }
+    double unchanged = change - (drift - this.gain * this.previousSteam);
+    return Math.abs(unchanged) < Math.abs(this.residual);
+  }
+
+  private void learn(double boiled, double steam) {
+    double sample = boiled / steam;
+    if (sample <= 0) {
+      return;
+    }
+    this.gain = this.gain == 0 ? sample : this.gain + (sample - this.gain) * GAIN_WEIGHT;
+  }
+
+  private void remember(double level, double steam) {
+    this.previousLevel = level;
+    this.previousSteam = steam;
+    this.primed = true;
+  }
+
+  /**
+   * Forget the last readings, for example when the pumps are not reported or the
+   * level is not being controlled, so that the next update only primes the filter.
+   * The steam gain and latched anomalies are kept.
+   */
+  public void reset() {
+    this.primed = false;
+    this.residual = 0;
+    this.residualKnown = false;
+    this.frozenCycles = 0;
+  }
+
+  /**
+   * The number of bytes written by write().
+ * @return
+ *    The size of the filter state in bytes.
+ */
+  public int getStateSize() {
+    return 1 + 3 * 8 + 4;
+  }
+
+  /**
+   * Writes the last readings, the steam gain learned and the latched anomalies, but not
+   * the residual, which the next update works out again.
+ * @param buffer
+ *    The buffer written to.
+ */
+  public void write(ByteBuffer buffer) {
+    int flags = 0;
+    flags |= this.primed ? 1 : 0;
+    flags |= this.levelFailed ? 2 : 0;
+    flags |= this.steamFailed ? 4 : 0;
+    buffer.put((byte) flags);
+    buffer.putDouble(this.previousLevel);
+    buffer.putDouble(this.previousSteam);
+    buffer.putDouble(this.gain);
+    buffer.putInt(this.frozenCycles);
+  }
+
+  /**
+   * Reads back the filter state as written by write().
+ * @param buffer
+ *    The buffer read from.
+ */
+  public void read(ByteBuffer buffer) {
+    int flags = buffer.get();
+    this.primed = (flags & 1) != 0;
+    this.levelFailed = (flags & 2) != 0;
+    this.steamFailed = (flags & 4) != 0;
+    this.previousLevel = buffer.getDouble();
+    this.previousSteam = buffer.getDouble();
+    this.gain = buffer.getDouble();
+    this.frozenCycles = buffer.getInt();
+    this.residual = 0;
+    this.residualKnown = false;
+  }
+
+  /**
+   * The steam gain learned so far, which is first known once steam is being produced.
+ * @return
+ *    The litres boiled off over a cycle per unit of STEAM_v, or zero if not known yet.
+ */
+  public double getSteamGain() {
+    return this.gain;
+  }
+
+  /**
+   * The difference between the last level reading and the level the mass balance
+   * predicted for it.
+ * @return
+ *    The residual in litres.
+ */
+  public double getResidual() {
+    return this.residual;
+  }
+
+  /**
+   * Whether the last residual was worked out from trusted level and steam readings
+   * with a known steam gain, so that what remains of it is down to the pumps.
+ * @return
+ *    Whether the residual can be used.
+ */
+  public boolean isResidualKnown() {
+    return this.residualKnown;
+  }
+
+  /**
+   * The largest residual which is treated as noise.
+ * @return
+ *    The tolerance in litres.
+ */
+  public double getTolerance() {
+    return this.tolerance;
+  }
+
+  public boolean isLevelFailed() {
+    return this.levelFailed;
+  }
+
+  public boolean isSteamFailed() {
+    return this.steamFailed;
+  }
+}
@@ -0,0 +1,86 @@
+package steam.boiler.core;
+
+import steam.boiler.util.Mailbox;
+import steam.boiler.util.Mailbox.Message;
+import steam.boiler.util.Mailbox.MessageKind;
+
+/**
+ * A fixed set of preallocated messages which the controller hands out instead of
+ * creating a new Message for every command it sends. The pool is recycled at the
+ * start of every clock cycle, hence a message taken from it is only valid until
+ * the next call to clock().
+ * @author Harsh
+ *
+ */
+public class MessagePool {
+
+  private final Message[] messages;
+  private int next;
+  private long overflows;
+
+  /**
+   * Construct a pool holding a given number of messages.
+ * @param capacity
+ *    The number of messages which can be handed out per clock cycle without
+ *    allocating.
+ */
+  public MessagePool(int capacity) {
+    assert capacity >= 0;
+    this.messages = new Message[capacity];
+    for (int index = 0; index < capacity; index++) {
+      this.messages[index] = new Message(MessageKind.STOP);
+    }
+    this.next = 0;
+    this.overflows = 0;
+  }
+
+  /**
+   * Make every message in the pool available again.
+   */
+  public void recycle() {
+    this.next = 0;
+  }
+
+  public Message acquire(MessageKind kind) {
+    return take().set(kind);
+  }
+
+  public Message acquire(MessageKind kind, Mailbox.Mode mode) {
+    return take().set(kind, mode);
+  }
+
+  public Message acquire(MessageKind kind, int parameter) {
+    return take().set(kind, parameter);
+  }
+
+  /**
+   * Returns the next free message, if the pool is exhausted a new message is
+   * allocated so that the caller never has to deal with a full pool. A reused message
+   * is cleared first, as setting it only overwrites the parameters of its new kind and
+   * would otherwise leave those of its last use behind for equals() to see.
+ * @return
+ *    A message whose contents will be overwritten by the caller.
+ */
+  private Message take() {
+    if (this.next < this.messages.length) {
+      return Messages.clear(this.messages[this.next++]);
+    }
+    this.overflows++;
+    return new Message(MessageKind.STOP);
+  }
+
+  //----Getters-------
+
+  public int getCapacity() {
+    return this.messages.length;
+  }
+
+  public int getUsed() {
+    return this.next;
+  }
+
+  public long getOverflows() {
+    return this.overflows;
+  }
+
+}
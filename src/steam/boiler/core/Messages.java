@@ -0,0 +1,163 @@
+package steam.boiler.core;
+
+import steam.boiler.util.Mailbox;
+import steam.boiler.util.Mailbox.Message;
+import steam.boiler.util.Mailbox.MessageKind;
+
+/**
+ * Knows which parameter each kind of message carries, so that messages can be
+ * copied, encoded and decoded without asking a message for a parameter it does not
+ * have (which Message rejects).
+ * @author Harsh
+ *
+ */
+public final class Messages {
+
+  /**
+   * The message has no parameter.
+   */
+  public static final int NONE = 0;
+
+  /**
+   * The message has a mode parameter.
+   */
+  public static final int MODE = 1;
+
+  /**
+   * The message has an integer parameter.
+   */
+  public static final int INTEGER = 2;
+
+  /**
+   * The message has a double parameter.
+   */
+  public static final int DOUBLE = 3;
+
+  /**
+   * The message has an integer and a boolean parameter.
+   */
+  public static final int INTEGER_BOOLEAN = 4;
+
+  private static final int[] SHAPES = new int[MessageKind.values().length];
+
+  static {
+    for (MessageKind kind : MessageKind.values()) {
+      SHAPES[kind.ordinal()] = computeShape(kind);
+    }
+  }
+
+  private Messages() {
+  }
+
+  /**
+   * Returns the parameters carried by a given kind of message.
+ * @param kind
+ *    The kind of message.
+ * @return
+ *    One of NONE, MODE, INTEGER, DOUBLE or INTEGER_BOOLEAN.
+ */
+  public static int shape(MessageKind kind) {
+    return SHAPES[kind.ordinal()];
+  }
+
+  /**
+   * Copies the kind and parameters of one message into another. The parameters the kind
+   * does not carry are cleared, so the copy equals the message copied.
+ * @param from
+ *    The message to copy.
+ * @param to
+ *    The message overwritten.
+ * @return
+ *    The message overwritten.
+ */
+  public static Message copy(Message from, Message to) {
+    MessageKind kind = from.getKind();
+    clear(to);
+    switch (shape(kind)) {
+      case MODE:
+        return to.set(kind, from.getModeParameter());
+      case INTEGER:
+        return to.set(kind, from.getIntegerParameter());
+      case DOUBLE:
+        return to.set(kind, from.getDoubleParameter());
+      case INTEGER_BOOLEAN:
+        return to.set(kind, from.getIntegerParameter(), from.getBooleanParameter());
+      default:
+        return to.set(kind);
+    }
+  }
+
+  /**
+   * Whether two messages have the same kind and the same values for the parameters
+   * that kind carries. Unlike Message.equals() this ignores the parameters left behind
+   * in a reused message by a kind it was set to before.
+ * @param first
+ *    A message.
+ * @param second
+ *    Another message.
+ * @return
+ *    True if the two messages say the same thing.
+ */
+  public static boolean same(Message first, Message second) {
+    MessageKind kind = first.getKind();
+    if (kind != second.getKind()) {
+      return false;
+    }
+    switch (shape(kind)) {
+      case MODE:
+        return first.getModeParameter() == second.getModeParameter();
+      case INTEGER:
+        return first.getIntegerParameter() == second.getIntegerParameter();
+      case DOUBLE:
+        return first.getDoubleParameter() == second.getDoubleParameter();
+      case INTEGER_BOOLEAN:
+        return first.getIntegerParameter() == second.getIntegerParameter()
+            && first.getBooleanParameter() == second.getBooleanParameter();
+      default:
+        return true;
+    }
+  }
+
+  /**
+   * Resets every parameter of a message, so that a reused message equals a new one of
+   * the same kind and parameters once set. Message.set() only overwrites the
+   * parameters of the kind it is given.
+ * @param message
+ *    The message reset, which is left as a STOP message.
+ * @return
+ *    The message reset.
+ */
+  public static Message clear(Message message) {
+    message.set(MessageKind.MODE_m, (Mailbox.Mode) null);
+    message.set(MessageKind.LEVEL_v, 0.0);
+    message.set(MessageKind.PUMP_STATE_n_b, 0, false);
+    return message.set(MessageKind.STOP);
+  }
+
+  private static int computeShape(MessageKind kind) {
+    switch (kind) {
+      case MODE_m:
+        return MODE;
+      case OPEN_PUMP_n:
+      case CLOSE_PUMP_n:
+      case PUMP_FAILURE_DETECTION_n:
+      case PUMP_CONTROL_FAILURE_DETECTION_n:
+      case PUMP_REPAIRED_ACKNOWLEDGEMENT_n:
+      case PUMP_CONTROL_REPAIRED_ACKNOWLEDGEMENT_n:
+      case PUMP_REPAIRED_n:
+      case PUMP_CONTROL_REPAIRED_n:
+      case PUMP_FAILURE_ACKNOWLEDGEMENT_n:
+      case PUMP_CONTROL_FAILURE_ACKNOWLEDGEMENT_n:
+        return INTEGER;
+      case LEVEL_v:
+      case STEAM_v:
+        return DOUBLE;
+      case PUMP_STATE_n_b:
+      case PUMP_CONTROL_STATE_n_b:
+        return INTEGER_BOOLEAN;
+      default:
+        return NONE;
+    }
+  }
+
+}
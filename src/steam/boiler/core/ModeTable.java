@@ -0,0 +1,312 @@
+package steam.boiler.core;
+
+import steam.boiler.util.Mailbox.Mode;
+
+/**
+ * The mode state machine of the controller as an explicit table. Every row says which
+ * action is taken in a given mode when a combination of guards holds, and optionally
+ * the mode the controller moves to. The guards are evaluated once per clock signal
+ * into a bit set, and the rows are compiled in advance into a lookup over every
+ * (mode, guards) pair, so choosing what to do on a clock signal is a single array
+ * access. When several rows with a target fire, the first of them in the table wins.
+ * The table can be exported as text, together with the number of times each row
+ * fired, so that it can be checked which transitions have been exercised.
+ * @author Harsh
+ *
+ */
+public class ModeTable {
+
+  //----Guards-------
+
+  /**
+   * The water level is below M1 or above M2. Once the level sensor has failed this is
+   * the estimated level, which also counts as outside once it is too uncertain to tell.
+   */
+  public static final int LEVEL_OUTSIDE_LIMITS = 1;
+
+  /**
+   * The water level reading is negative or at least the capacity of the boiler, or
+   * the mass balance filter found it anomalous.
+   */
+  public static final int LEVEL_FAILED = 1 << 1;
+
+  /**
+   * The steam reading is negative or at least the capacity of the boiler, or the mass
+   * balance filter found it anomalous.
+   */
+  public static final int STEAM_FAILED = 1 << 2;
+
+  /**
+   * The steam reading is not positive or at least the capacity of the boiler.
+   */
+  public static final int STEAM_STOPPED = 1 << 3;
+
+  /**
+   * The water level reading is negative or above the capacity of the boiler.
+   */
+  public static final int LEVEL_OUTSIDE_TANK = 1 << 4;
+
+  /**
+   * The physical units have said they are ready.
+   */
+  public static final int READY = 1 << 5;
+
+  /**
+   * A pump or pump controller was found to have failed on this clock signal.
+   */
+  public static final int PUMP_FAILED = 1 << 6;
+
+  /**
+   * The number of guards.
+   */
+  public static final int GUARDS = 7;
+
+  //----Actions, performed in this order-------
+
+  /**
+   * Send MODE_m(EMERGENCY_STOP).
+   */
+  public static final int EMERGENCY_STOP = 1;
+
+  /**
+   * Send LEVEL_FAILURE_DETECTION and MODE_m(RESCUE).
+   */
+  public static final int LEVEL_FAILURE = 1 << 1;
+
+  /**
+   * Send STEAM_FAILURE_DETECTION and MODE_m(DEGRADED).
+   */
+  public static final int STEAM_FAILURE = 1 << 2;
+
+  /**
+   * Send PUMP_FAILURE_DETECTION_n and PUMP_CONTROL_FAILURE_DETECTION_n for what failed,
+   * and MODE_m of the mode moved to.
+   */
+  public static final int PUMP_FAILURE = 1 << 3;
+
+  /**
+   * Close the valve if it is open and send MODE_m(NORMAL).
+   */
+  public static final int START = 1 << 4;
+
+  /**
+   * Send MODE_m(INITIALISATION).
+   */
+  public static final int WAIT = 1 << 5;
+
+  /**
+   * Keep the water level between N1 and N2.
+   */
+  public static final int MAINTAIN_LEVEL = 1 << 6;
+
+  /**
+   * The number of actions.
+   */
+  public static final int ACTIONS = 7;
+
+  private static final String[] GUARD_NAMES = { "LEVEL_OUTSIDE_LIMITS", "LEVEL_FAILED",
+      "STEAM_FAILED", "STEAM_STOPPED", "LEVEL_OUTSIDE_TANK", "READY", "PUMP_FAILED" };
+
+  private static final String[] ACTION_NAMES = { "EMERGENCY_STOP", "LEVEL_FAILURE",
+      "STEAM_FAILURE", "PUMP_FAILURE", "START", "WAIT", "MAINTAIN_LEVEL" };
+
+  private static final Mode[] MODES = Mode.values();
+
+  private static final Row[] ROWS = {
+    new Row(Mode.INITIALISATION, LEVEL_OUTSIDE_TANK, LEVEL_OUTSIDE_TANK, EMERGENCY_STOP,
+        Mode.EMERGENCY_STOP),
+    new Row(Mode.INITIALISATION, READY, READY, START, Mode.NORMAL),
+    new Row(Mode.INITIALISATION, READY, 0, WAIT, null),
+    new Row(Mode.NORMAL, LEVEL_OUTSIDE_LIMITS, LEVEL_OUTSIDE_LIMITS, EMERGENCY_STOP,
+        Mode.EMERGENCY_STOP),
+    new Row(Mode.NORMAL, STEAM_STOPPED | LEVEL_FAILED, STEAM_STOPPED | LEVEL_FAILED,
+        EMERGENCY_STOP, Mode.EMERGENCY_STOP),
+    new Row(Mode.NORMAL, LEVEL_FAILED, LEVEL_FAILED, LEVEL_FAILURE, Mode.RESCUE),
+    new Row(Mode.NORMAL, STEAM_FAILED, STEAM_FAILED, STEAM_FAILURE, Mode.DEGRADED),
+    new Row(Mode.NORMAL, PUMP_FAILED, PUMP_FAILED, PUMP_FAILURE, Mode.DEGRADED),
+    new Row(Mode.NORMAL, 0, 0, MAINTAIN_LEVEL, null),
+    new Row(Mode.DEGRADED, LEVEL_OUTSIDE_LIMITS, LEVEL_OUTSIDE_LIMITS, EMERGENCY_STOP,
+        Mode.EMERGENCY_STOP),
+    new Row(Mode.DEGRADED, LEVEL_FAILED, LEVEL_FAILED, LEVEL_FAILURE, Mode.RESCUE),
+    new Row(Mode.DEGRADED, PUMP_FAILED, PUMP_FAILED, PUMP_FAILURE, null),
+    new Row(Mode.DEGRADED, 0, 0, MAINTAIN_LEVEL, null),
+    new Row(Mode.RESCUE, LEVEL_OUTSIDE_LIMITS, LEVEL_OUTSIDE_LIMITS, EMERGENCY_STOP,
+        Mode.EMERGENCY_STOP),
+    new Row(Mode.RESCUE, STEAM_FAILED, STEAM_FAILED, EMERGENCY_STOP, Mode.EMERGENCY_STOP),
+    new Row(Mode.RESCUE, PUMP_FAILED, PUMP_FAILED, PUMP_FAILURE, null),
+    new Row(Mode.RESCUE, 0, 0, MAINTAIN_LEVEL, null),
+    new Row(Mode.EMERGENCY_STOP, 0, 0, EMERGENCY_STOP, null),
+  };
+
+  private static final int CELLS = MODES.length << GUARDS;
+  private static final int[] ACTION_TABLE = new int[CELLS];
+  private static final Mode[] TARGET_TABLE = new Mode[CELLS];
+  private static final long[] ROW_TABLE = new long[CELLS];
+
+  static {
+    assert ROWS.length <= 64;
+    for (int cell = 0; cell < CELLS; cell++) {
+      Mode mode = MODES[cell >>> GUARDS];
+      int guards = cell & ((1 << GUARDS) - 1);
+      TARGET_TABLE[cell] = mode;
+      boolean moved = false;
+      for (int row = 0; row < ROWS.length; row++) {
+        if (ROWS[row].fires(mode, guards)) {
+          ACTION_TABLE[cell] |= ROWS[row].action;
+          ROW_TABLE[cell] |= 1L << row;
+          if (!moved && ROWS[row].target != null) {
+            TARGET_TABLE[cell] = ROWS[row].target;
+            moved = true;
+          }
+        }
+      }
+    }
+  }
+
+  private final long[] hits = new long[CELLS];
+
+  /**
+   * Looks up what to do in a given mode when a given set of guards holds, and counts
+   * the lookup towards the coverage of the table.
+ * @param mode
+ *    The current mode.
+ * @param guards
+ *    The guards which hold, one bit per guard.
+ * @return
+ *    The cell of the table to pass to getActions() and getTarget().
+ */
+  public int lookup(Mode mode, int guards) {
+    int cell = cell(mode, guards);
+    this.hits[cell]++;
+    return cell;
+  }
+
+  /**
+   * The cell of the table for a given mode and set of guards.
+ * @param mode
+ *    The current mode.
+ * @param guards
+ *    The guards which hold, one bit per guard.
+ * @return
+ *    The cell of the table.
+ */
+  public static int cell(Mode mode, int guards) {
+    assert guards >= 0 && guards < (1 << GUARDS);
+    return (mode.ordinal() << GUARDS) | guards;
+  }
+
+  /**
+   * The actions to take for a cell of the table.
+ * @param cell
+ *    The cell of the table.
+ * @return
+ *    The actions, one bit per action.
+ */
+  public static int getActions(int cell) {
+    return ACTION_TABLE[cell];
+  }
+
+  /**
+   * The mode to move to for a cell of the table.
+ * @param cell
+ *    The cell of the table.
+ * @return
+ *    The next mode, which is the current mode if no transition fires.
+ */
+  public static Mode getTarget(int cell) {
+    return TARGET_TABLE[cell];
+  }
+
+  /**
+   * The number of times each row of the table has fired.
+ * @return
+ *    The count for each row, in table order.
+ */
+  public long[] getRowCoverage() {
+    long[] coverage = new long[ROWS.length];
+    for (int cell = 0; cell < CELLS; cell++) {
+      if (this.hits[cell] == 0) {
+        continue;
+      }
+      for (int row = 0; row < ROWS.length; row++) {
+        if ((ROW_TABLE[cell] & (1L << row)) != 0) {
+          coverage[row] += this.hits[cell];
+        }
+      }
+    }
+    return coverage;
+  }
+
+  /**
+   * Clears the number of times each row has fired.
+   */
+  public void resetCoverage() {
+    for (int cell = 0; cell < CELLS; cell++) {
+      this.hits[cell] = 0;
+    }
+  }
+
+  /**
+   * Exports the table as text, one row per line in the form
+   * <code>mode,guards,action,target,fired</code>.
+ * @return
+ *    The table, including how often each row has fired.
+ */
+  public String export() {
+    long[] coverage = getRowCoverage();
+    StringBuilder result = new StringBuilder("mode,guards,action,target,fired\n");
+    for (int row = 0; row < ROWS.length; row++) {
+      Row r = ROWS[row];
+      result.append(r.mode).append(',');
+      result.append(names(GUARD_NAMES, r.mask, r.value)).append(',');
+      result.append(names(ACTION_NAMES, r.action, r.action)).append(',');
+      result.append(r.target == null ? "-" : r.target.toString()).append(',');
+      result.append(coverage[row]).append('\n');
+    }
+    return result.toString();
+  }
+
+  private static String names(String[] names, int mask, int value) {
+    if (mask == 0) {
+      return "*";
+    }
+    StringBuilder result = new StringBuilder();
+    for (int bit = 0; bit < names.length; bit++) {
+      if ((mask & (1 << bit)) != 0) {
+        if (result.length() != 0) {
+          result.append(" & ");
+        }
+        if ((value & (1 << bit)) == 0) {
+          result.append('!');
+        }
+        result.append(names[bit]);
+      }
+    }
+    return result.toString();
+  }
+
+  /**
+   * A row of the table. A row fires when the controller is in its mode and the guards
+   * selected by its mask have the given values.
+   */
+  private static final class Row {
+    final Mode mode;
+    final int mask;
+    final int value;
+    final int action;
+    final Mode target;
+
+    Row(Mode mode, int mask, int value, int action, Mode target) {
+      this.mode = mode;
+      this.mask = mask;
+      this.value = value;
+      this.action = action;
+      this.target = target;
+    }
+
+    boolean fires(Mode current, int guards) {
+      return current == this.mode && (guards & this.mask) == this.value;
+    }
+  }
+
+}
@@ -1,63 +1,84 @@
 package steam.boiler.core;
 
 /**
- * This class represents the pump the its functioning.
+ * This class represents the pump the its functioning. The state of the pump is
+ * held in a {@link PumpStore}, this is a view onto one of its pumps.
  * @author Harsh
  *
  */
 public class Pump {
 
-  private boolean isOn;
-  private boolean isControllerOn; 
-  private double pumpCapacity;
-  private boolean isBroken;
+  private final PumpStore store;
+  private final int index;
+
   /**
  * Pump constructor it initialize all the variables.
  */
   public Pump() {
-    this.isOn = false;
-    this.isControllerOn = false;
-    this.pumpCapacity = 0;
-    this.isBroken = false;
+    this(new PumpStore(1), 0);
+  }
+
+  /**
+   * Constructs a view of a pump held in a store.
+ * @param store
+ *    The store holding the state of the pump.
+ * @param index
+ *    The index of the pump in the store.
+ */
+  Pump(PumpStore store, int index) {
+    this.store = store;
+    this.index = index;
   }
 
   //----Getters and Setters-------
 
   public boolean isOn() {
-    return this.isOn;
+    return this.store.isOn(this.index);
   }
 
   public boolean isControllerOn() {
-    return this.isControllerOn;
+    return this.store.isControllerOn(this.index);
   }
 
   public double getPumpCapacity() {
-    return this.pumpCapacity;
+    return this.store.getCapacity(this.index);
   }
 
   public void setIsOn(boolean isOn) {
-    this.isOn = isOn;
+    this.store.setOn(this.index, isOn);
   }
 
   public void setControllerOn(boolean isControllerOn) {
-    this.isControllerOn = isControllerOn;
+    this.store.setControllerOn(this.index, isControllerOn);
   }
 
   public void setPumpCapacity(double pumpCapacity) {
-    this.pumpCapacity = pumpCapacity;
+    this.store.setCapacity(this.index, pumpCapacity);
   }
 
   public boolean isBroken() {
-    return this.isBroken;
+    return this.store.isBroken(this.index);
   }
 
   public void setOn(boolean isOn) {
-    this.isOn = isOn;
+    this.store.setOn(this.index, isOn);
   }
 
   public void setBroken(boolean isBroken) {
-    this.isBroken = isBroken;
+    this.store.setBroken(this.index, isBroken);
   }
 
-}
+  /**
+   * Whether the last command sent to this pump was OPEN_PUMP_n rather than CLOSE_PUMP_n.
+ * @return
+ *    True if the pump was last commanded open.
+ */
+  public boolean isCommandedOpen() {
+    return this.store.isCommandedOpen(this.index);
+  }
 
+  public void setCommandedOpen(boolean isCommandedOpen) {
+    this.store.setCommandedOpen(this.index, isCommandedOpen);
+  }
+
+}
@@ -0,0 +1,367 @@
+package steam.boiler.core;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Finds pumps and pump controllers which have failed by cross-checking, for every pump,
+ * the state it was commanded into, the state it reports and the state its controller
+ * reports, and then checking what is left against the level change seen by the
+ * {@link MassBalanceFilter}. A pump obeys a command within the cycle it is sent, so on
+ * the next clock signal:
+ * <ul>
+ * <li>a pump which reports a state other than the one commanded has failed, whatever
+ * its controller says, which catches pumps stuck closed or sticking open;</li>
+ * <li>a pump which reports the state commanded while its controller reports another
+ * has a failed controller, which catches controllers stuck on or off;</li>
+ * <li>a pump or controller which reports nothing has failed too, but only its
+ * transmitter may have, so the pump is not marked broken. Its state is unknown and it
+ * is taken to be in the state commanded, which the mass balance then checks.</li>
+ * </ul>
+ *
+ * <p>A pump which obeys but pumps less than its capacity, or pumps while closed, only
+ * shows in the mass balance. While the residual has the same sign, the suspects are the
+ * pumps which were open on every cycle with too little water (or closed on every cycle
+ * with too much), less those seen in the same state on a cycle which balanced. The
+ * suspects narrow as the controller switches pumps, and once a single pump is left it
+ * has failed. The level is not used on a clock signal where a pump disobeyed, since it
+ * changed the flow at some unknown point of the cycle. A pump already failed is counted
+ * in the balance in the state it reports, as the {@link MassBalanceFilter} is given.
+ * When that state is not the one commanded the pump may be stuck or may only be
+ * misreporting, so a residual it could explain is not blamed on the other pumps, until
+ * a cycle which balances shows the state reported is the real one. Every check works on
+ * whole words of the bit sets of {@link PumpStore}, so a clock signal costs a few bit
+ * operations per 64 pumps plus one step per failure.
+ * @author Harsh
+ *
+ */
+public class PumpFailureDetector {
+
+  private final int size;
+  private final long[] controlFailed;
+  /**
+   * The working pumps already reported for sending nothing.
+   */
+  private final long[] silent;
+  private final long[] newPumpFailures;
+  private final long[] newBroken;
+  private final long[] newControlFailures;
+  private final long[] suspects;
+  /**
+   * The failed pumps whose report is missing or disagrees with their command.
+   */
+  private final long[] doubtful;
+  /**
+   * The state every pump is counted in by the mass balance, which is the state it
+   * reported or, if it reported nothing, the state it was commanded into.
+   */
+  private final long[] countedOn;
+  /**
+   * The failed pumps in doubt whose state was shown by a cycle which balanced, and the
+   * state they were in.
+   */
+  private final long[] confirmed;
+  private final long[] confirmedOn;
+  private int suspectSign = 0;
+  private boolean failures;
+
+  /**
+   * Construct a detector for a given number of pumps, none of which have failed.
+ * @param size
+ *    The number of pumps.
+ */
+  public PumpFailureDetector(int size) {
+    int words = (size + 63) >>> 6;
+    this.size = size;
+    this.controlFailed = new long[words];
+    this.silent = new long[words];
+    this.newPumpFailures = new long[words];
+    this.newBroken = new long[words];
+    this.newControlFailures = new long[words];
+    this.suspects = new long[words];
+    this.doubtful = new long[words];
+    this.countedOn = new long[words];
+    this.confirmed = new long[words];
+    this.confirmedOn = new long[words];
+  }
+
+  /**
+   * Checks the pump and pump controller states received on a clock signal, before
+   * any pump is commanded on it. Pumps found to have failed are marked broken in the
+   * store.
+ * @param received
+ *    The messages received on the clock signal.
+ * @param store
+ *    The pumps, holding the states they were last commanded into.
+ * @param filter
+ *    The filter which has checked the level of the clock signal, or null if the level
+ *    cannot be used.
+ * @return
+ *    Whether any pump or pump controller was found to have failed.
+ */
+  public boolean update(TickSnapshot received, PumpStore store, MassBalanceFilter filter) {
+    long[] reportedPump = received.getPumpReported();
+    long[] pumpOn = received.getPumpOn();
+    long[] reportedController = received.getControllerReported();
+    long[] controllerOn = received.getControllerOn();
+    long[] broken = store.getBrokenBits();
+    long[] commanded = store.getCommandedOpenBits();
+    this.failures = false;
+    for (int word = 0; word < this.suspects.length; word++) {
+      long valid = word == this.suspects.length - 1 ? lastWordMask() : -1L;
+      long working = ~broken[word] & valid;
+      long reported = reportedPump[word] & working;
+      long checked = reported & reportedController[word];
+      long disobeyed = reported & (pumpOn[word] ^ commanded[word]);
+      long silenced = working & ~reportedPump[word] & ~this.silent[word];
+      long controller = ((checked & ~disobeyed & (controllerOn[word] ^ commanded[word]))
+          | (reported & ~reportedController[word]))
+          & ~this.controlFailed[word];
+      this.controlFailed[word] |= controller;
+      this.silent[word] |= silenced;
+      this.newPumpFailures[word] = disobeyed | silenced;
+      this.newBroken[word] = disobeyed;
+      this.newControlFailures[word] = controller;
+      this.failures |= (disobeyed | silenced | controller) != 0;
+      // a failed pump may be stuck or may be misreporting, so when its report and its
+      // command disagree the state it is counted in may not be the real one.
+      long state = (pumpOn[word] & reportedPump[word]) | (commanded[word] & ~reportedPump[word]);
+      this.countedOn[word] = state;
+      this.doubtful[word] = broken[word] & valid
+          & (~reportedPump[word] | (pumpOn[word] ^ commanded[word]));
+      this.confirmed[word] &= this.doubtful[word] & ~(state ^ this.confirmedOn[word]);
+    }
+    // a pump which failed during the cycle changed the flow at an unknown time, so the
+    // level says nothing about the others.
+    boolean useLevel = !this.failures && filter != null && filter.isResidualKnown();
+    if (!useLevel) {
+      reset();
+    } else {
+      checkLevel(filter, broken);
+    }
+    if (this.failures) {
+      markBroken(store);
+    }
+    return this.failures;
+  }
+
+  /**
+   * Narrows the suspects with the residual of the mass balance, and marks the last one
+   * left as failed.
+   */
+  private void checkLevel(MassBalanceFilter filter, long[] broken) {
+    double residual = filter.getResidual();
+    int sign = 0;
+    if (residual < -filter.getTolerance()) {
+      sign = -1;
+    } else if (residual > filter.getTolerance()) {
+      sign = 1;
+    }
+    if (sign == 0) {
+      // the failed pumps pump what they report.
+      for (int word = 0; word < this.suspects.length; word++) {
+        this.confirmedOn[word] = (this.confirmedOn[word] & ~this.doubtful[word])
+            | (this.countedOn[word] & this.doubtful[word]);
+        this.confirmed[word] |= this.doubtful[word];
+      }
+    } else if (isExplainedByFailed(sign)) {
+      reset();
+      return;
+    }
+    if (sign != 0 && sign != this.suspectSign) {
+      // a new discrepancy, which every pump in the right state may explain.
+      this.suspectSign = sign;
+      for (int word = 0; word < this.suspects.length; word++) {
+        this.suspects[word] = -1L;
+      }
+    }
+    if (this.suspectSign == 0) {
+      return;
+    }
+    long remaining = 0;
+    for (int word = 0; word < this.suspects.length; word++) {
+      long valid = word == this.suspects.length - 1 ? lastWordMask() : -1L;
+      long checked = ~broken[word] & valid;
+      // the pumps in the state which explains the sign of the residual.
+      long explaining = this.suspectSign < 0 ? checked & this.countedOn[word]
+          : checked & ~this.countedOn[word];
+      if (sign == 0) {
+        this.suspects[word] &= ~explaining;
+      } else {
+        this.suspects[word] &= explaining;
+      }
+      remaining += Long.bitCount(this.suspects[word]);
+    }
+    if (remaining == 0) {
+      this.suspectSign = 0;
+    } else if (remaining == 1) {
+      for (int word = 0; word < this.suspects.length; word++) {
+        // a pump already reported for sending nothing is only marked broken.
+        this.newPumpFailures[word] |= this.suspects[word] & ~this.silent[word];
+        this.newBroken[word] |= this.suspects[word];
+        this.suspects[word] = 0;
+      }
+      this.suspectSign = 0;
+      this.failures = true;
+    }
+  }
+
+  /**
+   * Whether a failed pump whose state is in doubt could explain a residual, by being
+   * closed while counted open (too little water) or open while counted closed (too
+   * much).
+   */
+  private boolean isExplainedByFailed(int sign) {
+    for (int word = 0; word < this.suspects.length; word++) {
+      long unconfirmed = this.doubtful[word] & ~this.confirmed[word];
+      long counted = sign < 0 ? this.countedOn[word] : ~this.countedOn[word];
+      if ((unconfirmed & counted) != 0) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private void markBroken(PumpStore store) {
+    for (int word = 0; word < this.newBroken.length; word++) {
+      long bits = this.newBroken[word];
+      while (bits != 0) {
+        store.setBroken((word << 6) + Long.numberOfTrailingZeros(bits), true);
+        bits &= bits - 1;
+      }
+    }
+  }
+
+  private long lastWordMask() {
+    int used = this.size & 63;
+    return used == 0 ? -1L : (1L << used) - 1;
+  }
+
+  /**
+   * Forget the suspects of the mass balance, for example when the level cannot be
+   * used. Failures already found are kept.
+   */
+  public void reset() {
+    this.suspectSign = 0;
+    for (int word = 0; word < this.suspects.length; word++) {
+      this.suspects[word] = 0;
+    }
+  }
+
+  /**
+   * The number of bytes written by write().
+ * @return
+ *    The size of the detector state in bytes.
+ */
+  public int getStateSize() {
+    return 4 + 4 + 5 * 8 * this.suspects.length;
+  }
+
+  /**
+   * Writes what the detector has learned over past clock signals: the failed pump
+   * controllers, the pumps reported for sending nothing, the suspects of the mass
+   * balance and the failed pumps whose state a balanced cycle confirmed.
+ * @param buffer
+ *    The buffer written to.
+ */
+  public void write(ByteBuffer buffer) {
+    buffer.putInt(this.size);
+    buffer.putInt(this.suspectSign);
+    for (int word = 0; word < this.suspects.length; word++) {
+      buffer.putLong(this.controlFailed[word]);
+      buffer.putLong(this.silent[word]);
+      buffer.putLong(this.suspects[word]);
+      buffer.putLong(this.confirmed[word]);
+      buffer.putLong(this.confirmedOn[word]);
+    }
+  }
+
+  /**
+   * Reads back the detector state as written by write().
+ * @param buffer
+ *    The buffer read from.
+ * @throws IllegalArgumentException
+ *    If the state is for a different number of pumps.
+ */
+  public void read(ByteBuffer buffer) {
+    int pumps = buffer.getInt();
+    if (pumps != this.size) {
+      throw new IllegalArgumentException("state is for " + pumps + " pumps, not " + this.size);
+    }
+    this.suspectSign = buffer.getInt();
+    for (int word = 0; word < this.suspects.length; word++) {
+      this.controlFailed[word] = buffer.getLong();
+      this.silent[word] = buffer.getLong();
+      this.suspects[word] = buffer.getLong();
+      this.confirmed[word] = buffer.getLong();
+      this.confirmedOn[word] = buffer.getLong();
+    }
+  }
+
+  /**
+   * Whether the last update found any failure.
+ * @return
+ *    Whether a pump or pump controller was found to have failed.
+ */
+  public boolean hasNewFailures() {
+    return this.failures;
+  }
+
+  /**
+   * The pumps found to have failed by the last update.
+ * @return
+ *    The bit set, one bit per pump, which must not be modified.
+ */
+  public long[] getNewPumpFailures() {
+    return this.newPumpFailures;
+  }
+
+  /**
+   * The pump controllers found to have failed by the last update.
+ * @return
+ *    The bit set, one bit per pump, which must not be modified.
+ */
+  public long[] getNewControlFailures() {
+    return this.newControlFailures;
+  }
+
+  /**
+   * Whether the mass balance is narrowing down a pump which does not pump what its
+   * state says.
+ * @return
+ *    Whether there are suspects.
+ */
+  public boolean hasSuspects() {
+    return this.suspectSign != 0;
+  }
+
+  /**
+   * The suspects of the mass balance.
+ * @return
+ *    The bit set, one bit per pump, which must not be modified.
+ */
+  public long[] getSuspects() {
+    return this.suspects;
+  }
+
+  /**
+   * Whether a pump is one of the suspects of the mass balance.
+ * @param index
+ *    The pump.
+ * @return
+ *    Whether it is suspected.
+ */
+  public boolean isSuspect(int index) {
+    return (this.suspects[index >>> 6] & (1L << index)) != 0;
+  }
+
+  /**
+   * Whether the controller of a pump has been found to have failed.
+ * @param index
+ *    The pump.
+ * @return
+ *    Whether its controller has failed.
+ */
+  public boolean isControlFailed(int index) {
+    return (this.controlFailed[index >>> 6] & (1L << index)) != 0;
+  }
+}
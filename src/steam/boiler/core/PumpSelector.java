@@ -0,0 +1,156 @@
+package steam.boiler.core;
+
+/**
+ * Chooses which pumps to open so that their combined capacity best matches a
+ * required inflow, for boilers whose pumps have different capacities. The healthy
+ * pumps are kept in an index sorted by decreasing capacity, which is only rebuilt when
+ * a pump breaks, is repaired or changes capacity. Selection then walks the index once,
+ * taking each pump which still fits under the target, and finally tops up with the
+ * smallest pump left over if that brings the total closer. Among pumps of the same
+ * capacity the lowest index is taken first, unless some of them are deferred, in which
+ * case those are only taken once the others of that capacity are. Choosing pumps
+ * therefore costs a single pass over the pumps and allocates nothing.
+ * @author Harsh
+ *
+ */
+public class PumpSelector {
+
+  private final PumpStore store;
+  private final int[] sorted;
+  private final long[] selected;
+  private int healthy;
+  private int version = -1;
+  private double selectedCapacity;
+
+  /**
+   * Construct a selector for the pumps in a given store.
+ * @param store
+ *    The store holding the pumps.
+ */
+  public PumpSelector(PumpStore store) {
+    this.store = store;
+    this.sorted = new int[store.size()];
+    this.selected = new long[(store.size() + 63) >>> 6];
+  }
+
+  /**
+   * Selects the healthy pumps whose total capacity is closest to the given inflow.
+ * @param inflow
+ *    The required inflow in litres per second.
+ * @return
+ *    The total capacity of the selected pumps.
+ */
+  public double select(double inflow) {
+    return select(inflow, null);
+  }
+
+  /**
+   * Selects the healthy pumps whose total capacity is closest to the given inflow,
+   * taking the deferred pumps last among pumps of the same capacity. The capacity
+   * selected is the same as without deferring any pump.
+ * @param inflow
+ *    The required inflow in litres per second.
+ * @param deferred
+ *    The pumps to take last, one bit per pump, or null to take the lowest index first.
+ * @return
+ *    The total capacity of the selected pumps.
+ */
+  public double select(double inflow, long[] deferred) {
+    if (this.version != this.store.getVersion()) {
+      rebuild();
+    }
+    for (int word = 0; word < this.selected.length; word++) {
+      this.selected[word] = 0;
+    }
+    double remaining = inflow;
+    int smallestLeft = -1;
+    for (int position = 0; position < this.healthy; position++) {
+      int index = this.sorted[position];
+      double capacity = this.store.getCapacity(index);
+      if (capacity <= remaining) {
+        this.selected[index >>> 6] |= 1L << index;
+        remaining -= capacity;
+      } else if (smallestLeft < 0 || capacity < this.store.getCapacity(smallestLeft)) {
+        smallestLeft = index;
+      }
+    }
+    // overshooting with the smallest pump left may still be closer than falling short.
+    if (smallestLeft >= 0 && this.store.getCapacity(smallestLeft) < 2 * remaining) {
+      this.selected[smallestLeft >>> 6] |= 1L << smallestLeft;
+      remaining -= this.store.getCapacity(smallestLeft);
+    }
+    if (deferred != null) {
+      defer(deferred);
+    }
+    this.selectedCapacity = inflow - remaining;
+    return this.selectedCapacity;
+  }
+
+  /**
+   * Moves the selection within each run of pumps of the same capacity onto the pumps
+   * which are not deferred, keeping the number selected in the run.
+   */
+  private void defer(long[] deferred) {
+    int start = 0;
+    while (start < this.healthy) {
+      double capacity = this.store.getCapacity(this.sorted[start]);
+      int end = start + 1;
+      while (end < this.healthy && this.store.getCapacity(this.sorted[end]) == capacity) {
+        end++;
+      }
+      int count = 0;
+      for (int position = start; position < end; position++) {
+        int index = this.sorted[position];
+        count += isSelected(index) ? 1 : 0;
+        this.selected[index >>> 6] &= ~(1L << index);
+      }
+      for (int pass = 0; pass < 2; pass++) {
+        for (int position = start; position < end && count > 0; position++) {
+          int index = this.sorted[position];
+          boolean isDeferred = (deferred[index >>> 6] & (1L << index)) != 0;
+          if (isDeferred == (pass == 1)) {
+            this.selected[index >>> 6] |= 1L << index;
+            count--;
+          }
+        }
+      }
+      start = end;
+    }
+  }
+
+  /**
+   * Whether a pump was chosen by the last call to select().
+ * @param index
+ *    The pump.
+ * @return
+ *    True if the pump should be open.
+ */
+  public boolean isSelected(int index) {
+    return (this.selected[index >>> 6] & (1L << index)) != 0;
+  }
+
+  public double getSelectedCapacity() {
+    return this.selectedCapacity;
+  }
+
+  /**
+   * Rebuilds the index of healthy pumps sorted by decreasing capacity.
+   */
+  private void rebuild() {
+    this.healthy = 0;
+    for (int index = 0; index < this.store.size(); index++) {
+      if (this.store.isBroken(index)) {
+        continue;
+      }
+      // insertion sort, the index is only rebuilt when a pump breaks.
+      double capacity = this.store.getCapacity(index);
+      int position = this.healthy++;
+      while (position > 0 && this.store.getCapacity(this.sorted[position - 1]) < capacity) {
+        this.sorted[position] = this.sorted[position - 1];
+        position--;
+      }
+      this.sorted[position] = index;
+    }
+    this.version = this.store.getVersion();
+  }
+}
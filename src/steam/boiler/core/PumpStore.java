@@ -0,0 +1,288 @@
+package steam.boiler.core;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Holds the state of every pump of a boiler in packed primitive arrays. Each boolean
+ * property is a bit set stored as an array of longs, so that counting or combining the
+ * pumps with a given property is done 64 pumps at a time with popcount and bitwise
+ * operations. The number of open pumps is maintained incrementally as pumps change
+ * state. The {@link Pump} class provides a view onto a single pump of a store.
+ * @author Harsh
+ *
+ */
+public class PumpStore {
+
+  private final int size;
+  private final long[] on;
+  private final long[] controllerOn;
+  private final long[] broken;
+  private final long[] commandedOpen;
+  private final double[] capacity;
+  private final Pump[] views;
+  private int openCount;
+  private int version;
+
+  /**
+   * Construct a store for a given number of pumps, all of which are closed, working
+   * and have no capacity.
+ * @param size
+ *    The number of pumps.
+ */
+  public PumpStore(int size) {
+    assert size >= 0;
+    this.size = size;
+    int words = (size + 63) >>> 6;
+    this.on = new long[words];
+    this.controllerOn = new long[words];
+    this.broken = new long[words];
+    this.commandedOpen = new long[words];
+    this.capacity = new double[size];
+    this.views = new Pump[size];
+    for (int index = 0; index < size; index++) {
+      this.views[index] = new Pump(this, index);
+    }
+  }
+
+  public int size() {
+    return this.size;
+  }
+
+  /**
+   * Returns the view of a given pump in this store.
+ * @param index
+ *    The pump.
+ * @return
+ *    The view, which reads and writes this store.
+ */
+  public Pump getPump(int index) {
+    return this.views[index];
+  }
+
+  /**
+   * Returns views of every pump in this store.
+ * @return
+ *    The views, in pump order.
+ */
+  public Pump[] getPumps() {
+    return this.views.clone();
+  }
+
+  /**
+   * It returns the number of pumps which are on and not broken.
+ * @return
+ *    The number of open pumps.
+ */
+  public int countOpen() {
+    return this.openCount;
+  }
+
+  /**
+   * It recomputes the number of pumps which are on and not broken from the bit sets,
+   * this is used to check the incremental count has not drifted.
+ * @return
+ *    The number of open pumps.
+ */
+  public int recountOpen() {
+    int count = 0;
+    for (int word = 0; word < this.on.length; word++) {
+      count += Long.bitCount(this.on[word] & ~this.broken[word]);
+    }
+    return count;
+  }
+
+  /**
+   * It returns the number of pumps which were last commanded open.
+ * @return
+ *    The number of pumps commanded open.
+ */
+  public int countCommandedOpen() {
+    int count = 0;
+    for (int word = 0; word < this.commandedOpen.length; word++) {
+      count += Long.bitCount(this.commandedOpen[word]);
+    }
+    return count;
+  }
+
+  //----Getters and Setters-------
+
+  public boolean isOn(int index) {
+    return get(this.on, index);
+  }
+
+  public void setOn(int index, boolean isOn) {
+    boolean wasOpen = isOpen(index);
+    set(this.on, index, isOn);
+    updateOpenCount(index, wasOpen);
+  }
+
+  public boolean isControllerOn(int index) {
+    return get(this.controllerOn, index);
+  }
+
+  public void setControllerOn(int index, boolean isControllerOn) {
+    set(this.controllerOn, index, isControllerOn);
+  }
+
+  public boolean isBroken(int index) {
+    return get(this.broken, index);
+  }
+
+  public void setBroken(int index, boolean isBroken) {
+    boolean wasOpen = isOpen(index);
+    if (isBroken != get(this.broken, index)) {
+      this.version++;
+    }
+    set(this.broken, index, isBroken);
+    updateOpenCount(index, wasOpen);
+  }
+
+  public boolean isCommandedOpen(int index) {
+    return get(this.commandedOpen, index);
+  }
+
+  public void setCommandedOpen(int index, boolean isCommandedOpen) {
+    set(this.commandedOpen, index, isCommandedOpen);
+  }
+
+  /**
+   * Sets the state of many pumps at once, a word of 64 pumps at a time.
+ * @param mask
+ *    The pumps whose state is set, one bit per pump.
+ * @param isOn
+ *    The new state of those pumps, bits outside the mask are ignored.
+ */
+  public void setOn(long[] mask, long[] isOn) {
+    for (int word = 0; word < this.on.length; word++) {
+      long old = this.on[word];
+      long updated = (old & ~mask[word]) | (isOn[word] & mask[word]);
+      this.openCount += Long.bitCount(updated & ~this.broken[word])
+          - Long.bitCount(old & ~this.broken[word]);
+      this.on[word] = updated;
+    }
+  }
+
+  /**
+   * Sets the state of many pump controllers at once, a word of 64 pumps at a time.
+ * @param mask
+ *    The pumps whose controller state is set, one bit per pump.
+ * @param isControllerOn
+ *    The new state of those controllers, bits outside the mask are ignored.
+ */
+  public void setControllerOn(long[] mask, long[] isControllerOn) {
+    for (int word = 0; word < this.controllerOn.length; word++) {
+      this.controllerOn[word] = (this.controllerOn[word] & ~mask[word])
+          | (isControllerOn[word] & mask[word]);
+    }
+  }
+
+  /**
+   * The pumps which are broken, one bit per pump.
+ * @return
+ *    The bit set, which must not be modified.
+ */
+  long[] getBrokenBits() {
+    return this.broken;
+  }
+
+  /**
+   * The pumps which were last commanded open, one bit per pump.
+ * @return
+ *    The bit set, which must not be modified.
+ */
+  long[] getCommandedOpenBits() {
+    return this.commandedOpen;
+  }
+
+  public double getCapacity(int index) {
+    return this.capacity[index];
+  }
+
+  public void setCapacity(int index, double pumpCapacity) {
+    this.capacity[index] = pumpCapacity;
+    this.version++;
+  }
+
+  /**
+   * It returns a number which changes whenever a pump breaks, is repaired or changes
+   * capacity, so that anything derived from those can tell when it is out of date.
+ * @return
+ *    The version of the store.
+ */
+  public int getVersion() {
+    return this.version;
+  }
+
+  /**
+   * The number of bytes written by write().
+ * @return
+ *    The size of the pump state in bytes.
+ */
+  public int getStateSize() {
+    return 4 + 4 * 8 * this.on.length;
+  }
+
+  /**
+   * Writes the state of every pump, but not their capacities which come from the
+   * boiler characteristics.
+ * @param buffer
+ *    The buffer written to.
+ */
+  public void write(ByteBuffer buffer) {
+    buffer.putInt(this.size);
+    for (int word = 0; word < this.on.length; word++) {
+      buffer.putLong(this.on[word]);
+      buffer.putLong(this.controllerOn[word]);
+      buffer.putLong(this.broken[word]);
+      buffer.putLong(this.commandedOpen[word]);
+    }
+  }
+
+  /**
+   * Reads back the state of every pump as written by write().
+ * @param buffer
+ *    The buffer read from.
+ * @throws IllegalArgumentException
+ *    If the state is for a different number of pumps.
+ */
+  public void read(ByteBuffer buffer) {
+    int pumps = buffer.getInt();
+    if (pumps != this.size) {
+      throw new IllegalArgumentException("state is for " + pumps + " pumps, not " + this.size);
+    }
+    for (int word = 0; word < this.on.length; word++) {
+      this.on[word] = buffer.getLong();
+      this.controllerOn[word] = buffer.getLong();
+      this.broken[word] = buffer.getLong();
+      this.commandedOpen[word] = buffer.getLong();
+    }
+    this.openCount = recountOpen();
+    this.version++;
+  }
+
+  private boolean isOpen(int index) {
+    return get(this.on, index) && !get(this.broken, index);
+  }
+
+  private void updateOpenCount(int index, boolean wasOpen) {
+    boolean open = isOpen(index);
+    if (open && !wasOpen) {
+      this.openCount++;
+    } else if (wasOpen && !open) {
+      this.openCount--;
+    }
+  }
+
+  private static boolean get(long[] bits, int index) {
+    return (bits[index >>> 6] & (1L << index)) != 0;
+  }
+
+  private static void set(long[] bits, int index, boolean value) {
+    if (value) {
+      bits[index >>> 6] |= 1L << index;
+    } else {
+      bits[index >>> 6] &= ~(1L << index);
+    }
+  }
+
+}
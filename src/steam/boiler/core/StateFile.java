@@ -0,0 +1,166 @@
+package steam.boiler.core;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * A memory-mapped file holding the last saved state of a controller, so that a
+ * controller started after a crash can carry on from where the previous one stopped
+ * instead of going back through initialisation. The file has two slots which are
+ * written alternately. Each slot starts and ends with the sequence number of the save,
+ * the start being written first and the end last, so a save which was interrupted
+ * leaves a slot whose two numbers differ and restoring falls back to the other slot.
+ * Since the operating system may write the pages of a slot to disk in any order, the
+ * numbers alone do not show a slot is whole, so each slot also holds a CRC-32 of its
+ * sequence number and state, and a slot whose CRC does not match is treated as torn.
+ * Saving only copies the state into the mapped memory and does not allocate, the
+ * operating system writes it to disk.
+ * @author Harsh
+ *
+ */
+public class StateFile implements Closeable {
+
+  private static final int MAGIC = 0x53424331;
+  private static final int VERSION = 4;
+  private static final int HEADER_SIZE = 16;
+  private static final int SLOT_OVERHEAD = 24;
+
+  private final FileChannel channel;
+  private final MappedByteBuffer map;
+  private final ByteBuffer[] slots = new ByteBuffer[2];
+  private final int stateSize;
+  private final CRC32 crc = new CRC32();
+  private long sequence;
+
+  /**
+   * Opens (or creates) the state file for a given controller. If the file holds the
+   * state of a controller with a different number of pumps, or was written in another
+   * format, it is cleared.
+ * @param path
+ *    The file.
+ * @param controller
+ *    The controller whose state is kept in the file.
+ * @throws IOException
+ *    If the file cannot be opened or mapped.
+ */
+  public StateFile(Path path, SteamBoilerController controller) throws IOException {
+    this.stateSize = controller.getStateSize();
+    int slotSize = this.stateSize + SLOT_OVERHEAD;
+    int fileSize = HEADER_SIZE + 2 * slotSize;
+    this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+        StandardOpenOption.WRITE);
+    boolean fresh = this.channel.size() != fileSize;
+    this.map = this.channel.map(FileChannel.MapMode.READ_WRITE, 0, fileSize);
+    if (fresh || this.map.getInt(0) != MAGIC || this.map.getInt(4) != this.stateSize
+        || this.map.getInt(8) != VERSION) {
+      for (int index = 0; index < fileSize; index++) {
+        this.map.put(index, (byte) 0);
+      }
+      this.map.putInt(0, MAGIC);
+      this.map.putInt(4, this.stateSize);
+      this.map.putInt(8, VERSION);
+    }
+    for (int slot = 0; slot < 2; slot++) {
+      this.map.position(HEADER_SIZE + slot * slotSize);
+      this.map.limit(HEADER_SIZE + (slot + 1) * slotSize);
+      this.slots[slot] = this.map.slice();
+      this.map.clear();
+    }
+    int latest = latestSlot();
+    this.sequence = latest < 0 ? 0 : this.slots[latest].getLong(0);
+  }
+
+  /**
+   * Saves the state of a controller into the slot not holding the latest state.
+ * @param controller
+ *    The controller, which must have the number of pumps the file was opened for.
+ */
+  public void save(SteamBoilerController controller) {
+    long next = this.sequence + 1;
+    ByteBuffer slot = this.slots[(int) (next & 1)];
+    slot.putLong(0, next);
+    slot.position(8);
+    controller.saveState(slot);
+    assert slot.position() == 8 + this.stateSize;
+    slot.putLong(8 + this.stateSize, checksum(slot));
+    slot.putLong(16 + this.stateSize, next);
+    this.sequence = next;
+  }
+
+  /**
+   * Restores the state last saved into a controller.
+ * @param controller
+ *    The controller, which must have the number of pumps the file was opened for.
+ * @return
+ *    True if a complete state was found and restored, false if the controller was
+ *    left alone.
+ */
+  public boolean restore(SteamBoilerController controller) {
+    int latest = latestSlot();
+    if (latest < 0) {
+      return false;
+    }
+    ByteBuffer slot = this.slots[latest];
+    slot.position(8);
+    controller.restoreState(slot);
+    return true;
+  }
+
+  /**
+   * The sequence number of the last state saved.
+ * @return
+ *    The number of saves made to this file, across every controller which used it.
+ */
+  public long getSequence() {
+    return this.sequence;
+  }
+
+  /**
+   * Finds the slot holding the most recent complete state.
+ * @return
+ *    The slot, or -1 if neither slot is complete.
+ */
+  private int latestSlot() {
+    int latest = -1;
+    long best = 0;
+    for (int slot = 0; slot < 2; slot++) {
+      long start = this.slots[slot].getLong(0);
+      long end = this.slots[slot].getLong(16 + this.stateSize);
+      if (start == end && start > best
+          && this.slots[slot].getLong(8 + this.stateSize) == checksum(this.slots[slot])) {
+        best = start;
+        latest = slot;
+      }
+    }
+    return latest;
+  }
+
+  /**
+   * Computes the CRC-32 of the sequence number and state held in a slot.
+ * @param slot
+ *    The slot.
+ * @return
+ *    The CRC.
+ */
+  private long checksum(ByteBuffer slot) {
+    slot.position(0);
+    slot.limit(8 + this.stateSize);
+    this.crc.reset();
+    this.crc.update(slot);
+    slot.clear();
+    return this.crc.getValue();
+  }
+
+  @Override
+  public void close() throws IOException {
+    this.map.force();
+    this.channel.close();
+  }
+
+}
@@ -0,0 +1,92 @@
+package steam.boiler.core;
+
+import java.util.concurrent.locks.StampedLock;
+
+import steam.boiler.util.Mailbox;
+
+/**
+ * Publishes the status of a controller from the thread which clocks it to any number
+ * of reader threads, such as the simulation window or a dashboard. This is a sequence
+ * lock: the writer bumps the stamp of a {@link StampedLock} around its stores, and
+ * readers copy the fields under an optimistic read and retry if the stamp changed
+ * meanwhile. Readers never take the lock, so the writer never waits for them, and a
+ * reader never sees a status torn between two clock signals. Publishing allocates
+ * nothing; each read constructs a new {@link ControllerStatus}.
+ * @author Harsh
+ *
+ */
+public final class StatusPublisher {
+
+  private final StampedLock lock = new StampedLock();
+  private long tick;
+  private Mailbox.Mode mode;
+  private double waterLevel;
+  private double steam;
+  private int openPumps;
+  private int pumps;
+
+  /**
+   * Construct a publisher whose status is that of a controller which has not yet been
+   * clocked.
+ * @param mode
+ *    The initial mode.
+ * @param pumps
+ *    The number of pumps.
+ */
+  public StatusPublisher(Mailbox.Mode mode, int pumps) {
+    this.mode = mode;
+    this.pumps = pumps;
+  }
+
+  /**
+   * Publish the status at the end of a clock signal. This must only be called by a
+   * single thread at a time.
+ * @param tick
+ *    The number of clock signals processed.
+ * @param mode
+ *    The mode of the controller.
+ * @param waterLevel
+ *    The last water level reported.
+ * @param steam
+ *    The last steam output reported.
+ * @param openPumps
+ *    The number of pumps the controller believes to be open.
+ * @param pumps
+ *    The number of pumps.
+ */
+  public void publish(long tick, Mailbox.Mode mode, double waterLevel, double steam,
+      int openPumps, int pumps) {
+    long stamp = this.lock.writeLock();
+    try {
+      this.tick = tick;
+      this.mode = mode;
+      this.waterLevel = waterLevel;
+      this.steam = steam;
+      this.openPumps = openPumps;
+      this.pumps = pumps;
+    } finally {
+      this.lock.unlockWrite(stamp);
+    }
+  }
+
+  /**
+   * Read the last status published, from any thread.
+ * @return
+ *    The status.
+ */
+  public ControllerStatus read() {
+    while (true) {
+      // zero while a publish is in progress, in which case validate() fails.
+      long stamp = this.lock.tryOptimisticRead();
+      long t = this.tick;
+      Mailbox.Mode m = this.mode;
+      double level = this.waterLevel;
+      double s = this.steam;
+      int open = this.openPumps;
+      int n = this.pumps;
+      if (this.lock.validate(stamp)) {
+        return new ControllerStatus(t, m, level, s, open, n);
+      }
+    }
+  }
+}
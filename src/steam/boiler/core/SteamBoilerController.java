@@ -3,6 +3,8 @@ package steam.boiler.core;
 //import org.eclipse.jdt.annotation.NonNull;
 //import org.eclipse.jdt.annotation.Nullable;
 
+import java.nio.ByteBuffer;
+
 import steam.boiler.util.Mailbox;
 import steam.boiler.util.Mailbox.Message;
 import steam.boiler.util.Mailbox.MessageKind;
@@ -15,10 +17,31 @@ import steam.boiler.util.SteamBoilerCharacteristics;
  *
  */
 public class SteamBoilerController {
-  
+
+  /**
+   * The time (in seconds) between two clock signals.
+   */
+  private static final double CYCLE_TIME = 5.0;
+
+  /**
+   * The number of cycles over which predictive control brings the water level back to
+   * the midpoint of N1 and N2, trying to do so in one cycle overshoots with large pumps.
+   */
+  private static final int PREDICTION_HORIZON = 3;
+
+  private PumpStore pumpStore;
+  private PumpSelector pumpSelector;
+  private TickSnapshot snapshot;
+  private final ModeTable modeTable = new ModeTable();
+  private StateFile stateFile;
+  private MassBalanceFilter filter;
+  private PumpFailureDetector pumpDetector;
+  private LevelEstimator levelEstimator;
+  private ControllerMetrics metrics = new ControllerMetrics();
+  private StatusPublisher status;
+  private long ticks = 0;
   private Pump[] pumps;
   private Mailbox.Mode mode;
-  private int openPumps = 0;
   private double m1;
   private double m2;
   private double n1;
@@ -26,8 +49,18 @@ public class SteamBoilerController {
   private double steamV = 0;
   private double waterLevel = 0;
   private double tankCapacity;
+  private double evacuationRate;
+  private double maximalSteamRate;
+  private boolean predictiveControl = false;
+  private double previousWaterLevel = -1;
+  private double previousInflow = 0;
   private boolean arePhysicalUnitsReadv;
   private boolean isValveOpen = false;
+  private boolean steamFailed = false;
+  private boolean messagePooling = false;
+  private MessagePool messagePool;
+  private long pumpCommandsSent = 0;
+  private long pumpCommandsSaved = 0;
 
   /**
  * Construct a steam boiler controller for a given set of characteristics.
@@ -47,21 +80,30 @@ public class SteamBoilerController {
   private void initialize(SteamBoilerCharacteristics configuration) {
     assert configuration != null;
     //setup the number of pumps used in program.
-    this.setPumps(new Pump[configuration.getNumberOfPumps()]);
-    for (int index = 0; index < this.getPumps().length; index++) {
-      this.getPumps()[index] = new Pump();
-    }
+    this.pumpStore = new PumpStore(configuration.getNumberOfPumps());
+    this.pumps = this.pumpStore.getPumps();
     for (int i = 0; i < configuration.getNumberOfPumps(); i++) {
-      getPumps()[i].setPumpCapacity(configuration.getPumpCapacity(i));
+      this.pumpStore.setCapacity(i, configuration.getPumpCapacity(i));
     }
+    this.pumpSelector = new PumpSelector(this.pumpStore);
+    this.snapshot = new TickSnapshot(configuration.getNumberOfPumps());
     this.setMode(Mailbox.Mode.INITIALISATION);
+    this.status = new StatusPublisher(getMode(), configuration.getNumberOfPumps());
 
     setM1(configuration.getMinimalLimitLevel());
     setM2(configuration.getMaximalLimitLevel());
     setN1(configuration.getMinimalNormalLevel());
     setN2(configuration.getMaximalNormalLevel());
     setTankCapacity(configuration.getCapacity());
+    this.evacuationRate = configuration.getEvacuationRate();
+    this.maximalSteamRate = configuration.getMaximualSteamRate();
+    this.filter = newFilter();
+    this.pumpDetector = new PumpFailureDetector(configuration.getNumberOfPumps());
+    this.levelEstimator = newEstimator();
     setArePhysicalUnitsReadv(false);
+    // every pump may be closed and reopened in one cycle and have both its pump and
+    // controller fail, plus a few mode messages.
+    this.messagePool = new MessagePool(4 * configuration.getNumberOfPumps() + 8);
   }
 
   /**
@@ -77,151 +119,317 @@ public class SteamBoilerController {
  */
   public void clock(final Mailbox incoming, final Mailbox outgoing) {
     assert incoming != null && outgoing != null;
+    ControllerMetrics recorder = this.metrics;
+    long start = recorder != null ? System.nanoTime() : 0;
 
+    this.messagePool.recycle();
     checkMessage(incoming, outgoing);
+    checkReadings();
     checkMode(outgoing);
+    if (this.predictiveControl) {
+      recordCycle();
+    }
+    assert this.pumpStore.countOpen() == this.pumpStore.recountOpen() : "open pump count drifted";
+    if (this.stateFile != null) {
+      this.stateFile.save(this);
+    }
+    this.status.publish(++this.ticks, getMode(), getWaterLevel(), getsteamV(),
+        this.pumpStore.countOpen(), this.pumpStore.size());
+    if (recorder != null) {
+      recorder.recordTick(incoming, outgoing, getMode(), System.nanoTime() - start);
+    }
+  }
+
+  /**
+   * The number of bytes written by saveState().
+ * @return
+ *    The size of the state of this controller in bytes.
+ */
+  public int getStateSize() {
+    return 4 + 1 + 4 * 8 + 2 * 8 + this.pumpStore.getStateSize()
+        + this.pumpDetector.getStateSize() + this.filter.getStateSize()
+        + this.levelEstimator.getStateSize();
   }
 
   /**
-   * This methods checks and calls the method for current mode.
+   * Writes everything needed to carry on controlling the boiler from the next clock
+   * signal: the mode, the flags, the last readings, the state of every pump, what the
+   * pump failure detector and the mass balance filter have learned, and the level
+   * estimate.
+ * @param buffer
+ *    The buffer written to, getStateSize() bytes are written at its position.
+ */
+  public void saveState(ByteBuffer buffer) {
+    buffer.putInt(this.mode.ordinal());
+    int flags = 0;
+    flags |= this.arePhysicalUnitsReadv ? 1 : 0;
+    flags |= this.isValveOpen ? 2 : 0;
+    flags |= this.predictiveControl ? 4 : 0;
+    flags |= this.messagePooling ? 8 : 0;
+    flags |= this.steamFailed ? 16 : 0;
+    buffer.put((byte) flags);
+    buffer.putDouble(this.waterLevel);
+    buffer.putDouble(this.steamV);
+    buffer.putDouble(this.previousWaterLevel);
+    buffer.putDouble(this.previousInflow);
+    buffer.putLong(this.pumpCommandsSent);
+    buffer.putLong(this.pumpCommandsSaved);
+    this.pumpStore.write(buffer);
+    this.pumpDetector.write(buffer);
+    this.filter.write(buffer);
+    this.levelEstimator.write(buffer);
+  }
+
+  /**
+   * Reads back the state written by saveState(), so that this controller carries on
+   * from where the one which saved it stopped.
+ * @param buffer
+ *    The buffer read from.
+ * @throws IllegalArgumentException
+ *    If the state is for a different number of pumps.
+ */
+  public void restoreState(ByteBuffer buffer) {
+    int ordinal = buffer.getInt();
+    Mailbox.Mode[] modes = Mailbox.Mode.values();
+    if (ordinal < 0 || ordinal >= modes.length) {
+      throw new IllegalArgumentException("invalid mode " + ordinal);
+    }
+    int flags = buffer.get();
+    double level = buffer.getDouble();
+    double steam = buffer.getDouble();
+    double previousLevel = buffer.getDouble();
+    double inflow = buffer.getDouble();
+    long sent = buffer.getLong();
+    long saved = buffer.getLong();
+    this.pumpStore.read(buffer);
+    this.pumpDetector.read(buffer);
+    this.filter.read(buffer);
+    this.levelEstimator.read(buffer);
+    setMode(modes[ordinal]);
+    this.arePhysicalUnitsReadv = (flags & 1) != 0;
+    this.isValveOpen = (flags & 2) != 0;
+    this.predictiveControl = (flags & 4) != 0;
+    this.messagePooling = (flags & 8) != 0;
+    this.steamFailed = (flags & 16) != 0;
+    this.waterLevel = level;
+    this.steamV = steam;
+    this.previousWaterLevel = previousLevel;
+    this.previousInflow = inflow;
+    this.pumpCommandsSent = sent;
+    this.pumpCommandsSaved = saved;
+  }
+
+  /**
+   * This method evaluates the guards of the mode table once, takes the actions the
+   * table gives for the current mode and moves to the next mode.
  * @param outgoing
  *    Messages generated during the execution of this method should be
  *            written here.
  */
   private void checkMode(Mailbox outgoing) {
-    switch (this.getMode()) {
-      case INITIALISATION:
-        initialisation(outgoing);
-        break;
-      case NORMAL:
-        normal(outgoing);
-        break;
-      case DEGRADED:
-        degraded(outgoing);
-        break;
-      case EMERGENCY_STOP:
-        emergencyStop(outgoing);
-        break;
-      case RESCUE:
-        rescue(outgoing);
-        break;
-      default:
-        break;
-    }
-  }
-
-  /**
-   * This method checks about the messages received and update the variables with the 
-   * values received in message.
- * @param incoming
- *     The set of incoming messages from the physical units.
- * @param outgoing
- *      Messages generated during the execution of this method should be
- *            written here.
+    int cell = this.modeTable.lookup(getMode(), evaluateGuards());
+    int actions = ModeTable.getActions(cell);
+    if ((actions & ModeTable.EMERGENCY_STOP) != 0) {
+      emergencyStop(outgoing);
+    }
+    if ((actions & ModeTable.LEVEL_FAILURE) != 0) {
+      levelFailure(outgoing);
+    }
+    if ((actions & ModeTable.STEAM_FAILURE) != 0) {
+      steamFailure(outgoing);
+    }
+    if ((actions & ModeTable.PUMP_FAILURE) != 0) {
+      pumpFailure(ModeTable.getTarget(cell), outgoing);
+    }
+    if ((actions & ModeTable.START) != 0) {
+      start(outgoing);
+    }
+    if ((actions & ModeTable.WAIT) != 0) {
+      outgoing.send(newMessage(MessageKind.MODE_m, Mailbox.Mode.INITIALISATION));
+    }
+    if ((actions & ModeTable.MAINTAIN_LEVEL) != 0) {
+      maintainWaterLevel(outgoing);
+    }
+    setMode(ModeTable.getTarget(cell));
+  }
+
+  /**
+   * Construct a mass balance filter for the pumps in the pump store.
+ * @return
+ *    The filter.
  */
-  private void checkMessage(final Mailbox incoming, final Mailbox outgoing) {
+  private MassBalanceFilter newFilter() {
+    double totalCapacity = 0;
+    double smallestCapacity = Double.MAX_VALUE;
+    for (int index = 0; index < this.pumpStore.size(); index++) {
+      totalCapacity += this.pumpStore.getCapacity(index);
+      smallestCapacity = Math.min(smallestCapacity, this.pumpStore.getCapacity(index));
+    }
+    return new MassBalanceFilter(CYCLE_TIME, totalCapacity, smallestCapacity,
+        this.maximalSteamRate);
+  }
 
-    for (int index = 0; index < incoming.size(); index++) {
-      Message currentMessage = incoming.read(index);
-
-      switch (currentMessage.getKind()) {
-        //tells the program about the current mode of the boiler.
-        case MODE_m:
-          setMode(currentMessage.getModeParameter());
-          break;
-        //tells the program whether steam boiler is waiting or not.
-        case STEAM_BOILER_WAITING:
-          steamBoilerWaiting(outgoing);
-          break;
-        //tells the program whether physical units are ready or not.
-        case PHYSICAL_UNITS_READY:
-          setArePhysicalUnitsReadv(true);
-          break;
-        //turns the pump on or off.
-        case PUMP_STATE_n_b:
-          int intParameter = currentMessage.getIntegerParameter();
-          boolean boolParameter = currentMessage.getBooleanParameter();
-          getPumps()[intParameter].setIsOn(boolParameter);
-          break;
-        //turns the pump controller on or off.
-        case PUMP_CONTROL_STATE_n_b:
-          intParameter = currentMessage.getIntegerParameter();
-          boolParameter = currentMessage.getBooleanParameter();
-          getPumps()[intParameter].setControllerOn(boolParameter);
-          break;
-        //sets the water level .
-        case LEVEL_v:
-          setWaterLevel(currentMessage.getDoubleParameter());
-          break;
-        // sets the steam level.
-        case STEAM_v:
-          setsteamV(currentMessage.getDoubleParameter());
-          break;
-        default:
-          break;
+  /**
+   * Construct a level estimator which widens by as much per cycle as the mass balance
+   * filter treats as noise.
+ * @return
+ *    The estimator.
+ */
+  private LevelEstimator newEstimator() {
+    return new LevelEstimator(CYCLE_TIME, this.maximalSteamRate, this.filter.getTolerance());
+  }
 
+  /**
+   * This method passes the readings of this cycle through the mass balance filter
+   * while the level is being controlled, and then checks the pumps against what they
+   * were commanded to do and the level. Once the steam sensor has failed only the
+   * level is checked, and in rescue mode only the pump states. Last the level estimator
+   * takes the level reading if it can be trusted, or carries its estimate forward.
+   */
+  private void checkReadings() {
+    boolean controlled = getMode() == Mailbox.Mode.NORMAL
+        || getMode() == Mailbox.Mode.DEGRADED;
+    if (!controlled) {
+      this.filter.reset();
+    }
+    if (!controlled && getMode() != Mailbox.Mode.RESCUE) {
+      this.pumpDetector.reset();
+      this.levelEstimator.reset();
+      return;
+    }
+    if (controlled) {
+      updateFilter();
+    }
+    this.pumpDetector.update(this.snapshot, this.pumpStore, controlled ? this.filter : null);
+    updateEstimator(controlled);
+  }
+
+  private void updateFilter() {
+    double inflow = 0;
+    for (int index = 0; index < this.pumpStore.size(); index++) {
+      if (this.pumpStore.isOn(index)) {
+        inflow += this.pumpStore.getCapacity(index);
       }
     }
+    double steam = this.steamFailed ? Double.NaN : getsteamV();
+    this.filter.update(getWaterLevel(), steam, inflow,
+        this.isValveOpen ? this.evacuationRate : 0);
   }
 
+  /**
+   * The level reading is trusted while the level is controlled, it is within the tank
+   * and the filter has not found it anomalous. In rescue mode it never is, as the
+   * controller never learns of sensor repairs.
+   */
+  private void updateEstimator(boolean controlled) {
+    double level = getWaterLevel();
+    double steam = this.steamFailed || this.filter.isSteamFailed() ? Double.NaN : getsteamV();
+    if (controlled && level >= 0 && level < getTankCapacity() && !this.filter.isLevelFailed()) {
+      this.levelEstimator.observe(level, steam);
+    } else {
+      this.levelEstimator.predict(this.pumpStore, steam, this.filter.getSteamGain(),
+          this.isValveOpen ? this.evacuationRate : 0);
+    }
+  }
 
   /**
-   * When the water level sensor is broken the steam boiler mode shifts
-   * to rescue mode and the water is maintained by calculating the evacuation 
-   * rate and capacity of pumps.
- * @param outgoing
- *    Messages generated during the execution of this method should be
- *            written here.
+   * The water level the pumps are controlled by, which is the reading or, once the
+   * level sensor has failed, the estimate of the level estimator.
+ * @return
+ *    The water level.
  */
-  private void rescue(Mailbox outgoing) {
-    assert outgoing != null;
-    //checks the failures.
-    waterLevelCheck(outgoing);
-    if (getsteamV() < 0 || getsteamV() >= getTankCapacity()) {
-      emergencyStop(outgoing);
+  private double getControlLevel() {
+    if (this.levelEstimator.isEstimating()) {
+      return this.levelEstimator.getEstimate();
     }
+    return getWaterLevel();
   }
 
-  private static void emergencyStop(Mailbox outgoing) {
-    outgoing.send(new Message(Mailbox.MessageKind.MODE_m, Mailbox.Mode.EMERGENCY_STOP));
+  /**
+   * This method works out which guards of the mode table hold for the readings of
+   * this cycle.
+ * @return
+ *    The guards which hold, one bit per guard.
+ */
+  private int evaluateGuards() {
+    double level = getWaterLevel();
+    double steam = getsteamV();
+    double capacity = getTankCapacity();
+    double controlLevel = getControlLevel();
+    int guards = 0;
+    if (controlLevel < getM1() || controlLevel > getM2()) {
+      guards |= ModeTable.LEVEL_OUTSIDE_LIMITS;
+    }
+    // an estimate which may be anywhere between the limits says nothing.
+    if (this.levelEstimator.getUncertainty() * 2 >= getM2() - getM1()) {
+      guards |= ModeTable.LEVEL_OUTSIDE_LIMITS;
+    }
+    if (level < 0 || level >= capacity || this.filter.isLevelFailed()) {
+      guards |= ModeTable.LEVEL_FAILED;
+    }
+    if (steam < 0 || steam >= capacity || this.filter.isSteamFailed()) {
+      guards |= ModeTable.STEAM_FAILED;
+    }
+    if (steam <= 0 || steam >= capacity) {
+      guards |= ModeTable.STEAM_STOPPED;
+    }
+    if (level < 0 || level > capacity) {
+      guards |= ModeTable.LEVEL_OUTSIDE_TANK;
+    }
+    if (isArePhysicalUnitsReadv()) {
+      guards |= ModeTable.READY;
+    }
+    if (this.pumpDetector.hasNewFailures()) {
+      guards |= ModeTable.PUMP_FAILED;
+    }
+    return guards;
   }
 
   /**
-   * When the Steam sensor is broken the Steam Boiler changes its mode
-   * to degraded mode , and the normal functioning remains the same.
+   * This method decodes the messages received in a single pass and then updates the
+   * variables with the values received, so the mode logic always sees the level and
+   * steam readings of this cycle whatever order the messages arrived in.
+ * @param incoming
+ *     The set of incoming messages from the physical units.
  * @param outgoing
- *     Messages generated during the execution of this method should be
+ *      Messages generated during the execution of this method should be
  *            written here.
  */
-  private void degraded(Mailbox outgoing) {
-    assert outgoing != null;
-    //checks for the failures
-    waterLevelCheck(outgoing);
-    checkWaterLevelFailure(outgoing);
-    
-    maintainWaterLevel(outgoing);
-
-    assert getWaterLevel() > getM1() && getWaterLevel() < getM2();
+  private void checkMessage(final Mailbox incoming, final Mailbox outgoing) {
+    TickSnapshot received = this.snapshot;
+    received.decode(incoming);
+    //turns the pumps and pump controllers on or off.
+    this.pumpStore.setOn(received.getPumpReported(), received.getPumpOn());
+    this.pumpStore.setControllerOn(received.getControllerReported(), received.getControllerOn());
+    //sets the water level and the steam level.
+    if (received.isLevelReported()) {
+      setWaterLevel(received.getLevel());
+    }
+    if (received.isSteamReported()) {
+      setsteamV(received.getSteam());
+    }
+    //tells the program about the current mode of the boiler.
+    if (received.getMode() != null) {
+      setMode(received.getMode());
+    }
+    //tells the program whether physical units are ready or not.
+    if (received.isReady()) {
+      setArePhysicalUnitsReadv(true);
+    }
+    //tells the program whether steam boiler is waiting or not.
+    if (received.isWaiting()) {
+      steamBoilerWaiting(outgoing);
+    }
   }
 
   /**
-   * Normal mode maintains the water level between N1 and N2
-   * and if any failure occurs the mode is changed.
+   * Program goes into emergency stop mode.
  * @param outgoing
- *   Messages generated during the execution of this method should be
+ *    Messages generated during the execution of this method should be
  *            written here.
  */
-  private void normal(Mailbox outgoing) {
-    assert outgoing != null;
-
-    waterLevelCheck(outgoing);
-    checkWaterLevelFailure(outgoing);
-    checkSteamFailure(outgoing);
-    if ((getsteamV() <= 0 || getsteamV() >= getTankCapacity())
-         && (getWaterLevel() < 0 || getWaterLevel() >= getTankCapacity())) {
-      emergencyStop(outgoing);
-    }
-    maintainWaterLevel(outgoing);
+  private void emergencyStop(Mailbox outgoing) {
+    outgoing.send(newMessage(Mailbox.MessageKind.MODE_m, Mailbox.Mode.EMERGENCY_STOP));
   }
 
   /**
@@ -231,65 +439,111 @@ public class SteamBoilerController {
  *            written here.
  */
   private void maintainWaterLevel(Mailbox outgoing) {
-    if (getWaterLevel() > getN2()) {
-      openPumps(1, outgoing);
-    } else if (getWaterLevel() < getN1()) {
-      openPumps(w, outgoing);
-      // maintain the water level between the midpoint of N1 and N2
-    } else if (getWaterLevel() > (getN1() + (getN2() - getN1()) * (50.0 / 100.0))) {
-      openPumps(getOpenedPumps() - 1, outgoing);
-    } else if (getWaterLevel() < (getN1() + (getN2() - getN1()) * (50.0 / 100.0))) {
-      openPumps(getOpenedPumps() + 1, outgoing);
+    double level = getControlLevel();
+    if (this.predictiveControl) {
+      predictivePumps(outgoing);
+    } else if (level > getN2()) {
+      openPumps(getStepCapacity(), outgoing);
+    } else if (level < getN1()) {
+      openPumps(getHealthyCapacity(), outgoing);
+      // maintain the water level between the midpoint of N1 and N2, a step of about
+      // one pump at a time.
+    } else if (level > (getN1() + (getN2() - getN1()) * (50.0 / 100.0))) {
+      openPumps(getOpenCapacity() - getStepCapacity(), outgoing);
+    } else if (level < (getN1() + (getN2() - getN1()) * (50.0 / 100.0))) {
+      openPumps(getOpenCapacity() + getStepCapacity(), outgoing);
     }
   }
 
   /**
-   * When the program starts it enters into the initialisation mode
-   * and maintains the water level for starting , if the water level is 
-   * between the margins it sends the message for physical units ready  
-   * and then program is shifted into Normal mode.
+   * Predicts the water level at the next clock signal from the current reading, the
+   * steam leaving the boiler, the valve and the pumps commanded open, and opens the
+   * healthy pumps whose combined capacity brings the level closest to the midpoint of
+   * N1 and N2 over the next few cycles. If the pumps already open keep the level within
+   * a quarter of the normal range of the midpoint they are left alone, to avoid
+   * switching pumps on every cycle.
  * @param outgoing
  *    Messages generated during the execution of this method should be
  *            written here.
  */
-  private void initialisation(Mailbox outgoing) {
-    assert outgoing != null;
-    //check failure.
-    if (getWaterLevel() < 0 || getWaterLevel() > getTankCapacity()) {
-      emergencyStop(outgoing);
+  private void predictivePumps(Mailbox outgoing) {
+    double target = (getN1() + getN2()) / 2;
+    double outflow = estimateSteamRate();
+    if (this.isValveOpen) {
+      outflow += this.evacuationRate;
     }
-    
-    if (isArePhysicalUnitsReadv()) {
-      //close the valve if it is open.
-      if (this.isValveOpen) {
-        outgoing.send(new Message(Mailbox.MessageKind.VALVE));
-        this.isValveOpen = false;
-      }
-      
-      setMode(Mailbox.Mode.NORMAL);
-      outgoing.send(new Message(Mailbox.MessageKind.MODE_m, getMode()));
+    double predicted = getControlLevel() + (this.previousInflow - outflow) * CYCLE_TIME;
+    if (this.previousWaterLevel >= 0 && Math.abs(predicted - target) <= (getN2() - getN1()) / 4) {
       return;
     }
-    //if physical units are not ready then just stay in initialisation mode.
-    outgoing.send(new Message(MessageKind.MODE_m, Mailbox.Mode.INITIALISATION));
+    // the inflow needed to reach the target within the prediction horizon.
+    double inflow = (target - getControlLevel()) / (PREDICTION_HORIZON * CYCLE_TIME) + outflow;
+    openPumps(inflow, outgoing);
   }
 
+  /**
+   * It returns the rate at which steam is leaving the boiler. STEAM_v is only a sample
+   * of the steam produced and says nothing about its units, so the rate is worked out
+   * from the change in water level over the last cycle and the water pumped in.
+ * @return
+ *    The steam rate in litres per second.
+ */
+  private double estimateSteamRate() {
+    if (this.previousWaterLevel < 0 || getsteamV() == 0) {
+      // no steam is being produced yet, or there is nothing to compare with.
+      return 0;
+    }
+    double outflow = this.previousInflow
+        - (getControlLevel() - this.previousWaterLevel) / CYCLE_TIME;
+    if (this.isValveOpen) {
+      outflow -= this.evacuationRate;
+    }
+    return Math.max(0, Math.min(outflow, this.maximalSteamRate));
+  }
 
   /**
-   * It returns the number of pumps active at the moment.
+   * Remembers the water level and the water being pumped in during the coming cycle,
+   * so the steam rate can be worked out on the next clock signal.
+   */
+  private void recordCycle() {
+    double inflow = 0;
+    for (int index = 0; index < this.pumpStore.size(); index++) {
+      if (this.pumpStore.isCommandedOpen(index) && !this.pumpStore.isBroken(index)) {
+        inflow += this.pumpStore.getCapacity(index);
+      }
+    }
+    this.previousWaterLevel = getControlLevel();
+    this.previousInflow = inflow;
+  }
+
+  /**
+   * When the physical units are ready in initialisation mode the valve is
+   * closed if it is open and the program is shifted into Normal mode.
+ * @param outgoing
+ *    Messages generated during the execution of this method should be
+ *            written here.
+ */
+  private void start(Mailbox outgoing) {
+    assert outgoing != null;
+    //close the valve if it is open.
+    if (this.isValveOpen) {
+      outgoing.send(newMessage(Mailbox.MessageKind.VALVE));
+      this.isValveOpen = false;
+    }
+    outgoing.send(newMessage(Mailbox.MessageKind.MODE_m, Mailbox.Mode.NORMAL));
+  }
+
+  /**
+   * It returns the number of pumps active at the moment, this is maintained by the
+   * pump store as pumps change state.
  * @return
  *     The number of pumps active.
  */
   private int getOpenedPumps() {
-    setOpenPumps(0);
-    for (int index = 0; index < getPumps().length; index++) {
-      if (getPumps()[index].isOn() && !getPumps()[index].isBroken()) {
-        setOpenPumps(getOpenPumps() + 1);
-      }
-    }
-    assert getOpenPumps() <= getPumps().length;
-    assert getOpenPumps() > -1;
-    return getOpenPumps();
+    int opened = this.pumpStore.countOpen();
+    assert opened <= this.pumpStore.size();
+    assert opened > -1;
+    return opened;
   }
 
   /**
@@ -306,61 +560,130 @@ public class SteamBoilerController {
     assert outgoing != null;
     
     //if water level is below the N1 then open pumps.
-    if (getWaterLevel() < getN1()) {
-      double cap = (getM1() + getN2() / 2) - getWaterLevel();
-      cap /= (15 * getPumps()[0].getPumpCapacity());
-
-      cap = Math.min(cap, getPumps().length);
-      openPumps((int) cap, outgoing);
+    if (getWaterLevel() < getN1() && this.predictiveControl) {
+      // this leaves the pumps alone if they already bring the level near the midpoint.
+      predictivePumps(outgoing);
+    } else if (getWaterLevel() < getN1()) {
+      // the water needed, pumped in over three cycles. The inflow is rounded down to a
+      // whole number of steps so the boiler is not overfilled, but is at least one step
+      // since the level is still below N1.
+      double litres = (getM1() + getN2() / 2) - getWaterLevel();
+      double step = getStepCapacity();
+      if (step > 0) {
+        openPumps(Math.max(1, Math.floor(litres / (3 * CYCLE_TIME) / step)) * step, outgoing);
+      }
       //if water is more than N2 then open the valve until it comes between N1 and N2.
     } else if (getWaterLevel() >= getN2()) {
-      outgoing.send(new Message(Mailbox.MessageKind.VALVE));
+      outgoing.send(newMessage(Mailbox.MessageKind.VALVE));
       this.isValveOpen = true;
       //if water level is equal to n1 then just open one pump.
     } else if (getWaterLevel() == getN1()) {
-      openPumps(1, outgoing);
+      openPumps(getStepCapacity(), outgoing);
     }
 
     assert getWaterLevel() <= getN1() || getWaterLevel() >= getN2();
   }
 
   /**
-   * This method opens the number of pumps needed.
+   * This method opens the working pumps whose combined capacity is closest to the
+   * inflow needed, only the pumps whose commanded state changes are sent a message.
    * 
- * @param number
- *    The number of pumps to be opened.
+ * @param inflow
+ *    The inflow needed in litres per second.
  * @param outgoing
  *    Messages generated during the execution of this method should be
  *            written here.
  */
-  private void openPumps(int number, Mailbox outgoing) {
-    assert number <= getPumps().length;
+  private void openPumps(double inflow, Mailbox outgoing) {
+    // the pumps suspected by the pump failure detector are opened last, so that they
+    // are switched on their own and the mass balance can tell them apart.
+    this.pumpSelector.select(inflow, this.pumpDetector.getSuspects());
+    // closing every pump and then reopening would have sent this many commands.
+    int commands = this.pumpStore.size();
+    for (int index = 0; index < this.pumpStore.size(); index++) {
+      boolean open = this.pumpSelector.isSelected(index);
+      if (open) {
+        commands++;
+      }
+      commandPump(index, open, outgoing);
+    }
+    this.pumpCommandsSaved += commands;
+  }
 
-    closeAllPumps(outgoing);
-    for (int index = 0; index < number; index++) {
-      if (index < getPumps().length && !getPumps()[index].isBroken()) {
-        getPumps()[index].setIsOn(true);
-        outgoing.send(new Message(Mailbox.MessageKind.OPEN_PUMP_n, index));
+  /**
+   * It returns the combined capacity of the pumps which are on and not broken, the
+   * inflow the pumps which can still be chosen are giving.
+ * @return
+ *    The capacity in litres per second.
+ */
+  private double getOpenCapacity() {
+    double capacity = 0;
+    for (int index = 0; index < this.pumpStore.size(); index++) {
+      if (this.pumpStore.isOn(index) && !this.pumpStore.isBroken(index)) {
+        capacity += this.pumpStore.getCapacity(index);
       }
     }
+    return capacity;
   }
 
   /**
-   * This method closes all the pumps.
-   * 
+   * It returns the combined capacity of the pumps which are not broken.
+ * @return
+ *    The capacity in litres per second.
+ */
+  private double getHealthyCapacity() {
+    double capacity = 0;
+    for (int index = 0; index < this.pumpStore.size(); index++) {
+      if (!this.pumpStore.isBroken(index)) {
+        capacity += this.pumpStore.getCapacity(index);
+      }
+    }
+    return capacity;
+  }
+
+  /**
+   * It returns the mean capacity of the pumps which are not broken, the step by which
+   * the inflow is changed. On a boiler whose pumps all have the same capacity this is
+   * one pump.
+ * @return
+ *    The capacity in litres per second, or 0 if every pump is broken.
+ */
+  private double getStepCapacity() {
+    double capacity = 0;
+    int healthy = 0;
+    for (int index = 0; index < this.pumpStore.size(); index++) {
+      if (!this.pumpStore.isBroken(index)) {
+        capacity += this.pumpStore.getCapacity(index);
+        healthy++;
+      }
+    }
+    return healthy == 0 ? 0 : capacity / healthy;
+  }
+
+  /**
+   * Sets the state of a pump and sends OPEN_PUMP_n or CLOSE_PUMP_n only when it
+   * differs from the state the pump was last commanded into.
+ * @param index
+ *    The pump to command.
+ * @param open
+ *    Whether the pump should be open.
  * @param outgoing
  *    Messages generated during the execution of this method should be
  *            written here.
  */
-  private void closeAllPumps(Mailbox outgoing) {
-    assert getOpenedPumps() > -1;
-    assert outgoing != null;
-    
-    for (int index = 0; index < getPumps().length; index++) {
-      getPumps()[index].setIsOn(false);
-      outgoing.send(new Message(Mailbox.MessageKind.CLOSE_PUMP_n, index));
+  private void commandPump(int index, boolean open, Mailbox outgoing) {
+    this.pumpStore.setOn(index, open);
+    if (this.pumpStore.isCommandedOpen(index) == open) {
+      return;
     }
-    assert getOpenedPumps() == 0;
+    this.pumpStore.setCommandedOpen(index, open);
+    if (open) {
+      outgoing.send(newMessage(Mailbox.MessageKind.OPEN_PUMP_n, index));
+    } else {
+      outgoing.send(newMessage(Mailbox.MessageKind.CLOSE_PUMP_n, index));
+    }
+    this.pumpCommandsSent++;
+    this.pumpCommandsSaved--;
   }
 
   /**
@@ -370,17 +693,10 @@ public class SteamBoilerController {
  *    Messages generated during the execution of this method should be
  *            written here.
  */
-  private void checkWaterLevelFailure(Mailbox outgoing) {
+  private void levelFailure(Mailbox outgoing) {
     assert outgoing != null;
-
-    if (getWaterLevel() < 0 || getWaterLevel() >= getTankCapacity()) {
-      outgoing.send(new Message(Mailbox.MessageKind.LEVEL_FAILURE_DETECTION));
-      outgoing.send(new Message(Mailbox.MessageKind.MODE_m, Mailbox.Mode.RESCUE));
-    } else {
-      return;
-    }
-
-    assert getWaterLevel() < 0 || getWaterLevel() >= getTankCapacity();
+    outgoing.send(newMessage(Mailbox.MessageKind.LEVEL_FAILURE_DETECTION));
+    outgoing.send(newMessage(Mailbox.MessageKind.MODE_m, Mailbox.Mode.RESCUE));
   }
 
   /**
@@ -389,36 +705,38 @@ public class SteamBoilerController {
  *    Messages generated during the execution of this method should be
  *            written here.
  */
-  private void checkSteamFailure(Mailbox outgoing) {
+  private void steamFailure(Mailbox outgoing) {
     assert outgoing != null;
-
-    if (getsteamV() < 0 || getsteamV() >= getTankCapacity()) {
-      outgoing.send(new Message(Mailbox.MessageKind.STEAM_FAILURE_DETECTION));
-      outgoing.send(new Message(Mailbox.MessageKind.MODE_m, Mailbox.Mode.DEGRADED));
-    } else {
-      return;
-    }
-
-    assert getsteamV() < 0 || getsteamV() >= getTankCapacity();
+    outgoing.send(newMessage(Mailbox.MessageKind.STEAM_FAILURE_DETECTION));
+    outgoing.send(newMessage(Mailbox.MessageKind.MODE_m, Mailbox.Mode.DEGRADED));
+    this.steamFailed = true;
   }
 
   /**
-   * Program goes into emergency mode if water is not in the bounds of 
-   * M1 and M2.
+   * Reports the pumps and pump controllers found to have failed on this clock signal.
+   * The failed pumps are already marked broken, so they are no longer opened.
+ * @param next
+ *    The mode the controller is moving to.
  * @param outgoing
  *    Messages generated during the execution of this method should be
  *            written here.
  */
-  private void waterLevelCheck(Mailbox outgoing) {
-    assert outgoing != null;
+  private void pumpFailure(Mailbox.Mode next, Mailbox outgoing) {
+    sendFailures(MessageKind.PUMP_FAILURE_DETECTION_n,
+        this.pumpDetector.getNewPumpFailures(), outgoing);
+    sendFailures(MessageKind.PUMP_CONTROL_FAILURE_DETECTION_n,
+        this.pumpDetector.getNewControlFailures(), outgoing);
+    outgoing.send(newMessage(Mailbox.MessageKind.MODE_m, next));
+  }
 
-    if (getWaterLevel() < getM1() || getWaterLevel() > getM2()) {
-      emergencyStop(outgoing);
-    } else {
-      return;
+  private void sendFailures(MessageKind kind, long[] failed, Mailbox outgoing) {
+    for (int word = 0; word < failed.length; word++) {
+      long bits = failed[word];
+      while (bits != 0) {
+        outgoing.send(newMessage(kind, (word << 6) + Long.numberOfTrailingZeros(bits)));
+        bits &= bits - 1;
+      }
     }
-
-    assert getWaterLevel() < getM1() || getWaterLevel() > getM2();
   }
 
   /**
@@ -433,26 +751,67 @@ public class SteamBoilerController {
     assert outgoing != null;
     //check failure.
     if (getsteamV() != 0) {
-      outgoing.send(new Message(Mailbox.MessageKind.MODE_m, Mailbox.Mode.EMERGENCY_STOP));
+      outgoing.send(newMessage(Mailbox.MessageKind.MODE_m, Mailbox.Mode.EMERGENCY_STOP));
     }
     //if water level is between n1 and n2 program is ready.
     if (getN1() < getWaterLevel() && getWaterLevel() < getN2()) {
-      outgoing.send(new Message(Mailbox.MessageKind.PROGRAM_READY));
+      outgoing.send(newMessage(Mailbox.MessageKind.PROGRAM_READY));
     } else {
       adjustWaterLevel(outgoing);
     }
   }
 
+  /**
+   * Creates a message to be sent, taking it from the message pool when pooling is enabled.
+ * @param kind
+ *    The kind of message.
+ * @return
+ *    The message.
+ */
+  private Message newMessage(MessageKind kind) {
+    if (this.messagePooling) {
+      return this.messagePool.acquire(kind);
+    }
+    return new Message(kind);
+  }
+
+  private Message newMessage(MessageKind kind, Mailbox.Mode modeParameter) {
+    if (this.messagePooling) {
+      return this.messagePool.acquire(kind, modeParameter);
+    }
+    return new Message(kind, modeParameter);
+  }
+
+  private Message newMessage(MessageKind kind, int intParameter) {
+    if (this.messagePooling) {
+      return this.messagePool.acquire(kind, intParameter);
+    }
+    return new Message(kind, intParameter);
+  }
+
   /**
  * This message is displayed in the simulation window, and enables a limited
  * form of debug output. The content of the message has no material effect on
  * the system, and can be whatever is desired. In principle, however, it should
  * display a useful message indicating the current state of the controller.
+ * It may be called from any thread, and is built from the status published
+ * at the end of the last clock signal.
  *
  * @return
+ *    The mode, water level, steam output and open pumps.
  */
-  public static String getStatusMessage() {
-    return "MY STATUS"; //$NON-NLS-1$
+  public String getStatusMessage() {
+    return getStatus().toString();
+  }
+
+  /**
+   * Returns the status published at the end of the last clock signal. This may be
+   * called from any thread, without blocking or being blocked by clock().
+ * @return
+ *    The status.
+ */
+  public ControllerStatus getStatus() {
+    return this.status.read();
   }
 
   // ---------------------------Getters And
@@ -477,8 +836,99 @@ public class SteamBoilerController {
     return this.pumps;
   }
 
+  /**
+   * Replaces the pumps of this controller, copying their state into a new store.
+ * @param pumps
+ *    The pumps to use.
+ */
   public void setPumps(Pump[] pumps) {
-    this.pumps = pumps;
+    PumpStore store = new PumpStore(pumps.length);
+    for (int index = 0; index < pumps.length; index++) {
+      store.setOn(index, pumps[index].isOn());
+      store.setControllerOn(index, pumps[index].isControllerOn());
+      store.setBroken(index, pumps[index].isBroken());
+      store.setCommandedOpen(index, pumps[index].isCommandedOpen());
+      store.setCapacity(index, pumps[index].getPumpCapacity());
+    }
+    this.pumpStore = store;
+    this.pumps = store.getPumps();
+    this.pumpSelector = new PumpSelector(store);
+    this.snapshot = new TickSnapshot(pumps.length);
+    this.filter = newFilter();
+    this.pumpDetector = new PumpFailureDetector(pumps.length);
+    this.levelEstimator = newEstimator();
+  }
+
+  public PumpStore getPumpStore() {
+    return this.pumpStore;
+  }
+
+  /**
+   * The messages received on the last clock signal.
+ * @return
+ *    The snapshot, which is reused on the next clock signal.
+ */
+  public TickSnapshot getSnapshot() {
+    return this.snapshot;
+  }
+
+  /**
+   * The filter which checks the level and steam readings against the mass balance of
+   * the boiler.
+ * @return
+ *    The filter.
+ */
+  public MassBalanceFilter getMassBalanceFilter() {
+    return this.filter;
+  }
+
+  /**
+   * The detector which checks the pumps and their controllers.
+ * @return
+ *    The detector.
+ */
+  public PumpFailureDetector getPumpFailureDetector() {
+    return this.pumpDetector;
+  }
+
+  /**
+   * The estimator which follows the water level once the level sensor has failed.
+ * @return
+ *    The estimator.
+ */
+  public LevelEstimator getLevelEstimator() {
+    return this.levelEstimator;
+  }
+
+  public ModeTable getModeTable() {
+    return this.modeTable;
+  }
+
+  public ControllerMetrics getMetrics() {
+    return this.metrics;
+  }
+
+  /**
+   * Sets the metrics recorded into on every clock signal.
+ * @param metrics
+ *    The metrics, or null to record nothing.
+ */
+  public void setMetrics(ControllerMetrics metrics) {
+    this.metrics = metrics;
+  }
+
+  public StateFile getStateFile() {
+    return this.stateFile;
+  }
+
+  /**
+   * When a state file is set the state of this controller is saved into it at the
+   * end of every clock signal.
+ * @param stateFile
+ *    The file to save into, or null to stop saving.
+ */
+  public void setStateFile(StateFile stateFile) {
+    this.stateFile = stateFile;
   }
 
   public double getWaterLevel() {
@@ -537,12 +987,56 @@ public class SteamBoilerController {
     this.m1 = m1;
   }
 
-  public int getOpenPumps() {
-    return this.openPumps;
+  public boolean isPredictiveControl() {
+    return this.predictiveControl;
+  }
+
+  /**
+   * When predictive control is enabled the number of pumps is chosen from a prediction
+   * of the water level at the next cycle, rather than being moved up or down by one
+   * pump per cycle.
+ * @param predictiveControl
+ *    Whether the pumps should be chosen predictively.
+ */
+  public void setPredictiveControl(boolean predictiveControl) {
+    this.predictiveControl = predictiveControl;
+  }
+
+  public boolean isMessagePooling() {
+    return this.messagePooling;
+  }
+
+  /**
+   * When message pooling is enabled the messages sent by clock() are taken from a
+   * preallocated pool and reused on the next clock cycle, so the receiver must have
+   * consumed them before the controller is clocked again.
+ * @param messagePooling
+ *    Whether outgoing messages should be taken from the pool.
+ */
+  public void setMessagePooling(boolean messagePooling) {
+    this.messagePooling = messagePooling;
+  }
+
+  public MessagePool getMessagePool() {
+    return this.messagePool;
   }
 
-  public void setOpenPumps(int openPumps) {
-    this.openPumps = openPumps;
+  public long getPumpCommandsSent() {
+    return this.pumpCommandsSent;
+  }
+
+  /**
+   * The number of pump commands which were not sent because the pump was already
+   * in the commanded state, compared to closing every pump and reopening the ones needed.
+ * @return
+ *    The number of commands saved.
+ */
+  public long getPumpCommandsSaved() {
+    return this.pumpCommandsSaved;
+  }
+
+  public int getOpenPumps() {
+    return getOpenedPumps();
   }
 
 }
\ No newline at end of file
@@ -0,0 +1,179 @@
+package steam.boiler.core;
+
+import steam.boiler.util.Mailbox;
+import steam.boiler.util.Mailbox.Message;
+
+/**
+ * Everything the physical units reported on one clock signal, decoded in a single
+ * pass over the incoming mailbox. Pump and pump controller states are collected as
+ * bit sets, in the same layout as {@link PumpStore}, so that they can be applied to
+ * the store a word at a time. A snapshot is reset and reused on every clock signal.
+ * @author Harsh
+ *
+ */
+public class TickSnapshot {
+
+  private final long[] pumpReported;
+  private final long[] pumpOn;
+  private final long[] controllerReported;
+  private final long[] controllerOn;
+  private double level;
+  private double steam;
+  private boolean levelReported;
+  private boolean steamReported;
+  private boolean waiting;
+  private boolean ready;
+  private Mailbox.Mode mode;
+  private int messages;
+
+  /**
+   * Construct an empty snapshot for a boiler with a given number of pumps.
+ * @param pumps
+ *    The number of pumps.
+ */
+  public TickSnapshot(int pumps) {
+    int words = (pumps + 63) >>> 6;
+    this.pumpReported = new long[words];
+    this.pumpOn = new long[words];
+    this.controllerReported = new long[words];
+    this.controllerOn = new long[words];
+  }
+
+  /**
+   * Replaces the contents of this snapshot with the messages in a mailbox. Messages
+   * which the controller does not act on are ignored.
+ * @param incoming
+ *    The set of incoming messages from the physical units.
+ */
+  public void decode(Mailbox incoming) {
+    reset();
+    this.messages = incoming.size();
+    for (int index = 0; index < this.messages; index++) {
+      Message message = incoming.read(index);
+      switch (message.getKind()) {
+        case MODE_m:
+          this.mode = message.getModeParameter();
+          break;
+        case STEAM_BOILER_WAITING:
+          this.waiting = true;
+          break;
+        case PHYSICAL_UNITS_READY:
+          this.ready = true;
+          break;
+        case PUMP_STATE_n_b:
+          report(this.pumpReported, this.pumpOn, message);
+          break;
+        case PUMP_CONTROL_STATE_n_b:
+          report(this.controllerReported, this.controllerOn, message);
+          break;
+        case LEVEL_v:
+          this.level = message.getDoubleParameter();
+          this.levelReported = true;
+          break;
+        case STEAM_v:
+          this.steam = message.getDoubleParameter();
+          this.steamReported = true;
+          break;
+        default:
+          break;
+      }
+    }
+  }
+
+  /**
+   * Empties this snapshot.
+   */
+  public void reset() {
+    for (int word = 0; word < this.pumpReported.length; word++) {
+      this.pumpReported[word] = 0;
+      this.pumpOn[word] = 0;
+      this.controllerReported[word] = 0;
+      this.controllerOn[word] = 0;
+    }
+    this.level = 0;
+    this.steam = 0;
+    this.levelReported = false;
+    this.steamReported = false;
+    this.waiting = false;
+    this.ready = false;
+    this.mode = null;
+    this.messages = 0;
+  }
+
+  private static void report(long[] reported, long[] on, Message message) {
+    int pump = message.getIntegerParameter();
+    long bit = 1L << pump;
+    reported[pump >>> 6] |= bit;
+    if (message.getBooleanParameter()) {
+      on[pump >>> 6] |= bit;
+    } else {
+      on[pump >>> 6] &= ~bit;
+    }
+  }
+
+  //----Getters-------
+
+  public double getLevel() {
+    return this.level;
+  }
+
+  public double getSteam() {
+    return this.steam;
+  }
+
+  public boolean isLevelReported() {
+    return this.levelReported;
+  }
+
+  public boolean isSteamReported() {
+    return this.steamReported;
+  }
+
+  public boolean isWaiting() {
+    return this.waiting;
+  }
+
+  public boolean isReady() {
+    return this.ready;
+  }
+
+  /**
+   * The mode reported by the physical units, if any.
+ * @return
+ *    The last MODE_m parameter received, or null if there was none.
+ */
+  public Mailbox.Mode getMode() {
+    return this.mode;
+  }
+
+  public int getMessages() {
+    return this.messages;
+  }
+
+  /**
+   * The pumps for which PUMP_STATE_n_b was received, one bit per pump.
+ * @return
+ *    The bit set, which must not be modified.
+ */
+  long[] getPumpReported() {
+    return this.pumpReported;
+  }
+
+  long[] getPumpOn() {
+    return this.pumpOn;
+  }
+
+  /**
+   * The pumps for which PUMP_CONTROL_STATE_n_b was received, one bit per pump.
+ * @return
+ *    The bit set, which must not be modified.
+ */
+  long[] getControllerReported() {
+    return this.controllerReported;
+  }
+
+  long[] getControllerOn() {
+    return this.controllerOn;
+  }
+
+}
@@ -0,0 +1,59 @@
+package steam.boiler.journal;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.file.Paths;
+
+import steam.boiler.util.Mailbox.Message;
+import steam.boiler.util.Mailbox.MessageKind;
+
+/**
+ * Prints a journal as text, one message per line in the form
+ * <code>tick direction message</code>, where direction is <code>in</code> for messages
+ * received by the controller and <code>out</code> for messages it sent.
+ *
+ * <p>Run with <code>java steam.boiler.journal.JournalDump directory [from [to]]</code>
+ * to print the ticks from <code>from</code> to <code>to</code> inclusive.
+ *
+ * @author Harsh
+ *
+ */
+public class JournalDump {
+
+  /**
+   * Entry point.
+   *
+   * @param args
+   *          The journal directory, and optionally the first and last tick to print.
+   * @throws IOException
+   *           If the journal cannot be read.
+   */
+  public static void main(String[] args) throws IOException {
+    if (args.length < 1 || args.length > 3) {
+      System.err.println("usage: JournalDump directory [from [to]]");
+      System.exit(1);
+    }
+    int from = args.length > 1 ? Integer.parseInt(args[1]) : 0;
+    int to = args.length > 2 ? Integer.parseInt(args[2]) : Integer.MAX_VALUE;
+    Message message = new Message(MessageKind.STOP);
+    BufferedWriter out = new BufferedWriter(new OutputStreamWriter(System.out));
+    try (JournalReader reader = new JournalReader(Paths.get(args[0]))) {
+      while (reader.next()) {
+        int tick = reader.getTick();
+        if (tick > to) {
+          // the ticks are in order, so nothing after this is printed.
+          break;
+        }
+        if (tick < from) {
+          continue;
+        }
+        out.write(Integer.toString(tick));
+        out.write(reader.isOutgoing() ? " out " : " in ");
+        out.write(reader.getMessage(message).toString());
+        out.newLine();
+      }
+    }
+    out.flush();
+  }
+}
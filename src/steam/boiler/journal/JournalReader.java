@@ -0,0 +1,189 @@
+package steam.boiler.journal;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+import steam.boiler.core.Messages;
+import steam.boiler.util.Mailbox;
+import steam.boiler.util.Mailbox.Message;
+import steam.boiler.util.Mailbox.MessageKind;
+
+/**
+ * Reads back a journal written by {@link JournalWriter}, one record at a time, oldest
+ * first. Only the records committed when a segment is opened are read. The reader
+ * keeps a single current record, whose fields are available through the getters
+ * after each successful call to next().
+ *
+ * @author Harsh
+ *
+ */
+public class JournalReader implements Closeable {
+
+  private static final MessageKind[] KINDS = MessageKind.values();
+  private static final Mailbox.Mode[] MODES = Mailbox.Mode.values();
+
+  private final List<Path> segments;
+  private int segment = -1;
+  private FileChannel channel;
+  private MappedByteBuffer map;
+  private long count;
+  private long position;
+  private int offset = -1;
+  private boolean pending;
+
+  /**
+   * Opens the journal in a given directory.
+   *
+   * @param directory
+   *          The directory holding the segments.
+   * @throws IOException
+   *           If the directory cannot be read.
+   */
+  public JournalReader(Path directory) throws IOException {
+    this.segments = JournalWriter.listSegments(directory);
+  }
+
+  /**
+   * Moves to the next record.
+   *
+   * @return True if there is a next record, false at the end of the journal.
+   * @throws IOException
+   *           If a segment cannot be read or is not a journal segment.
+   */
+  public boolean next() throws IOException {
+    if (this.pending) {
+      this.pending = false;
+      return true;
+    }
+    while (this.map == null || this.position == this.count) {
+      if (!openNextSegment()) {
+        this.offset = -1;
+        return false;
+      }
+    }
+    this.offset = JournalWriter.HEADER_SIZE + (int) this.position * JournalWriter.RECORD_SIZE;
+    this.position++;
+    return true;
+  }
+
+  /**
+   * Reads every message of the next tick into a pair of mailboxes, which are cleared
+   * first.
+   *
+   * @param incoming
+   *          Receives the messages the controller received on the tick.
+   * @param outgoing
+   *          Receives the messages the controller sent on the tick.
+   * @return The tick read, or -1 at the end of the journal.
+   * @throws IOException
+   *           If a segment cannot be read.
+   */
+  public int readTick(Mailbox incoming, Mailbox outgoing) throws IOException {
+    incoming.clearAll();
+    outgoing.clearAll();
+    if (!next()) {
+      return -1;
+    }
+    int tick = getTick();
+    do {
+      if (getTick() != tick) {
+        // leave this record for the next call.
+        this.pending = true;
+        break;
+      }
+      (isOutgoing() ? outgoing : incoming).send(getMessage());
+    } while (next());
+    return tick;
+  }
+
+  /**
+   * The tick (transmission cycle) at which the current record was exchanged.
+   *
+   * @return The tick number.
+   */
+  public int getTick() {
+    return this.map.getInt(this.offset);
+  }
+
+  /**
+   * Whether the current record was sent by the controller.
+   *
+   * @return True if it was sent by the controller, false if it was received.
+   */
+  public boolean isOutgoing() {
+    return this.map.get(this.offset + 4) != 0;
+  }
+
+  /**
+   * The kind of the message in the current record.
+   *
+   * @return The message kind.
+   */
+  public MessageKind getKind() {
+    return KINDS[this.map.get(this.offset + 5)];
+  }
+
+  /**
+   * Decodes the current record into a new message.
+   *
+   * @return The message.
+   */
+  public Message getMessage() {
+    return getMessage(new Message(MessageKind.STOP));
+  }
+
+  /**
+   * Decodes the current record into an existing message.
+   *
+   * @param message
+   *          The message to overwrite.
+   * @return The message.
+   */
+  public Message getMessage(Message message) {
+    MessageKind kind = getKind();
+    switch (Messages.shape(kind)) {
+      case Messages.MODE:
+        return message.set(kind, MODES[this.map.get(this.offset + 6)]);
+      case Messages.INTEGER:
+        return message.set(kind, this.map.getInt(this.offset + 8));
+      case Messages.DOUBLE:
+        return message.set(kind, this.map.getDouble(this.offset + 16));
+      case Messages.INTEGER_BOOLEAN:
+        return message.set(kind, this.map.getInt(this.offset + 8),
+            this.map.get(this.offset + 7) != 0);
+      default:
+        return message.set(kind);
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (this.channel != null) {
+      this.channel.close();
+    }
+  }
+
+  private boolean openNextSegment() throws IOException {
+    close();
+    this.map = null;
+    if (++this.segment >= this.segments.size()) {
+      return false;
+    }
+    Path path = this.segments.get(this.segment);
+    this.channel = FileChannel.open(path, StandardOpenOption.READ);
+    this.map = this.channel.map(FileChannel.MapMode.READ_ONLY, 0, this.channel.size());
+    if (this.map.getInt(0) != JournalWriter.MAGIC
+        || this.map.getInt(4) != JournalWriter.VERSION
+        || this.map.getInt(8) != JournalWriter.RECORD_SIZE) {
+      throw new IOException("not a journal segment: " + path);
+    }
+    this.count = this.map.getLong(16);
+    this.position = 0;
+    return true;
+  }
+}
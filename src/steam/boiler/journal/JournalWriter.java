@@ -0,0 +1,336 @@
+package steam.boiler.journal;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import steam.boiler.core.Messages;
+import steam.boiler.util.Mailbox;
+import steam.boiler.util.Mailbox.Message;
+
+/**
+ * Appends every message exchanged between the controller and the physical units to a
+ * binary journal. The journal is a directory of segment files, each of which holds a
+ * fixed number of fixed-width records and is written through a memory mapping. When a
+ * segment is full the next one is started, and the oldest segments can be deleted so
+ * that the journal does not grow without bound. Writing a record is a handful of
+ * stores into mapped memory, nothing is formatted and nothing is allocated.
+ *
+ * <p>A segment starts with a header of {@link #HEADER_SIZE} bytes:
+ *
+ * <ul>
+ * <li>0: magic number {@link #MAGIC}</li>
+ * <li>4: format version {@link #VERSION}</li>
+ * <li>8: record size {@link #RECORD_SIZE}</li>
+ * <li>12: the number of records the segment has room for</li>
+ * <li>16: the number of records committed, as a long</li>
+ * </ul>
+ *
+ * <p>followed by the records, each of which is:
+ *
+ * <ul>
+ * <li>0: the tick (transmission cycle) number, as an int</li>
+ * <li>4: 1 if the message was sent by the controller, 0 if it was received</li>
+ * <li>5: the ordinal of the message kind</li>
+ * <li>6: the ordinal of the mode parameter, or -1</li>
+ * <li>7: the boolean parameter, as 0 or 1</li>
+ * <li>8: the integer parameter, as an int</li>
+ * <li>12: unused</li>
+ * <li>16: the double parameter, as a double</li>
+ * </ul>
+ *
+ * <p>The record count in the header is only updated by commit(), which record() calls
+ * at the end of every tick, so a reader never sees half a tick. A tick which does not
+ * fit in what is left of a segment is written to the next one.
+ *
+ * @author Harsh
+ *
+ */
+public class JournalWriter implements Closeable {
+
+  /**
+   * The magic number at the start of every segment.
+   */
+  public static final int MAGIC = 0x53424A31;
+
+  /**
+   * The version of the segment format.
+   */
+  public static final int VERSION = 1;
+
+  /**
+   * The size of a segment header in bytes.
+   */
+  public static final int HEADER_SIZE = 32;
+
+  /**
+   * The size of a record in bytes.
+   */
+  public static final int RECORD_SIZE = 24;
+
+  /**
+   * The default number of records per segment, which makes segments of 24MB.
+   */
+  public static final int DEFAULT_SEGMENT_RECORDS = 1 << 20;
+
+  private final Path directory;
+  private final int segmentRecords;
+  private final int maxSegments;
+  private final List<Path> segments = new ArrayList<>();
+  private int nextSegment;
+  private FileChannel channel;
+  private MappedByteBuffer map;
+  private int position;
+  private long records;
+
+  /**
+   * Opens a journal in a given directory with the default segment size, keeping every
+   * segment.
+   *
+   * @param directory
+   *          The directory holding the segments, which is created if needed.
+   * @throws IOException
+   *           If the first segment cannot be created.
+   */
+  public JournalWriter(Path directory) throws IOException {
+    this(directory, DEFAULT_SEGMENT_RECORDS, 0);
+  }
+
+  /**
+   * Opens a journal in a given directory. Existing segments are kept, and new records
+   * are written to a new segment after them.
+   *
+   * @param directory
+   *          The directory holding the segments, which is created if needed.
+   * @param segmentRecords
+   *          The number of records per segment.
+   * @param maxSegments
+   *          The maximum number of segments kept, the oldest being deleted when a new
+   *          one is started, or 0 to keep them all.
+   * @throws IOException
+   *           If the first segment cannot be created.
+   */
+  public JournalWriter(Path directory, int segmentRecords, int maxSegments)
+      throws IOException {
+    if (segmentRecords <= 0 || maxSegments < 0) {
+      throw new IllegalArgumentException("invalid segment limits");
+    }
+    this.directory = directory;
+    this.segmentRecords = segmentRecords;
+    this.maxSegments = maxSegments;
+    Files.createDirectories(directory);
+    this.segments.addAll(listSegments(directory));
+    this.nextSegment = this.segments.isEmpty() ? 0
+        : segmentNumber(this.segments.get(this.segments.size() - 1)) + 1;
+    openSegment();
+  }
+
+  /**
+   * Appends a single message. If the current segment is full the next one is started,
+   * so callers writing several messages at once should first make room with
+   * {@link #reserve(int)}.
+   *
+   * @param tick
+   *          The tick at which the message was exchanged.
+   * @param outgoing
+   *          True if the message was sent by the controller, false if it was received.
+   * @param message
+   *          The message.
+   */
+  public void write(int tick, boolean outgoing, Message message) {
+    if (this.position == this.segmentRecords) {
+      roll();
+    }
+    int offset = HEADER_SIZE + this.position * RECORD_SIZE;
+    MappedByteBuffer buffer = this.map;
+    buffer.putInt(offset, tick);
+    buffer.put(offset + 4, (byte) (outgoing ? 1 : 0));
+    buffer.put(offset + 5, (byte) message.getKind().ordinal());
+    byte mode = -1;
+    boolean flag = false;
+    int integer = 0;
+    double value = 0;
+    switch (Messages.shape(message.getKind())) {
+      case Messages.MODE:
+        mode = (byte) message.getModeParameter().ordinal();
+        break;
+      case Messages.INTEGER:
+        integer = message.getIntegerParameter();
+        break;
+      case Messages.DOUBLE:
+        value = message.getDoubleParameter();
+        break;
+      case Messages.INTEGER_BOOLEAN:
+        integer = message.getIntegerParameter();
+        flag = message.getBooleanParameter();
+        break;
+      default:
+        break;
+    }
+    buffer.put(offset + 6, mode);
+    buffer.put(offset + 7, (byte) (flag ? 1 : 0));
+    buffer.putInt(offset + 8, integer);
+    buffer.putInt(offset + 12, 0);
+    buffer.putDouble(offset + 16, value);
+    this.position++;
+    this.records++;
+  }
+
+  /**
+   * Appends every message in a mailbox.
+   *
+   * @param tick
+   *          The tick at which the messages were exchanged.
+   * @param outgoing
+   *          True if the messages were sent by the controller, false if they were
+   *          received.
+   * @param mailbox
+   *          The messages.
+   */
+  public void write(int tick, boolean outgoing, Mailbox mailbox) {
+    for (int index = 0; index < mailbox.size(); index++) {
+      write(tick, outgoing, mailbox.read(index));
+    }
+  }
+
+  /**
+   * Appends the messages exchanged on one tick and commits them. The tick is written to
+   * a single segment, unless it has more messages than a segment holds.
+   *
+   * @param tick
+   *          The tick number.
+   * @param incoming
+   *          The messages received by the controller.
+   * @param outgoing
+   *          The messages sent by the controller.
+   */
+  public void record(int tick, Mailbox incoming, Mailbox outgoing) {
+    reserve(incoming.size() + outgoing.size());
+    write(tick, false, incoming);
+    write(tick, true, outgoing);
+    commit();
+  }
+
+  /**
+   * Makes room for a number of records in the current segment, starting the next
+   * segment if they do not fit. This is only done between ticks, since starting a
+   * segment commits the records written to the current one.
+   *
+   * @param count
+   *          The number of records about to be written.
+   */
+  public void reserve(int count) {
+    if (this.position > 0 && this.position + count > this.segmentRecords) {
+      roll();
+    }
+  }
+
+  /**
+   * Makes the records written so far visible to readers.
+   */
+  public void commit() {
+    this.map.putLong(16, this.position);
+  }
+
+  /**
+   * The number of records written since this writer was opened.
+   *
+   * @return The number of records.
+   */
+  public long getRecords() {
+    return this.records;
+  }
+
+  /**
+   * The directory holding the segments of the journal.
+   *
+   * @return The directory.
+   */
+  public Path getDirectory() {
+    return this.directory;
+  }
+
+  @Override
+  public void close() throws IOException {
+    commit();
+    this.map.force();
+    this.channel.close();
+  }
+
+  /**
+   * Commits the current segment and starts the next one.
+   */
+  private void roll() {
+    try {
+      commit();
+      this.channel.close();
+      openSegment();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private void openSegment() throws IOException {
+    Path path = this.directory.resolve(segmentName(this.nextSegment++));
+    this.channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW,
+        StandardOpenOption.READ, StandardOpenOption.WRITE);
+    this.map = this.channel.map(FileChannel.MapMode.READ_WRITE, 0,
+        HEADER_SIZE + (long) this.segmentRecords * RECORD_SIZE);
+    this.map.putInt(0, MAGIC);
+    this.map.putInt(4, VERSION);
+    this.map.putInt(8, RECORD_SIZE);
+    this.map.putInt(12, this.segmentRecords);
+    this.map.putLong(16, 0);
+    this.position = 0;
+    this.segments.add(path);
+    while (this.maxSegments > 0 && this.segments.size() > this.maxSegments) {
+      Files.deleteIfExists(this.segments.remove(0));
+    }
+  }
+
+  /**
+   * The name of a segment file, which sorts in the order the segments were written.
+   *
+   * @param number
+   *          The number of the segment.
+   * @return The file name.
+   */
+  static String segmentName(int number) {
+    return String.format("journal-%08d.bin", number);
+  }
+
+  private static int segmentNumber(Path segment) {
+    String name = segment.getFileName().toString();
+    return Integer.parseInt(name.substring(8, name.length() - 4));
+  }
+
+  /**
+   * Lists the segments of a journal.
+   *
+   * @param directory
+   *          The directory holding the journal.
+   * @return The segments, oldest first.
+   * @throws IOException
+   *           If the directory cannot be read.
+   */
+  static List<Path> listSegments(Path directory) throws IOException {
+    List<Path> segments = new ArrayList<>();
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory,
+        "journal-[0-9][0-9][0-9][0-9][0-9][0-9][0-9][0-9].bin")) {
+      for (Path path : stream) {
+        segments.add(path);
+      }
+    }
+    Collections.sort(segments);
+    return segments;
+  }
+}
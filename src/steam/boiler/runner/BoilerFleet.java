@@ -0,0 +1,191 @@
+package steam.boiler.runner;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import steam.boiler.core.LatencyHistogram;
+import steam.boiler.util.SteamBoilerCharacteristics;
+
+/**
+ * Clocks a large number of independent boilers in parallel on a work-stealing pool.
+ * Every boiler is advanced over one full transmission period at a time, and the
+ * whole fleet waits at each five second synchronisation point before the next
+ * period is started. Since boilers share no state, each one follows exactly the same
+ * sequence of steps as it would when clocked on its own.
+ *
+ * <p>Run with <code>java steam.boiler.runner.BoilerFleet [boilers] [seconds] [threads]</code>.
+ *
+ * @author Harsh
+ *
+ */
+public class BoilerFleet {
+
+  /**
+   * The number of boilers a single task clocks before it stops splitting.
+   */
+  private static final int BOILERS_PER_TASK = 16;
+
+  private final SimulatedBoiler[] boilers;
+  private final ForkJoinPool pool;
+  private final LatencyHistogram tickLatency = new LatencyHistogram();
+  private long totalElapsed = 0;
+
+  /**
+   * Construct a fleet from a given set of boilers.
+   *
+   * @param boilers
+   *          The boilers making up the fleet.
+   * @param pool
+   *          The pool on which the boilers are clocked.
+   */
+  public BoilerFleet(SimulatedBoiler[] boilers, ForkJoinPool pool) {
+    this.boilers = boilers;
+    this.pool = pool;
+  }
+
+  /**
+   * Construct a fleet of identical boilers, each waiting to start.
+   *
+   * @param config
+   *          The boiler characteristics to be used.
+   * @param size
+   *          The number of boilers.
+   * @param pool
+   *          The pool on which the boilers are clocked.
+   * @return The fleet.
+   */
+  public static BoilerFleet create(SteamBoilerCharacteristics config, int size,
+      ForkJoinPool pool) {
+    SimulatedBoiler[] boilers = new SimulatedBoiler[size];
+    for (int i = 0; i != size; ++i) {
+      boilers[i] = SimulatedBoiler.waiting(config);
+    }
+    return new BoilerFleet(boilers, pool);
+  }
+
+  /**
+   * Clock every boiler for a given amount of time in parallel.
+   *
+   * @param time
+   *          The amount of simulated time (in seconds), rounded up to a whole number of
+   *          transmission periods.
+   * @throws IllegalArgumentException
+   *           If the time is negative, or takes the fleet past Scenario.MAX_DURATION.
+   */
+  public void run(int time) {
+    long end = getEnd(time);
+    while (this.totalElapsed < end) {
+      // invoke() returns once every boiler has reached the synchronisation point.
+      this.pool.invoke(new Period(0, this.boilers.length));
+      this.totalElapsed += SimulatedBoiler.TRANSMISSION_PERIOD;
+    }
+  }
+
+  /**
+   * Clock every boiler for a given amount of time on the calling thread.
+   *
+   * @param time
+   *          The amount of simulated time (in seconds), rounded up to a whole number of
+   *          transmission periods.
+   * @throws IllegalArgumentException
+   *           If the time is negative, or takes the fleet past Scenario.MAX_DURATION.
+   */
+  public void runSerial(int time) {
+    long end = getEnd(time);
+    while (this.totalElapsed < end) {
+      clockPeriod(0, this.boilers.length);
+      this.totalElapsed += SimulatedBoiler.TRANSMISSION_PERIOD;
+    }
+  }
+
+  /**
+   * The elapsed time at which a run of a given length ends. The physical units keep
+   * their own clock in an int of milliseconds, so the fleet cannot be run past
+   * Scenario.MAX_DURATION in total.
+   */
+  private long getEnd(int time) {
+    long end = this.totalElapsed + time * 1000L;
+    if (time < 0 || end > Scenario.MAX_DURATION * 1000L) {
+      throw new IllegalArgumentException("time must be between 0 and "
+          + (Scenario.MAX_DURATION - this.totalElapsed / 1000) + " seconds: " + time);
+    }
+    return end;
+  }
+
+  private void clockPeriod(int from, int to) {
+    for (int i = from; i < to; ++i) {
+      SimulatedBoiler boiler = this.boilers[i];
+      boiler.clockPeriod();
+      this.tickLatency.record(boiler.getLastTickNanos());
+    }
+  }
+
+  public SimulatedBoiler getBoiler(int index) {
+    return this.boilers[index];
+  }
+
+  public int size() {
+    return this.boilers.length;
+  }
+
+  public long getTotalElapsed() {
+    return this.totalElapsed;
+  }
+
+  /**
+   * The distribution of time (in nanoseconds) taken by individual controller ticks
+   * across the whole fleet.
+   *
+   * @return The histogram of tick latencies.
+   */
+  public LatencyHistogram getTickLatency() {
+    return this.tickLatency;
+  }
+
+  /**
+   * Clocks a contiguous range of boilers over one transmission period, splitting the
+   * range when it is large enough to be worth sharing with other workers.
+   */
+  private final class Period extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+    private final int from;
+    private final int to;
+
+    Period(int from, int to) {
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    protected void compute() {
+      if (this.to - this.from <= BOILERS_PER_TASK) {
+        clockPeriod(this.from, this.to);
+      } else {
+        int middle = (this.from + this.to) >>> 1;
+        invokeAll(new Period(this.from, middle), new Period(middle, this.to));
+      }
+    }
+  }
+
+  /**
+   * Entry point.
+   *
+   * @param args
+   *          Optional number of boilers, simulated seconds and worker threads.
+   */
+  public static void main(String[] args) {
+    int size = args.length > 0 ? Integer.parseInt(args[0]) : 10_000;
+    int time = args.length > 1 ? Integer.parseInt(args[1]) : 600;
+    int threads = args.length > 2 ? Integer.parseInt(args[2])
+        : Runtime.getRuntime().availableProcessors();
+    ForkJoinPool pool = new ForkJoinPool(threads);
+    BoilerFleet fleet = create(SteamBoilerCharacteristics.DEFAULT, size, pool);
+    long start = System.nanoTime();
+    fleet.run(time);
+    double wall = (System.nanoTime() - start) / 1e9;
+    pool.shutdown();
+    System.out.printf("boilers=%d threads=%d simulated=%ds wall=%.2fs boiler-seconds/s=%.0f%n",
+        size, threads, time, wall, size * (double) time / wall);
+    System.out.println("tick latency (ns): " + fleet.getTickLatency());
+  }
+}
@@ -0,0 +1,425 @@
+package steam.boiler.runner;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import steam.boiler.util.Mailbox;
+import steam.boiler.util.Mailbox.Message;
+import steam.boiler.util.SteamBoilerCharacteristics;
+
+/**
+ * Runs a large number of short simulations, each with a random combination of faults
+ * injected at random times, and counts how the controller copes. Trials are spread
+ * over a work-stealing pool. The faults of each trial are drawn from a random number
+ * generator seeded from the campaign seed and the trial number alone, so a campaign
+ * gives the same totals whatever the number of threads, and any single trial can be
+ * rerun on its own with {@link #getScenario(int)}.
+ *
+ * <p>For every trial the following are recorded:
+ *
+ * <ul>
+ * <li>whether the controller requested an emergency stop, after which the trial ends;</li>
+ * <li>every fault which was injected but never reported by the matching failure
+ * detection message (faults of the boiler itself have no such message);</li>
+ * <li>whether the true water level left the limits M1 and M2, once it had first been
+ * filled to within them.</li>
+ * </ul>
+ *
+ * <p>Run with <code>java steam.boiler.runner.FaultCampaign [trials] [seed] [seconds]
+ * [faults] [threads]</code>, or <code>java steam.boiler.runner.FaultCampaign -trial n
+ * [seed] [seconds] [faults]</code> to print the scenario of a single trial.
+ *
+ * @author Harsh
+ *
+ */
+public class FaultCampaign {
+
+  /**
+   * The number of trials a single task runs before it stops splitting.
+   */
+  private static final int TRIALS_PER_TASK = 8;
+
+  private static final FaultComponent[] COMPONENTS = FaultComponent.values();
+
+  private final SteamBoilerCharacteristics config;
+  private final long seed;
+  private final int duration;
+  private final int maxFaults;
+
+  /**
+   * Construct a campaign.
+   *
+   * @param config
+   *          The characteristics of every boiler.
+   * @param seed
+   *          The seed from which the faults of every trial are drawn.
+   * @param duration
+   *          The simulated time (in seconds) of each trial.
+   * @param maxFaults
+   *          The largest number of faults injected in a trial, each trial has between
+   *          one and this many.
+   */
+  public FaultCampaign(SteamBoilerCharacteristics config, long seed, int duration,
+      int maxFaults) {
+    if (duration <= 0 || maxFaults <= 0) {
+      throw new IllegalArgumentException("invalid campaign");
+    }
+    this.config = config;
+    this.seed = seed;
+    this.duration = duration;
+    this.maxFaults = maxFaults;
+  }
+
+  /**
+   * The scenario run by a given trial.
+   *
+   * @param trial
+   *          The trial number.
+   * @return The scenario, with the faults of the trial.
+   */
+  public Scenario getScenario(int trial) {
+    Random random = new Random(mix(this.seed + trial));
+    int count = 1 + random.nextInt(this.maxFaults);
+    List<Scenario.Fault> faults = new ArrayList<>();
+    for (int i = 0; i != count; ++i) {
+      FaultComponent component = COMPONENTS[random.nextInt(COMPONENTS.length)];
+      Class<?>[] models = component.getModels();
+      // the first model is the ideal one, which is not a fault.
+      Class<?> model = models[1 + random.nextInt(models.length - 1)];
+      int index = random.nextInt(this.config.getNumberOfPumps());
+      int time = random.nextInt(this.duration);
+      faults.add(new Scenario.Fault(time, component, model, index));
+    }
+    return new Scenario(this.config, this.duration, faults);
+  }
+
+  /**
+   * Run a range of trials on the calling thread.
+   *
+   * @param from
+   *          The first trial.
+   * @param to
+   *          The trial after the last.
+   * @return The totals over those trials.
+   */
+  public Tally runSerial(int from, int to) {
+    Tally tally = new Tally();
+    for (int trial = from; trial < to; ++trial) {
+      runTrial(getScenario(trial), tally);
+    }
+    return tally;
+  }
+
+  /**
+   * Run a number of trials on a pool.
+   *
+   * @param trials
+   *          The number of trials, numbered from zero.
+   * @param pool
+   *          The pool on which the trials run.
+   * @return The totals over every trial.
+   */
+  public Tally run(int trials, ForkJoinPool pool) {
+    return pool.invoke(new Trials(0, trials));
+  }
+
+  /**
+   * Run a single scenario and add its outcome to a tally.
+   *
+   * @param scenario
+   *          The scenario to run.
+   * @param tally
+   *          The tally to add to.
+   */
+  void runTrial(Scenario scenario, Tally tally) {
+    List<Scenario.Fault> faults = scenario.getFaults();
+    boolean[] detected = new boolean[faults.size()];
+    SimulatedBoiler boiler = scenario.createBoiler();
+    double m1 = this.config.getMinimalLimitLevel();
+    double m2 = this.config.getMaximalLimitLevel();
+    int injected = 0;
+    boolean stopped = false;
+    boolean filled = false;
+    boolean excursion = false;
+    int end = scenario.getDuration() * 1000;
+    while (boiler.getTotalElapsed() < end && !stopped) {
+      while (injected < faults.size()
+          && faults.get(injected).getTime() * 1000L <= boiler.getTotalElapsed()) {
+        faults.get(injected++).inject(boiler, this.config);
+      }
+      Mailbox received = boiler.clock();
+      double level = boiler.getPhysicalUnits().getBoiler().getWaterLevel();
+      boolean outside = level < m1 || level > m2;
+      // the boiler starts empty, so only count leaving the limits once within them.
+      filled |= !outside;
+      excursion |= filled && outside;
+      if (received != null) {
+        stopped = scan(received, faults, injected, detected);
+      }
+    }
+    tally.trials++;
+    tally.faults += injected;
+    if (stopped) {
+      tally.emergencyStops++;
+    }
+    if (excursion) {
+      tally.excursions++;
+    }
+    for (int i = 0; i != injected; ++i) {
+      FaultComponent component = faults.get(i).getComponent();
+      tally.injected[component.ordinal()]++;
+      if (!detected[i] && component != FaultComponent.STEAM_BOILER) {
+        tally.missed[component.ordinal()]++;
+      }
+    }
+  }
+
+  /**
+   * Look through the messages sent by the controller for failure detections of the
+   * faults injected so far, and for an emergency stop.
+   *
+   * @return True if the controller requested an emergency stop.
+   */
+  private static boolean scan(Mailbox received, List<Scenario.Fault> faults, int injected,
+      boolean[] detected) {
+    boolean stopped = false;
+    for (int m = 0; m != received.size(); ++m) {
+      Message message = received.read(m);
+      switch (message.getKind()) {
+        case MODE_m:
+          stopped |= message.getModeParameter() == Mailbox.Mode.EMERGENCY_STOP;
+          break;
+        case PUMP_FAILURE_DETECTION_n:
+          detect(faults, injected, detected, FaultComponent.PUMP,
+              message.getIntegerParameter());
+          break;
+        case PUMP_CONTROL_FAILURE_DETECTION_n:
+          detect(faults, injected, detected, FaultComponent.PUMP_CONTROLLER,
+              message.getIntegerParameter());
+          break;
+        case LEVEL_FAILURE_DETECTION:
+          detect(faults, injected, detected, FaultComponent.LEVEL_SENSOR, -1);
+          break;
+        case STEAM_FAILURE_DETECTION:
+          detect(faults, injected, detected, FaultComponent.STEAM_SENSOR, -1);
+          break;
+        default:
+          break;
+      }
+    }
+    return stopped;
+  }
+
+  private static void detect(List<Scenario.Fault> faults, int injected, boolean[] detected,
+      FaultComponent component, int index) {
+    for (int i = 0; i != injected; ++i) {
+      Scenario.Fault fault = faults.get(i);
+      if (fault.getComponent() == component && (index < 0 || fault.getIndex() == index)) {
+        detected[i] = true;
+      }
+    }
+  }
+
+  /**
+   * Scrambles a seed, so that consecutive trials get unrelated random numbers.
+   */
+  private static long mix(long z) {
+    z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+    z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+    return z ^ (z >>> 31);
+  }
+
+  /**
+   * The outcome of a number of trials.
+   */
+  public static final class Tally {
+    private long trials;
+    private long faults;
+    private long emergencyStops;
+    private long excursions;
+    private final long[] injected = new long[COMPONENTS.length];
+    private final long[] missed = new long[COMPONENTS.length];
+
+    /**
+     * Add another tally to this one.
+     *
+     * @param other
+     *          The tally to add.
+     * @return This tally.
+     */
+    public Tally add(Tally other) {
+      this.trials += other.trials;
+      this.faults += other.faults;
+      this.emergencyStops += other.emergencyStops;
+      this.excursions += other.excursions;
+      for (int i = 0; i != COMPONENTS.length; ++i) {
+        this.injected[i] += other.injected[i];
+        this.missed[i] += other.missed[i];
+      }
+      return this;
+    }
+
+    /**
+     * Write this tally as a line of space separated numbers.
+     *
+     * @return The numbers, which {@link #decode(String[], int)} reads back.
+     */
+    String encode() {
+      StringBuilder result = new StringBuilder();
+      result.append(this.trials).append(' ').append(this.faults).append(' ')
+          .append(this.emergencyStops).append(' ').append(this.excursions);
+      for (int i = 0; i != COMPONENTS.length; ++i) {
+        result.append(' ').append(this.injected[i]).append(' ').append(this.missed[i]);
+      }
+      return result.toString();
+    }
+
+    /**
+     * Read back a tally written by {@link #encode()}.
+     *
+     * @param fields
+     *          The numbers.
+     * @param offset
+     *          The index of the first number.
+     * @return The tally.
+     */
+    static Tally decode(String[] fields, int offset) {
+      if (fields.length - offset != 4 + 2 * COMPONENTS.length) {
+        throw new IllegalArgumentException("invalid tally");
+      }
+      Tally tally = new Tally();
+      tally.trials = Long.parseLong(fields[offset]);
+      tally.faults = Long.parseLong(fields[offset + 1]);
+      tally.emergencyStops = Long.parseLong(fields[offset + 2]);
+      tally.excursions = Long.parseLong(fields[offset + 3]);
+      for (int i = 0; i != COMPONENTS.length; ++i) {
+        tally.injected[i] = Long.parseLong(fields[offset + 4 + 2 * i]);
+        tally.missed[i] = Long.parseLong(fields[offset + 5 + 2 * i]);
+      }
+      return tally;
+    }
+
+    public long getTrials() {
+      return this.trials;
+    }
+
+    public long getFaults() {
+      return this.faults;
+    }
+
+    public long getEmergencyStops() {
+      return this.emergencyStops;
+    }
+
+    /**
+     * The number of trials in which the true water level left the limits M1 and M2.
+     *
+     * @return The number of trials.
+     */
+    public long getExcursions() {
+      return this.excursions;
+    }
+
+    public long getInjected(FaultComponent component) {
+      return this.injected[component.ordinal()];
+    }
+
+    /**
+     * The number of faults of a given component which were injected but never
+     * reported by the controller.
+     *
+     * @param component
+     *          The component.
+     * @return The number of faults.
+     */
+    public long getMissed(FaultComponent component) {
+      return this.missed[component.ordinal()];
+    }
+
+    @Override
+    public String toString() {
+      StringBuilder result = new StringBuilder();
+      result.append(String.format("trials=%d faults=%d emergency_stops=%d excursions=%d%n",
+          this.trials, this.faults, this.emergencyStops, this.excursions));
+      for (FaultComponent component : COMPONENTS) {
+        result.append(String.format("  %-15s injected=%d missed=%d%n", component,
+            getInjected(component), getMissed(component)));
+      }
+      return result.toString();
+    }
+  }
+
+  /**
+   * Runs a contiguous range of trials, splitting the range when it is large enough to
+   * be worth sharing with other workers.
+   */
+  private final class Trials extends RecursiveTask<Tally> {
+    private static final long serialVersionUID = 1L;
+    private final int from;
+    private final int to;
+
+    Trials(int from, int to) {
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    protected Tally compute() {
+      if (this.to - this.from <= TRIALS_PER_TASK) {
+        return runSerial(this.from, this.to);
+      }
+      int middle = (this.from + this.to) >>> 1;
+      Trials right = new Trials(middle, this.to);
+      right.fork();
+      Tally left = new Trials(this.from, middle).compute();
+      return left.add(right.join());
+    }
+  }
+
+  /**
+   * Entry point.
+   *
+   * @param args
+   *          Optional number of trials, seed, simulated seconds per trial, maximum
+   *          faults per trial and worker threads.
+   */
+  public static void main(String[] args) {
+    int single = -1;
+    if (args.length > 1 && args[0].equals("-trial")) {
+      single = Integer.parseInt(args[1]);
+      String[] rest = new String[args.length - 1];
+      rest[0] = "1";
+      System.arraycopy(args, 2, rest, 1, args.length - 2);
+      args = rest;
+    }
+    int trials = args.length > 0 ? Integer.parseInt(args[0]) : 10_000;
+    long seed = args.length > 1 ? Long.parseLong(args[1]) : 1;
+    int duration = args.length > 2 ? Integer.parseInt(args[2]) : 300;
+    int faults = args.length > 3 ? Integer.parseInt(args[3]) : 3;
+    int threads = args.length > 4 ? Integer.parseInt(args[4])
+        : Runtime.getRuntime().availableProcessors();
+    FaultCampaign campaign = new FaultCampaign(SteamBoilerCharacteristics.DEFAULT, seed,
+        duration, faults);
+    if (single >= 0) {
+      // print the trial as a scenario file for HeadlessRunner.
+      Scenario scenario = campaign.getScenario(single);
+      System.out.println("duration = " + scenario.getDuration());
+      int n = 1;
+      for (Scenario.Fault fault : scenario.getFaults()) {
+        System.out.println("fault." + n++ + " = " + fault);
+      }
+      return;
+    }
+    ForkJoinPool pool = new ForkJoinPool(threads);
+    long start = System.nanoTime();
+    Tally tally = campaign.run(trials, pool);
+    double wall = (System.nanoTime() - start) / 1e9;
+    pool.shutdown();
+    System.out.print(tally);
+    System.out.printf("seed=%d threads=%d wall=%.2fs trials/s=%.0f%n", seed, threads, wall,
+        trials / wall);
+  }
+}
@@ -0,0 +1,98 @@
+package steam.boiler.runner;
+
+import steam.boiler.model.LevelSensorModels;
+import steam.boiler.model.PhysicalUnits;
+import steam.boiler.model.PumpControllerModels;
+import steam.boiler.model.PumpModels;
+import steam.boiler.model.SteamBoilerModels;
+import steam.boiler.model.SteamSensorModels;
+import steam.boiler.util.SteamBoilerCharacteristics;
+
+/**
+ * The kinds of physical component which can be replaced by one of the fault models
+ * provided by the simulation, along with the means to do so.
+ *
+ * @author Harsh
+ *
+ */
+public enum FaultComponent {
+  PUMP(PumpModels.ALL),
+  PUMP_CONTROLLER(PumpControllerModels.ALL),
+  LEVEL_SENSOR(LevelSensorModels.ALL),
+  STEAM_SENSOR(SteamSensorModels.ALL),
+  STEAM_BOILER(SteamBoilerModels.ALL);
+
+  private final Class<?>[] models;
+
+  private FaultComponent(Class<?>[] models) {
+    this.models = models;
+  }
+
+  /**
+   * The models available for this component. The first model is always the ideal
+   * (i.e. fault free) one.
+   *
+   * @return The model classes, which must not be modified.
+   */
+  public Class<?>[] getModels() {
+    return this.models;
+  }
+
+  /**
+   * Find a model of this component by its simple class name (e.g. "StuckZero").
+   *
+   * @param name
+   *          The name of the model.
+   * @return The model class.
+   */
+  public Class<?> getModel(String name) {
+    for (Class<?> model : this.models) {
+      if (model.getSimpleName().equals(name)) {
+        return model;
+      }
+    }
+    throw new IllegalArgumentException("unknown " + this + " model: " + name);
+  }
+
+  /**
+   * Replace a component of the physical units with a given model.
+   *
+   * @param physicalUnits
+   *          The physical units to modify.
+   * @param config
+   *          The characteristics the physical units were constructed with.
+   * @param model
+   *          One of the models returned by {@link #getModels()}.
+   * @param index
+   *          The pump (or pump controller) to replace, ignored for other components.
+   */
+  @SuppressWarnings("unchecked")
+  public void inject(PhysicalUnits physicalUnits, SteamBoilerCharacteristics config,
+      Class<?> model, int index) {
+    switch (this) {
+      case PUMP:
+        physicalUnits.setPump(index, PumpModels.construct(
+            (Class<? extends PhysicalUnits.Pump>) model, index, config.getPumpCapacity(index),
+            physicalUnits));
+        break;
+      case PUMP_CONTROLLER:
+        physicalUnits.setPumpController(index, PumpControllerModels.construct(
+            (Class<? extends PhysicalUnits.PumpController>) model, index, physicalUnits));
+        break;
+      case LEVEL_SENSOR:
+        physicalUnits.setLevelSensor(LevelSensorModels.construct(
+            (Class<? extends PhysicalUnits.LevelSensor>) model, physicalUnits));
+        break;
+      case STEAM_SENSOR:
+        physicalUnits.setSteamSensor(SteamSensorModels.construct(
+            (Class<? extends PhysicalUnits.SteamSensor>) model, physicalUnits));
+        break;
+      case STEAM_BOILER:
+        physicalUnits.setBoiler(SteamBoilerModels.construct(
+            (Class<? extends PhysicalUnits.SteamBoiler>) model, config));
+        break;
+      default:
+        throw new IllegalArgumentException("invalid component");
+    }
+  }
+}
@@ -0,0 +1,445 @@
+package steam.boiler.runner;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import steam.boiler.runner.FaultCampaign.Tally;
+import steam.boiler.util.SteamBoilerCharacteristics;
+
+/**
+ * Runs every combination of fault models for a given set of boiler characteristics,
+ * rather than the random sample taken by {@link FaultCampaign}. A combination gives
+ * each pump a pump model and a pump controller model, and gives the level sensor, the
+ * steam sensor and the boiler a model each. Every non-ideal model in the combination is
+ * injected at the same time, and the outcome of each combination is counted as a
+ * trial of {@link FaultCampaign}.
+ *
+ * <p>The number of combinations grows quickly with the number of pumps, so two things
+ * keep the sweep down to size:
+ *
+ * <ul>
+ * <li>Combinations with more faults than a given limit are skipped without being
+ * run.</li>
+ * <li>Every combination runs fault free up to the injection time, so this prefix is run
+ * once before the sweep starts. If the controller stops the boiler before any fault is
+ * injected, the prefix is the outcome of every combination and none are run. The
+ * physical units of the simulation cannot be copied, so otherwise each combination
+ * runs the prefix again.</li>
+ * </ul>
+ *
+ * <p>Pumps of equal capacity are not interchangeable, since the controller opens the
+ * pump with the lowest index first, so a fault on one pump can be missed where the same
+ * fault on another is detected. Every assignment of models to pumps is therefore run.
+ *
+ * <p>Combinations are numbered, and their outcomes can be appended to a checkpoint
+ * file as they complete. A sweep given an existing checkpoint file reads back the
+ * outcomes recorded there and only runs the remaining combinations, so a sweep which
+ * is interrupted can be resumed.
+ *
+ * <p>Run with <code>java steam.boiler.runner.FaultSweep [faults] [seconds] [inject]
+ * [threads] [checkpoint]</code>, or <code>java steam.boiler.runner.FaultSweep
+ * -combination n [faults] [seconds] [inject]</code> to print the scenario of a single
+ * combination.
+ *
+ * @author Harsh
+ *
+ */
+public class FaultSweep {
+
+  /**
+   * The number of combinations a single task runs before it stops splitting.
+   */
+  private static final int COMBINATIONS_PER_TASK = 8;
+
+  private static final Class<?>[] PUMP_MODELS = FaultComponent.PUMP.getModels();
+  private static final Class<?>[] CONTROLLER_MODELS = FaultComponent.PUMP_CONTROLLER
+      .getModels();
+  private static final Class<?>[] LEVEL_MODELS = FaultComponent.LEVEL_SENSOR.getModels();
+  private static final Class<?>[] STEAM_MODELS = FaultComponent.STEAM_SENSOR.getModels();
+  private static final Class<?>[] BOILER_MODELS = FaultComponent.STEAM_BOILER.getModels();
+
+  /**
+   * The number of combinations of level sensor, steam sensor and boiler models.
+   */
+  private static final int OTHERS = LEVEL_MODELS.length * STEAM_MODELS.length
+      * BOILER_MODELS.length;
+
+  private final SteamBoilerCharacteristics config;
+  private final int injectTime;
+  private final int duration;
+  private final int maxFaults;
+  private final FaultCampaign campaign;
+
+  /**
+   * Every assignment of a (pump model, controller model) pair to each pump within the
+   * fault limit. A pair is encoded as
+   * <code>pumpModel * CONTROLLER_MODELS.length + controllerModel</code>.
+   */
+  private final int[][] assignments;
+  private final int[] assignmentFaults;
+
+  /**
+   * Construct a sweep.
+   *
+   * @param config
+   *          The characteristics of every boiler.
+   * @param injectTime
+   *          The simulated time (in seconds) at which the faults are injected.
+   * @param duration
+   *          The simulated time (in seconds) of each combination.
+   * @param maxFaults
+   *          The largest number of faulty components in a combination, or 0 for no
+   *          limit.
+   */
+  public FaultSweep(SteamBoilerCharacteristics config, int injectTime, int duration,
+      int maxFaults) {
+    if (injectTime < 0 || injectTime >= duration || maxFaults < 0) {
+      throw new IllegalArgumentException("invalid sweep");
+    }
+    this.config = config;
+    this.injectTime = injectTime;
+    this.duration = duration;
+    this.maxFaults = maxFaults == 0 ? Integer.MAX_VALUE : maxFaults;
+    this.campaign = new FaultCampaign(config, 0, duration, 1);
+    List<int[]> all = new ArrayList<>();
+    enumerate(new int[config.getNumberOfPumps()], 0, 0, all);
+    this.assignments = all.toArray(new int[all.size()][]);
+    this.assignmentFaults = new int[this.assignments.length];
+    for (int a = 0; a != this.assignments.length; ++a) {
+      this.assignmentFaults[a] = countFaults(this.assignments[a]);
+    }
+    if ((long) this.assignments.length * OTHERS > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("too many combinations, reduce the fault limit");
+    }
+  }
+
+  /**
+   * Generate every pump assignment with at most the fault limit.
+   */
+  private void enumerate(int[] pairs, int pump, int faults, List<int[]> result) {
+    if (pump == pairs.length) {
+      result.add(pairs.clone());
+      return;
+    }
+    for (int pair = 0; pair < PUMP_MODELS.length * CONTROLLER_MODELS.length; ++pair) {
+      int total = faults + countFaults(pair);
+      if (total <= this.maxFaults) {
+        pairs[pump] = pair;
+        enumerate(pairs, pump + 1, total, result);
+      }
+    }
+  }
+
+  private static int countFaults(int pair) {
+    return (pair / CONTROLLER_MODELS.length != 0 ? 1 : 0)
+        + (pair % CONTROLLER_MODELS.length != 0 ? 1 : 0);
+  }
+
+  private static int countFaults(int[] pairs) {
+    int faults = 0;
+    for (int pair : pairs) {
+      faults += countFaults(pair);
+    }
+    return faults;
+  }
+
+  /**
+   * The number of combinations, including those skipped for having too many or no
+   * faults. Combinations are numbered from zero up to this.
+   *
+   * @return The number of combinations.
+   */
+  public int getCombinations() {
+    return this.assignments.length * OTHERS;
+  }
+
+  /**
+   * The number of faulty components in a combination.
+   *
+   * @param combination
+   *          The combination number.
+   * @return The number of faults.
+   */
+  public int getFaults(int combination) {
+    int other = combination % OTHERS;
+    int boiler = other % BOILER_MODELS.length;
+    int steam = (other / BOILER_MODELS.length) % STEAM_MODELS.length;
+    int level = other / (BOILER_MODELS.length * STEAM_MODELS.length);
+    return this.assignmentFaults[combination / OTHERS] + (level != 0 ? 1 : 0)
+        + (steam != 0 ? 1 : 0) + (boiler != 0 ? 1 : 0);
+  }
+
+  /**
+   * Whether a combination is run, which is when it has at least one fault and no more
+   * than the limit.
+   *
+   * @param combination
+   *          The combination number.
+   * @return True if the combination is run.
+   */
+  public boolean isIncluded(int combination) {
+    int faults = getFaults(combination);
+    return faults > 0 && faults <= this.maxFaults;
+  }
+
+  /**
+   * The scenario run by a given combination.
+   *
+   * @param combination
+   *          The combination number.
+   * @return The scenario, with every fault injected at the injection time.
+   */
+  public Scenario getScenario(int combination) {
+    int[] pairs = this.assignments[combination / OTHERS];
+    int other = combination % OTHERS;
+    List<Scenario.Fault> faults = new ArrayList<>();
+    for (int pump = 0; pump != pairs.length; ++pump) {
+      int pumpModel = pairs[pump] / CONTROLLER_MODELS.length;
+      int controllerModel = pairs[pump] % CONTROLLER_MODELS.length;
+      addFault(faults, FaultComponent.PUMP, PUMP_MODELS, pumpModel, pump);
+      addFault(faults, FaultComponent.PUMP_CONTROLLER, CONTROLLER_MODELS, controllerModel,
+          pump);
+    }
+    addFault(faults, FaultComponent.LEVEL_SENSOR, LEVEL_MODELS,
+        other / (BOILER_MODELS.length * STEAM_MODELS.length), 0);
+    addFault(faults, FaultComponent.STEAM_SENSOR, STEAM_MODELS,
+        (other / BOILER_MODELS.length) % STEAM_MODELS.length, 0);
+    addFault(faults, FaultComponent.STEAM_BOILER, BOILER_MODELS,
+        other % BOILER_MODELS.length, 0);
+    return new Scenario(this.config, this.duration, faults);
+  }
+
+  private void addFault(List<Scenario.Fault> faults, FaultComponent component,
+      Class<?>[] models, int model, int index) {
+    // the first model is the ideal one, which is not a fault.
+    if (model != 0) {
+      faults.add(new Scenario.Fault(this.injectTime, component, models[model], index));
+    }
+  }
+
+  /**
+   * Run every included combination on a pool.
+   *
+   * @param pool
+   *          The pool on which the combinations run.
+   * @param checkpoint
+   *          The file to which outcomes are appended as they complete, and from which
+   *          earlier outcomes are read back, or null to keep no checkpoint.
+   * @return The totals over every included combination.
+   * @throws IOException
+   *           If the checkpoint cannot be read or written.
+   */
+  public Tally run(ForkJoinPool pool, Path checkpoint) throws IOException {
+    Tally total = new Tally();
+    BitSet done = new BitSet();
+    if (checkpoint != null && Files.exists(checkpoint)) {
+      resume(checkpoint, done, total);
+    }
+    Tally prefix = new Tally();
+    this.campaign.runTrial(new Scenario(this.config, this.injectTime,
+        new ArrayList<Scenario.Fault>()), prefix);
+    if (this.injectTime > 0 && prefix.getEmergencyStops() != 0) {
+      // no combination gets as far as its faults, so all end the way the prefix did.
+      for (int combination = 0; combination != getCombinations(); ++combination) {
+        if (isIncluded(combination) && !done.get(combination)) {
+          total.add(prefix);
+        }
+      }
+      return total;
+    }
+    try (BufferedWriter writer = checkpoint == null ? null : open(checkpoint)) {
+      return total.add(pool.invoke(new Combinations(0, getCombinations(), done, writer)));
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+  }
+
+  /**
+   * Run a range of combinations on the calling thread.
+   *
+   * @param from
+   *          The first combination.
+   * @param to
+   *          The combination after the last.
+   * @return The totals over the included combinations in the range.
+   */
+  public Tally runSerial(int from, int to) {
+    return runRange(from, to, new BitSet(), null);
+  }
+
+  private Tally runRange(int from, int to, BitSet done, BufferedWriter writer) {
+    Tally total = new Tally();
+    StringBuilder lines = new StringBuilder();
+    for (int combination = from; combination < to; ++combination) {
+      if (!isIncluded(combination) || done.get(combination)) {
+        continue;
+      }
+      Tally tally = new Tally();
+      this.campaign.runTrial(getScenario(combination), tally);
+      total.add(tally);
+      lines.append(combination).append(' ').append(tally.encode()).append('\n');
+    }
+    if (writer != null && lines.length() != 0) {
+      synchronized (writer) {
+        try {
+          writer.write(lines.toString());
+          writer.flush();
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      }
+    }
+    return total;
+  }
+
+  /**
+   * Read the outcomes recorded in a checkpoint. A last line cut short by an
+   * interruption is ignored, and the combination is run again.
+   */
+  private void resume(Path checkpoint, BitSet done, Tally total) throws IOException {
+    try (BufferedReader reader = Files.newBufferedReader(checkpoint,
+        StandardCharsets.UTF_8)) {
+      String line = reader.readLine();
+      if (line == null || !line.equals(header())) {
+        throw new IOException("checkpoint is for a different sweep: " + checkpoint);
+      }
+      while ((line = reader.readLine()) != null) {
+        String[] fields = line.trim().split(" ");
+        Tally tally;
+        try {
+          tally = Tally.decode(fields, 1);
+        } catch (IllegalArgumentException e) {
+          continue;
+        }
+        int combination = Integer.parseInt(fields[0]);
+        if (!done.get(combination)) {
+          done.set(combination);
+          total.add(tally);
+        }
+      }
+    }
+  }
+
+  private BufferedWriter open(Path checkpoint) throws IOException {
+    boolean exists = Files.exists(checkpoint);
+    BufferedWriter writer = Files.newBufferedWriter(checkpoint, StandardCharsets.UTF_8,
+        StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    if (!exists) {
+      writer.write(header());
+      writer.newLine();
+      writer.flush();
+    } else {
+      // make sure a line cut short by an interruption does not swallow the next one.
+      writer.newLine();
+    }
+    return writer;
+  }
+
+  /**
+   * The first line of a checkpoint, identifying the sweep it belongs to.
+   */
+  private String header() {
+    StringBuilder result = new StringBuilder("FaultSweep");
+    for (int i = 0; i != this.config.getNumberOfPumps(); ++i) {
+      result.append(' ').append(this.config.getPumpCapacity(i));
+    }
+    result.append(" capacity=").append(this.config.getCapacity());
+    result.append(" inject=").append(this.injectTime);
+    result.append(" duration=").append(this.duration);
+    result.append(" faults=").append(this.maxFaults);
+    result.append(" combinations=").append(getCombinations());
+    return result.toString();
+  }
+
+  /**
+   * Runs a contiguous range of combinations, splitting the range when it is large
+   * enough to be worth sharing with other workers.
+   */
+  private final class Combinations extends RecursiveTask<Tally> {
+    private static final long serialVersionUID = 1L;
+    private final int from;
+    private final int to;
+    private final BitSet done;
+    private final BufferedWriter writer;
+
+    Combinations(int from, int to, BitSet done, BufferedWriter writer) {
+      this.from = from;
+      this.to = to;
+      this.done = done;
+      this.writer = writer;
+    }
+
+    @Override
+    protected Tally compute() {
+      if (this.to - this.from <= COMBINATIONS_PER_TASK) {
+        return runRange(this.from, this.to, this.done, this.writer);
+      }
+      int middle = (this.from + this.to) >>> 1;
+      Combinations right = new Combinations(middle, this.to, this.done, this.writer);
+      right.fork();
+      Tally left = new Combinations(this.from, middle, this.done, this.writer).compute();
+      return left.add(right.join());
+    }
+  }
+
+  /**
+   * Entry point.
+   *
+   * @param args
+   *          Optional maximum faults per combination, simulated seconds per
+   *          combination, injection time, worker threads and checkpoint file.
+   * @throws IOException
+   *           If the checkpoint cannot be read or written.
+   */
+  public static void main(String[] args) throws IOException {
+    int single = -1;
+    if (args.length > 1 && args[0].equals("-combination")) {
+      single = Integer.parseInt(args[1]);
+      args = Arrays.copyOfRange(args, 2, args.length);
+    }
+    int faults = args.length > 0 ? Integer.parseInt(args[0]) : 2;
+    int duration = args.length > 1 ? Integer.parseInt(args[1]) : 300;
+    int inject = args.length > 2 ? Integer.parseInt(args[2]) : 60;
+    int threads = args.length > 3 ? Integer.parseInt(args[3])
+        : Runtime.getRuntime().availableProcessors();
+    Path checkpoint = args.length > 4 ? Paths.get(args[4]) : null;
+    FaultSweep sweep = new FaultSweep(SteamBoilerCharacteristics.DEFAULT, inject, duration,
+        faults);
+    if (single >= 0) {
+      // print the combination as a scenario file for HeadlessRunner.
+      Scenario scenario = sweep.getScenario(single);
+      System.out.println("duration = " + scenario.getDuration());
+      int n = 1;
+      for (Scenario.Fault fault : scenario.getFaults()) {
+        System.out.println("fault." + n++ + " = " + fault);
+      }
+      return;
+    }
+    int included = 0;
+    for (int combination = 0; combination != sweep.getCombinations(); ++combination) {
+      if (sweep.isIncluded(combination)) {
+        included++;
+      }
+    }
+    ForkJoinPool pool = new ForkJoinPool(threads);
+    long start = System.nanoTime();
+    Tally tally = sweep.run(pool, checkpoint);
+    double wall = (System.nanoTime() - start) / 1e9;
+    pool.shutdown();
+    System.out.print(tally);
+    System.out.printf("combinations=%d threads=%d wall=%.2fs%n", included, threads, wall);
+  }
+}
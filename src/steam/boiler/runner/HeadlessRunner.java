@@ -0,0 +1,148 @@
+package steam.boiler.runner;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.List;
+
+import steam.boiler.journal.JournalWriter;
+import steam.boiler.util.Mailbox;
+import steam.boiler.util.Mailbox.Message;
+import steam.boiler.util.Mailbox.MessageKind;
+import steam.boiler.util.SteamBoilerCharacteristics;
+
+/**
+ * Runs a scenario without the simulation window, clocking the physical units and the
+ * controller as fast as possible rather than in (multiples of) real time. This makes it
+ * possible to soak test the controller over days or weeks of simulated operation.
+ *
+ * <p>Run with <code>java steam.boiler.runner.HeadlessRunner scenario.properties
+ * [journal]</code>, see {@link Scenario} for the file format. When a journal directory
+ * is given every message exchanged is recorded in it, see {@link JournalWriter}.
+ *
+ * @author Harsh
+ *
+ */
+public class HeadlessRunner {
+
+  private static final int REPORT_PERIOD = 24 * 60 * 60 * 1000;
+
+  private final Scenario scenario;
+  private final SimulatedBoiler boiler;
+  private int nextFault = 0;
+  private long emergencyStopTime = -1;
+
+  /**
+   * Construct a runner for a given scenario.
+   *
+   * @param scenario
+   *          The scenario to run.
+   */
+  public HeadlessRunner(Scenario scenario) {
+    this.scenario = scenario;
+    this.boiler = scenario.createBoiler();
+  }
+
+  /**
+   * Clock the system until the end of the scenario, injecting faults as their time
+   * arrives.
+   */
+  public void run() {
+    long end = this.scenario.getDuration() * 1000L;
+    while (this.boiler.getTotalElapsed() < end) {
+      step();
+      if (this.boiler.getTotalElapsed() % REPORT_PERIOD == 0) {
+        System.out.println(status());
+      }
+    }
+  }
+
+  /**
+   * Advance the system by a single 100ms step.
+   */
+  public void step() {
+    List<Scenario.Fault> faults = this.scenario.getFaults();
+    SteamBoilerCharacteristics config = this.scenario.getCharacteristics();
+    while (this.nextFault < faults.size()
+        && faults.get(this.nextFault).getTime() * 1000L <= this.boiler.getTotalElapsed()) {
+      faults.get(this.nextFault++).inject(this.boiler, config);
+    }
+    long time = this.boiler.getTotalElapsed();
+    Mailbox received = this.boiler.clock();
+    if (received != null && this.emergencyStopTime < 0 && isEmergencyStop(received)) {
+      this.emergencyStopTime = time;
+    }
+  }
+
+  private static boolean isEmergencyStop(Mailbox mailbox) {
+    for (int i = 0; i != mailbox.size(); ++i) {
+      Message message = mailbox.read(i);
+      if (message.getKind() == MessageKind.MODE_m
+          && message.getModeParameter() == Mailbox.Mode.EMERGENCY_STOP) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * A one line summary of the current state of the simulation.
+   *
+   * @return The summary.
+   */
+  public String status() {
+    return String.format("t=%ds mode=%s level=%.1f steam=%.1f",
+        this.boiler.getTotalElapsed() / 1000, this.boiler.getController().getMode(),
+        this.boiler.getPhysicalUnits().getBoiler().getWaterLevel(),
+        this.boiler.getPhysicalUnits().getBoiler().getSteamProductionRate());
+  }
+
+  public SimulatedBoiler getBoiler() {
+    return this.boiler;
+  }
+
+  /**
+   * The simulated time at which the controller first requested an emergency stop.
+   *
+   * @return The time in milliseconds, or a negative number if it never did.
+   */
+  public long getEmergencyStopTime() {
+    return this.emergencyStopTime;
+  }
+
+  /**
+   * Entry point.
+   *
+   * @param args
+   *          The scenario file to run, and optionally the journal directory.
+   * @throws IOException
+   *           If the scenario file cannot be read or the journal cannot be written.
+   */
+  public static void main(String[] args) throws IOException {
+    if (args.length != 1 && args.length != 2) {
+      System.err.println("usage: HeadlessRunner scenario.properties [journal]");
+      System.exit(1);
+    }
+    Scenario scenario = Scenario.load(Paths.get(args[0]));
+    HeadlessRunner runner = new HeadlessRunner(scenario);
+    JournalWriter journal = null;
+    if (args.length == 2) {
+      journal = new JournalWriter(Paths.get(args[1]));
+      runner.getBoiler().setJournal(journal);
+    }
+    long start = System.nanoTime();
+    runner.run();
+    double wall = (System.nanoTime() - start) / 1e9;
+    if (journal != null) {
+      journal.close();
+      System.out.println("journalled " + journal.getRecords() + " messages");
+    }
+    System.out.println(runner.status());
+    System.out.print(runner.getBoiler().getController().getMetrics().snapshot());
+    if (runner.getEmergencyStopTime() >= 0) {
+      System.out.println("emergency stop requested at t=" + runner.getEmergencyStopTime() / 1000
+          + "s");
+    }
+    System.out.printf("simulated %ds in %.2fs wall (%.0f simulated seconds per wall second)%n",
+        scenario.getDuration(), wall, scenario.getDuration() / wall);
+  }
+}
@@ -0,0 +1,217 @@
+package steam.boiler.runner;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import steam.boiler.core.BoundedMailbox;
+import steam.boiler.core.Messages;
+import steam.boiler.core.SteamBoilerController;
+import steam.boiler.journal.JournalReader;
+import steam.boiler.util.Mailbox;
+import steam.boiler.util.SteamBoilerCharacteristics;
+
+/**
+ * Replays a journal written by {@link steam.boiler.journal.JournalWriter} against a
+ * controller. The messages the controller received on each recorded tick are fed to
+ * clock() as fast as possible, and the messages it sends are compared with the ones
+ * recorded. Replay stops at the first tick where they differ, so
+ * that a new build of the controller can be checked against recorded traffic, or the
+ * run up to an emergency stop can be stepped through without the simulation. The
+ * journal must start at the first tick of the controller which recorded it.
+ *
+ * @author Harsh
+ *
+ */
+public class ReplayEngine implements Closeable {
+
+  private final JournalReader reader;
+  private final SteamBoilerController controller;
+  private final BoundedMailbox incoming;
+  private final BoundedMailbox recorded;
+  private final BoundedMailbox outgoing;
+  private int ticks;
+  private long messages;
+  private int divergence = -1;
+
+  /**
+   * Opens a journal for replay against a given controller.
+   *
+   * @param journal
+   *          The directory holding the journal.
+   * @param controller
+   *          The controller to replay into, which should be freshly constructed for the
+   *          boiler characteristics of the recording.
+   * @param capacity
+   *          The largest number of messages exchanged in one direction on one tick.
+   * @throws IOException
+   *           If the journal cannot be read.
+   */
+  public ReplayEngine(Path journal, SteamBoilerController controller, int capacity)
+      throws IOException {
+    this.reader = new JournalReader(journal);
+    this.controller = controller;
+    this.incoming = new BoundedMailbox(capacity);
+    this.recorded = new BoundedMailbox(capacity);
+    this.outgoing = new BoundedMailbox(capacity);
+  }
+
+  /**
+   * Replays the next tick.
+   *
+   * @return True if the tick was replayed and the controller sent the recorded
+   *         messages, false at the end of the journal or if the controller diverged.
+   * @throws IOException
+   *           If the journal cannot be read.
+   */
+  public boolean step() throws IOException {
+    if (this.divergence >= 0) {
+      return false;
+    }
+    int tick = this.reader.readTick(this.incoming, this.recorded);
+    if (tick < 0) {
+      return false;
+    }
+    this.outgoing.clearAll();
+    this.controller.clock(this.incoming, this.outgoing);
+    this.ticks++;
+    this.messages += this.incoming.size() + this.recorded.size();
+    if (!same(this.recorded, this.outgoing)) {
+      this.divergence = tick;
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Replays the journal up to its end or the first divergence.
+   *
+   * @return The tick at which the controller diverged, or -1 if it never did.
+   * @throws IOException
+   *           If the journal cannot be read.
+   */
+  public int run() throws IOException {
+    while (step()) {
+      // keep going
+    }
+    return this.divergence;
+  }
+
+  private static boolean same(Mailbox expected, Mailbox actual) {
+    if (expected.size() != actual.size()) {
+      return false;
+    }
+    for (int index = 0; index < expected.size(); index++) {
+      // slots are reused, so only the parameters the kind carries are compared.
+      if (!Messages.same(expected.read(index), actual.read(index))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  public SteamBoilerController getController() {
+    return this.controller;
+  }
+
+  public int getTicks() {
+    return this.ticks;
+  }
+
+  public long getMessages() {
+    return this.messages;
+  }
+
+  /**
+   * The tick at which the controller first sent something different from the
+   * recording.
+   *
+   * @return The tick, or -1 if it has not diverged.
+   */
+  public int getDivergence() {
+    return this.divergence;
+  }
+
+  /**
+   * The messages received on the last tick replayed.
+   *
+   * @return The mailbox, which is reused by the next tick.
+   */
+  public Mailbox getIncoming() {
+    return this.incoming;
+  }
+
+  /**
+   * The messages recorded as sent on the last tick replayed.
+   *
+   * @return The mailbox, which is reused by the next tick.
+   */
+  public Mailbox getRecorded() {
+    return this.recorded;
+  }
+
+  /**
+   * The messages sent by the controller on the last tick replayed.
+   *
+   * @return The mailbox, which is reused by the next tick.
+   */
+  public Mailbox getOutgoing() {
+    return this.outgoing;
+  }
+
+  @Override
+  public void close() throws IOException {
+    this.reader.close();
+  }
+
+  /**
+   * Entry point. The exit status is 1 if the controller diverged from the recording.
+   *
+   * <p>Run with <code>java steam.boiler.runner.ReplayEngine journal
+   * [scenario.properties] [-predictive]</code>, where the scenario gives the boiler
+   * characteristics of the recording (the default boiler otherwise).
+   *
+   * @param args
+   *          The journal directory, and optionally a scenario file and controller options.
+   * @throws IOException
+   *           If the journal or scenario cannot be read.
+   */
+  public static void main(String[] args) throws IOException {
+    Path journal = null;
+    SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+    boolean predictive = false;
+    for (String arg : args) {
+      if (arg.equals("-predictive")) {
+        predictive = true;
+      } else if (journal == null) {
+        journal = Paths.get(arg);
+      } else {
+        config = Scenario.load(Paths.get(arg)).getCharacteristics();
+      }
+    }
+    if (journal == null) {
+      System.err.println("usage: ReplayEngine journal [scenario.properties] [-predictive]");
+      System.exit(1);
+      return;
+    }
+    SteamBoilerController controller = new SteamBoilerController(config);
+    controller.setPredictiveControl(predictive);
+    int divergence;
+    long start = System.nanoTime();
+    try (ReplayEngine engine = new ReplayEngine(journal, controller,
+        4 * config.getNumberOfPumps() + 16)) {
+      divergence = engine.run();
+      double wall = (System.nanoTime() - start) / 1e9;
+      System.out.printf("replayed %d ticks (%d messages) in %.2fs%n", engine.getTicks(),
+          engine.getMessages(), wall);
+      if (divergence >= 0) {
+        System.out.println("diverged at tick " + divergence);
+        System.out.println("  received " + engine.getIncoming());
+        System.out.println("  recorded " + engine.getRecorded());
+        System.out.println("  sent     " + engine.getOutgoing());
+      }
+    }
+    System.exit(divergence >= 0 ? 1 : 0);
+  }
+}
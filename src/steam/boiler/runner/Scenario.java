@@ -0,0 +1,262 @@
+package steam.boiler.runner;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+import steam.boiler.util.SteamBoilerCharacteristics;
+
+/**
+ * Describes a simulation run: the boiler characteristics, how long to run for and the
+ * faults which are injected along the way. Scenarios are read from a properties file,
+ * for example:
+ *
+ * <pre>
+ * pumps = 4
+ * pumpCapacity = 4.0
+ * pumpCapacity.3 = 8.0
+ * capacity = 500
+ * normalLevel = 200,300
+ * limitLevel = 100,400
+ * evacuationRate = 5
+ * maximalSteamRate = 10
+ * duration = 604800
+ * fault.1 = 3600 LEVEL_SENSOR StuckZero
+ * fault.2 = 7200 PUMP SticksOpen 2
+ * </pre>
+ *
+ * <p>Every key is optional, missing characteristics are taken from
+ * <code>SteamBoilerCharacteristics.DEFAULT</code>. The duration and fault times are in
+ * simulated seconds, and a fault names a {@link FaultComponent}, one of its models and
+ * (for pumps and pump controllers) the pump affected.
+ *
+ * @author Harsh
+ *
+ */
+public class Scenario {
+
+  /**
+   * The longest duration (in seconds) which can be simulated. The physical units of
+   * the simulation keep their own clock in an int of milliseconds, which overflows
+   * after about 24.8 days and sends the simulated level and steam haywire.
+   */
+  public static final int MAX_DURATION = Integer.MAX_VALUE / 1000;
+
+  private final SteamBoilerCharacteristics config;
+  private final int duration;
+  private final List<Fault> faults;
+
+  /**
+   * Construct a scenario.
+   *
+   * @param config
+   *          The boiler characteristics.
+   * @param duration
+   *          The amount of simulated time (in seconds) to run for.
+   * @param faults
+   *          The faults to inject, in any order.
+   * @throws IllegalArgumentException
+   *           If the duration is negative or longer than MAX_DURATION.
+   */
+  public Scenario(SteamBoilerCharacteristics config, int duration, List<Fault> faults) {
+    if (duration < 0 || duration > MAX_DURATION) {
+      throw new IllegalArgumentException("duration must be between 0 and " + MAX_DURATION
+          + " seconds: " + duration);
+    }
+    this.config = config;
+    this.duration = duration;
+    List<Fault> sorted = new ArrayList<>(faults);
+    sorted.sort((f, g) -> Integer.compare(f.getTime(), g.getTime()));
+    this.faults = Collections.unmodifiableList(sorted);
+  }
+
+  /**
+   * Read a scenario from a properties file.
+   *
+   * @param file
+   *          The file to read.
+   * @return The scenario.
+   * @throws IOException
+   *           If the file cannot be read.
+   */
+  public static Scenario load(Path file) throws IOException {
+    Properties properties = new Properties();
+    try (InputStream in = Files.newInputStream(file)) {
+      properties.load(in);
+    }
+    return parse(properties);
+  }
+
+  /**
+   * Construct a scenario from a set of properties.
+   *
+   * @param properties
+   *          The properties as described above.
+   * @return The scenario.
+   */
+  public static Scenario parse(Properties properties) {
+    SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+    String value = properties.getProperty("pumps");
+    if (value != null) {
+      double capacity = config.getPumpCapacity(0);
+      String pumpCapacity = properties.getProperty("pumpCapacity");
+      if (pumpCapacity != null) {
+        capacity = Double.parseDouble(pumpCapacity.trim());
+      }
+      config = config.setNumberOfPumps(Integer.parseInt(value.trim()), capacity);
+    }
+    for (int i = 0; i != config.getNumberOfPumps(); ++i) {
+      value = properties.getProperty("pumpCapacity." + i);
+      if (value != null) {
+        config = config.setPumpCapacity(i, Double.parseDouble(value.trim()));
+      }
+    }
+    value = properties.getProperty("capacity");
+    if (value != null) {
+      config = config.setCapacity(Double.parseDouble(value.trim()));
+    }
+    value = properties.getProperty("normalLevel");
+    if (value != null) {
+      double[] range = parseRange(value);
+      config = config.setNormalLevelRange(range[0], range[1]);
+    }
+    value = properties.getProperty("limitLevel");
+    if (value != null) {
+      double[] range = parseRange(value);
+      config = config.setLimitLevelRange(range[0], range[1]);
+    }
+    value = properties.getProperty("evacuationRate");
+    if (value != null) {
+      config = config.setEvacuationRate(Double.parseDouble(value.trim()));
+    }
+    value = properties.getProperty("maximalSteamRate");
+    if (value != null) {
+      config = config.setMaximalSteamRate(Double.parseDouble(value.trim()));
+    }
+    int duration = Integer.parseInt(properties.getProperty("duration", "3600").trim());
+    List<Fault> faults = new ArrayList<>();
+    for (String key : properties.stringPropertyNames()) {
+      if (key.startsWith("fault.")) {
+        faults.add(Fault.parse(properties.getProperty(key)));
+      }
+    }
+    return new Scenario(config, duration, faults);
+  }
+
+  private static double[] parseRange(String value) {
+    String[] bounds = value.split(",");
+    if (bounds.length != 2) {
+      throw new IllegalArgumentException("invalid range: " + value);
+    }
+    return new double[] { Double.parseDouble(bounds[0].trim()),
+        Double.parseDouble(bounds[1].trim()) };
+  }
+
+  /**
+   * Construct a boiler for this scenario, waiting to start and with no faults injected.
+   *
+   * @return The boiler.
+   */
+  public SimulatedBoiler createBoiler() {
+    return SimulatedBoiler.waiting(this.config);
+  }
+
+  public SteamBoilerCharacteristics getCharacteristics() {
+    return this.config;
+  }
+
+  public int getDuration() {
+    return this.duration;
+  }
+
+  public List<Fault> getFaults() {
+    return this.faults;
+  }
+
+  /**
+   * A single fault which replaces a component with a given model at a given time.
+   */
+  public static final class Fault {
+    private final int time;
+    private final FaultComponent component;
+    private final Class<?> model;
+    private final int index;
+
+    /**
+     * Construct a fault.
+     *
+     * @param time
+     *          The simulated time (in seconds) at which the fault occurs.
+     * @param component
+     *          The component which fails.
+     * @param model
+     *          The model which the component is replaced with.
+     * @param index
+     *          The pump affected, ignored unless the component is a pump or pump
+     *          controller.
+     */
+    public Fault(int time, FaultComponent component, Class<?> model, int index) {
+      this.time = time;
+      this.component = component;
+      this.model = model;
+      this.index = index;
+    }
+
+    /**
+     * Parse a fault of the form <code>time component model [index]</code>.
+     *
+     * @param text
+     *          The text to parse.
+     * @return The fault.
+     */
+    public static Fault parse(String text) {
+      String[] parts = text.trim().split("\\s+");
+      if (parts.length < 3 || parts.length > 4) {
+        throw new IllegalArgumentException("invalid fault: " + text);
+      }
+      FaultComponent component = FaultComponent.valueOf(parts[1]);
+      int index = parts.length == 4 ? Integer.parseInt(parts[3]) : 0;
+      return new Fault(Integer.parseInt(parts[0]), component, component.getModel(parts[2]),
+          index);
+    }
+
+    /**
+     * Inject this fault into a given boiler.
+     *
+     * @param boiler
+     *          The boiler to modify.
+     * @param config
+     *          The characteristics the boiler was constructed with.
+     */
+    public void inject(SimulatedBoiler boiler, SteamBoilerCharacteristics config) {
+      this.component.inject(boiler.getPhysicalUnits(), config, this.model, this.index);
+    }
+
+    public int getTime() {
+      return this.time;
+    }
+
+    public FaultComponent getComponent() {
+      return this.component;
+    }
+
+    public Class<?> getModel() {
+      return this.model;
+    }
+
+    public int getIndex() {
+      return this.index;
+    }
+
+    @Override
+    public String toString() {
+      return this.time + " " + this.component + " " + this.model.getSimpleName() + " "
+          + this.index;
+    }
+  }
+}
@@ -0,0 +1,175 @@
+package steam.boiler.runner;
+
+import steam.boiler.core.BoundedMailbox;
+import steam.boiler.core.SteamBoilerController;
+import steam.boiler.journal.JournalWriter;
+import steam.boiler.model.PhysicalUnits;
+import steam.boiler.util.Mailbox;
+import steam.boiler.util.SteamBoilerCharacteristics;
+
+/**
+ * A controller paired with the physical units it manages. This clocks the two
+ * components together in exactly the same way as <code>TestUtils.clock()</code>:
+ * the physical units are advanced in 100ms steps, and every five seconds the
+ * two components exchange messages. The mailboxes are bounded and reused between
+ * transmission cycles, so they do not allocate once the boiler is constructed.
+ *
+ * @author Harsh
+ *
+ */
+public class SimulatedBoiler {
+  /**
+   * The amount of time (in milliseconds) the physical units are advanced by per step.
+   */
+  public static final int GRANULARITY = 100;
+
+  /**
+   * The amount of time (in milliseconds) between two transmission cycles.
+   */
+  public static final int TRANSMISSION_PERIOD = 5000;
+
+  private final SteamBoilerController controller;
+  private final PhysicalUnits physicalUnits;
+  private final Mailbox input;
+  private final Mailbox output;
+  private long totalElapsed;
+  private long lastTickNanos;
+  private JournalWriter journal;
+
+  /**
+   * Construct a boiler from a given controller and set of physical units.
+   *
+   * @param controller
+   *          The controller managing the boiler.
+   * @param physicalUnits
+   *          The physical units being managed.
+   */
+  public SimulatedBoiler(SteamBoilerController controller, PhysicalUnits physicalUnits) {
+    this.controller = controller;
+    this.physicalUnits = physicalUnits;
+    int capacity = 4 * physicalUnits.getNumberOfPumps() + 16;
+    this.input = new BoundedMailbox(capacity);
+    this.output = new BoundedMailbox(capacity);
+    this.totalElapsed = 0;
+  }
+
+  /**
+   * Construct a boiler with ideal physical units which are waiting to start.
+   *
+   * @param config
+   *          The boiler characteristics to be used.
+   * @return The boiler.
+   */
+  public static SimulatedBoiler waiting(SteamBoilerCharacteristics config) {
+    PhysicalUnits physicalUnits = new PhysicalUnits.Template(config).construct();
+    physicalUnits.setMode(PhysicalUnits.Mode.WAITING);
+    return new SimulatedBoiler(new SteamBoilerController(config), physicalUnits);
+  }
+
+  /**
+   * Advance the system by one step. When the total elapsed time is a multiple of
+   * five seconds the controller is clocked as well.
+   *
+   * @return The messages sent by the controller, or null if this wasn't a
+   *         transmission cycle. The mailbox is reused by the next transmission cycle.
+   */
+  public Mailbox clock() {
+    Mailbox received = null;
+    this.physicalUnits.clock(GRANULARITY);
+    if ((this.totalElapsed % TRANSMISSION_PERIOD) == 0) {
+      this.input.clearAll();
+      this.output.clearAll();
+      this.physicalUnits.transmit(this.input);
+      long start = System.nanoTime();
+      this.controller.clock(this.input, this.output);
+      this.lastTickNanos = System.nanoTime() - start;
+      this.physicalUnits.receive(this.output);
+      if (this.journal != null) {
+        this.journal.record((int) (this.totalElapsed / TRANSMISSION_PERIOD), this.input,
+            this.output);
+      }
+      received = this.output;
+    }
+    this.totalElapsed += GRANULARITY;
+    return received;
+  }
+
+  /**
+   * Advance the system over one full transmission period, i.e. up to (but not
+   * including) the next synchronisation point.
+   *
+   * @return The messages sent by the controller during this period, or null if no
+   *         transmission cycle occurred.
+   */
+  public Mailbox clockPeriod() {
+    Mailbox received = null;
+    long end = this.totalElapsed + TRANSMISSION_PERIOD;
+    while (this.totalElapsed < end) {
+      Mailbox m = clock();
+      if (m != null) {
+        received = m;
+      }
+    }
+    return received;
+  }
+
+  public SteamBoilerController getController() {
+    return this.controller;
+  }
+
+  public PhysicalUnits getPhysicalUnits() {
+    return this.physicalUnits;
+  }
+
+  /**
+   * The messages transmitted by the physical units on the last transmission cycle.
+   *
+   * @return The incoming mailbox of the controller.
+   */
+  public Mailbox getInput() {
+    return this.input;
+  }
+
+  /**
+   * The messages sent by the controller on the last transmission cycle.
+   *
+   * @return The outgoing mailbox of the controller.
+   */
+  public Mailbox getOutput() {
+    return this.output;
+  }
+
+  public JournalWriter getJournal() {
+    return this.journal;
+  }
+
+  /**
+   * When a journal is set, the messages exchanged on every transmission cycle are
+   * appended to it. The tick recorded is the number of the transmission cycle.
+   *
+   * @param journal
+   *          The journal, or null to stop journalling.
+   */
+  public void setJournal(JournalWriter journal) {
+    this.journal = journal;
+  }
+
+  /**
+   * The simulated time since the boiler was constructed. This is a long, as a run of
+   * more than about 24 days overflows an int of milliseconds.
+   *
+   * @return The time in milliseconds.
+   */
+  public long getTotalElapsed() {
+    return this.totalElapsed;
+  }
+
+  /**
+   * The time taken by the controller to process the last transmission cycle.
+   *
+   * @return The duration in nanoseconds.
+   */
+  public long getLastTickNanos() {
+    return this.lastTickNanos;
+  }
+}
@@ -0,0 +1,113 @@
+package steam.boiler.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Test;
+
+import steam.boiler.core.Messages;
+import steam.boiler.runner.BoilerFleet;
+import steam.boiler.runner.FaultComponent;
+import steam.boiler.runner.Scenario;
+import steam.boiler.runner.SimulatedBoiler;
+import steam.boiler.util.Mailbox;
+import steam.boiler.util.SteamBoilerCharacteristics;
+
+/**
+ * Tests for {@link BoilerFleet}, in particular that clocking boilers in parallel gives the same
+ * results as clocking them one after another.
+ *
+ * @author Harsh
+ *
+ */
+public class BoilerFleetTests {
+
+  /**
+   * The number of boilers in a fleet, enough for the boilers to be split between several tasks.
+   */
+  private static final int SIZE = 48;
+
+  /**
+   * Check every boiler of a fleet clocked in parallel ends in the same mode, with the same level
+   * and the same last output, as when the fleet is clocked on a single thread. Each boiler has a
+   * different fault, so the boilers do not all behave alike.
+   */
+  @Test
+  public void test_fleet_parallel_01() {
+    ForkJoinPool pool = new ForkJoinPool(4);
+    try {
+      BoilerFleet parallel = new BoilerFleet(faulty(), pool);
+      BoilerFleet serial = new BoilerFleet(faulty(), pool);
+      parallel.run(600);
+      serial.runSerial(600);
+      assertEquals(serial.getTotalElapsed(), parallel.getTotalElapsed());
+      for (int index = 0; index != SIZE; ++index) {
+        SimulatedBoiler expected = serial.getBoiler(index);
+        SimulatedBoiler actual = parallel.getBoiler(index);
+        assertEquals(expected.getController().getMode(), actual.getController().getMode());
+        assertEquals(expected.getController().getWaterLevel(),
+            actual.getController().getWaterLevel(), 0);
+        assertEquals(expected.getPhysicalUnits().getBoiler().getWaterLevel(),
+            actual.getPhysicalUnits().getBoiler().getWaterLevel(), 0);
+        Mailbox output = expected.getOutput();
+        assertEquals(output.size(), actual.getOutput().size());
+        for (int message = 0; message < output.size(); message++) {
+          assertTrue(Messages.same(output.read(message), actual.getOutput().read(message)));
+        }
+      }
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  /**
+   * Check a run which would take the fleet past the longest duration the simulation can reach
+   * is rejected, rather than overflowing and running nothing.
+   */
+  @Test
+  public void test_fleet_duration_01() {
+    ForkJoinPool pool = new ForkJoinPool(1);
+    try {
+      BoilerFleet fleet = BoilerFleet.create(SteamBoilerCharacteristics.DEFAULT, 1, pool);
+      try {
+        fleet.run(Scenario.MAX_DURATION + 1);
+        fail("duration past the simulation clock accepted");
+      } catch (IllegalArgumentException e) {
+        // expected
+      }
+      fleet.runSerial(5);
+      try {
+        fleet.runSerial(Scenario.MAX_DURATION);
+        fail("duration past the simulation clock accepted");
+      } catch (IllegalArgumentException e) {
+        // expected
+      }
+      assertEquals(5000, fleet.getTotalElapsed());
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  /**
+   * Construct boilers which are waiting to start, each with a different fault from the start.
+   *
+   * @return The boilers.
+   */
+  private static SimulatedBoiler[] faulty() {
+    SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+    FaultComponent[] components = FaultComponent.values();
+    SimulatedBoiler[] boilers = new SimulatedBoiler[SIZE];
+    for (int index = 0; index != SIZE; ++index) {
+      boilers[index] = SimulatedBoiler.waiting(config);
+      FaultComponent component = components[index % components.length];
+      Class<?>[] models = component.getModels();
+      component.inject(boilers[index].getPhysicalUnits(), config,
+          models[(index / components.length) % models.length],
+          index % config.getNumberOfPumps());
+    }
+    return boilers;
+  }
+}
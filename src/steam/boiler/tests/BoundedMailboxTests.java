@@ -0,0 +1,94 @@
+package steam.boiler.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import steam.boiler.core.BoundedMailbox;
+import steam.boiler.util.Mailbox;
+import steam.boiler.util.Mailbox.Message;
+import steam.boiler.util.Mailbox.MessageKind;
+
+/**
+ * Tests for {@link BoundedMailbox}, in particular that slots reused after clearAll() behave like
+ * new messages.
+ *
+ * @author Harsh
+ *
+ */
+public class BoundedMailboxTests {
+
+  /**
+   * Check a mailbox holds what was sent to it, in order, and counts each kind.
+   */
+  @Test
+  public void test_mailbox_send_01() {
+    BoundedMailbox mailbox = new BoundedMailbox(4);
+    mailbox.send(new Message(MessageKind.OPEN_PUMP_n, 1));
+    mailbox.send(new Message(MessageKind.LEVEL_v, 250.0));
+    mailbox.send(new Message(MessageKind.OPEN_PUMP_n, 2));
+    assertEquals(3, mailbox.size());
+    assertEquals(new Message(MessageKind.LEVEL_v, 250.0), mailbox.read(1));
+    assertEquals(2, mailbox.count(MessageKind.OPEN_PUMP_n));
+    assertEquals(0, mailbox.count(MessageKind.CLOSE_PUMP_n));
+    assertEquals(2, mailbox.nextIndexOf(mailbox.indexOf(MessageKind.OPEN_PUMP_n)));
+    assertTrue(mailbox.contains(new Message(MessageKind.OPEN_PUMP_n, 2)));
+    assertFalse(mailbox.contains(new Message(MessageKind.OPEN_PUMP_n, 3)));
+  }
+
+  /**
+   * Check slots reused after clearAll() hold nothing of the messages sent before, both when
+   * looked up with contains() and when read back and compared with equals().
+   */
+  @Test
+  public void test_mailbox_reuse_01() {
+    BoundedMailbox mailbox = new BoundedMailbox(3);
+    mailbox.send(new Message(MessageKind.OPEN_PUMP_n, 1));
+    mailbox.send(new Message(MessageKind.MODE_m, Mailbox.Mode.NORMAL));
+    mailbox.send(new Message(MessageKind.PUMP_STATE_n_b, 3, true));
+    mailbox.clearAll();
+    assertEquals(0, mailbox.size());
+    assertFalse(mailbox.contains(new Message(MessageKind.OPEN_PUMP_n, 1)));
+    mailbox.send(new Message(MessageKind.PROGRAM_READY));
+    mailbox.send(new Message(MessageKind.OPEN_PUMP_n, 1));
+    mailbox.send(new Message(MessageKind.LEVEL_v, 0.0));
+    assertTrue(mailbox.contains(new Message(MessageKind.PROGRAM_READY)));
+    assertTrue(mailbox.contains(new Message(MessageKind.OPEN_PUMP_n, 1)));
+    assertTrue(mailbox.contains(new Message(MessageKind.LEVEL_v, 0.0)));
+    assertEquals(new Message(MessageKind.PROGRAM_READY), mailbox.read(0));
+    assertEquals(new Message(MessageKind.OPEN_PUMP_n, 1), mailbox.read(1));
+    assertEquals(new Message(MessageKind.LEVEL_v, 0.0), mailbox.read(2));
+  }
+
+  /**
+   * Check the sender may reuse a message as soon as it has been sent.
+   */
+  @Test
+  public void test_mailbox_reuse_02() {
+    BoundedMailbox mailbox = new BoundedMailbox(2);
+    Message message = new Message(MessageKind.OPEN_PUMP_n, 0);
+    mailbox.send(message);
+    message.set(MessageKind.CLOSE_PUMP_n, 1);
+    mailbox.send(message);
+    assertEquals(new Message(MessageKind.OPEN_PUMP_n, 0), mailbox.read(0));
+    assertEquals(new Message(MessageKind.CLOSE_PUMP_n, 1), mailbox.read(1));
+  }
+
+  /**
+   * Check a full mailbox rejects another message.
+   */
+  @Test
+  public void test_mailbox_full_01() {
+    BoundedMailbox mailbox = new BoundedMailbox(1);
+    mailbox.send(new Message(MessageKind.PROGRAM_READY));
+    try {
+      mailbox.send(new Message(MessageKind.PROGRAM_READY));
+      fail("sent to a full mailbox");
+    } catch (IllegalStateException e) {
+      // expected
+    }
+  }
+}
@@ -0,0 +1,99 @@
+package steam.boiler.tests;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import steam.boiler.core.BoundedMailbox;
+import steam.boiler.journal.JournalReader;
+import steam.boiler.journal.JournalWriter;
+import steam.boiler.util.Mailbox;
+import steam.boiler.util.Mailbox.Message;
+import steam.boiler.util.Mailbox.MessageKind;
+
+/**
+ * Tests for {@link JournalWriter}, in particular that a tick is never split between two
+ * segments.
+ *
+ * @author Harsh
+ *
+ */
+public class JournalWriterTests {
+
+  /**
+   * Check a tick which does not fit in what is left of a segment is written to the next
+   * segment, so every segment commits whole ticks, and that the ticks read back as written.
+   *
+   * @throws IOException
+   *           If the journal cannot be used.
+   */
+  @Test
+  public void test_journal_roll_01() throws IOException {
+    Path directory = Files.createTempDirectory("journal");
+    try {
+      Mailbox incoming = new BoundedMailbox(4);
+      Mailbox outgoing = new BoundedMailbox(4);
+      incoming.send(new Message(MessageKind.LEVEL_v, 250.0));
+      incoming.send(new Message(MessageKind.STEAM_v, 5.0));
+      incoming.send(new Message(MessageKind.PUMP_STATE_n_b, 0, true));
+      outgoing.send(new Message(MessageKind.OPEN_PUMP_n, 1));
+      // room for two ticks of four messages and half of a third.
+      try (JournalWriter writer = new JournalWriter(directory, 10, 0)) {
+        for (int tick = 0; tick != 5; ++tick) {
+          writer.record(tick, incoming, outgoing);
+        }
+      }
+      List<Path> segments = segments(directory);
+      assertEquals(3, segments.size());
+      assertEquals(8, committed(segments.get(0)));
+      assertEquals(8, committed(segments.get(1)));
+      assertEquals(4, committed(segments.get(2)));
+      Mailbox in = new BoundedMailbox(8);
+      Mailbox out = new BoundedMailbox(8);
+      try (JournalReader reader = new JournalReader(directory)) {
+        for (int tick = 0; tick != 5; ++tick) {
+          assertEquals(tick, reader.readTick(in, out));
+          assertEquals(3, in.size());
+          assertEquals(1, out.size());
+          assertEquals(new Message(MessageKind.OPEN_PUMP_n, 1), out.read(0));
+        }
+        assertEquals(-1, reader.readTick(in, out));
+      }
+    } finally {
+      for (Path segment : segments(directory)) {
+        Files.delete(segment);
+      }
+      Files.delete(directory);
+    }
+  }
+
+  private static List<Path> segments(Path directory) throws IOException {
+    List<Path> segments = new ArrayList<>();
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+      for (Path path : stream) {
+        segments.add(path);
+      }
+    }
+    Collections.sort(segments);
+    return segments;
+  }
+
+  private static long committed(Path segment) throws IOException {
+    try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ)) {
+      ByteBuffer header = ByteBuffer.allocate(8);
+      channel.read(header, 16);
+      return header.getLong(0);
+    }
+  }
+}
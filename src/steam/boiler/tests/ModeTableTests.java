@@ -0,0 +1,114 @@
+package steam.boiler.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import steam.boiler.core.ModeTable;
+import steam.boiler.runner.FaultComponent;
+import steam.boiler.runner.SimulatedBoiler;
+import steam.boiler.util.Mailbox;
+import steam.boiler.util.Mailbox.Message;
+import steam.boiler.util.Mailbox.MessageKind;
+import steam.boiler.util.Mailbox.Mode;
+import steam.boiler.util.SteamBoilerCharacteristics;
+
+/**
+ * Tests for {@link ModeTable}, and that the controller moves into the mode the table gives
+ * rather than only announcing it.
+ *
+ * @author Harsh
+ *
+ */
+public class ModeTableTests {
+
+  /**
+   * Check a failed level reading in normal mode leads to rescue mode.
+   */
+  @Test
+  public void test_table_level_failed_01() {
+    int cell = ModeTable.cell(Mode.NORMAL, ModeTable.LEVEL_FAILED);
+    assertTrue((ModeTable.getActions(cell) & ModeTable.LEVEL_FAILURE) != 0);
+    assertFalse((ModeTable.getActions(cell) & ModeTable.EMERGENCY_STOP) != 0);
+    assertEquals(Mode.RESCUE, ModeTable.getTarget(cell));
+  }
+
+  /**
+   * Check the level being outside the limits wins over the level sensor failing, which is why
+   * the controller must not judge the limits by a failed reading.
+   */
+  @Test
+  public void test_table_level_failed_02() {
+    int cell = ModeTable.cell(Mode.NORMAL,
+        ModeTable.LEVEL_FAILED | ModeTable.LEVEL_OUTSIDE_LIMITS);
+    assertTrue((ModeTable.getActions(cell) & ModeTable.EMERGENCY_STOP) != 0);
+    assertEquals(Mode.EMERGENCY_STOP, ModeTable.getTarget(cell));
+  }
+
+  /**
+   * Check no transition leaves the mode unchanged.
+   */
+  @Test
+  public void test_table_no_transition_01() {
+    assertEquals(Mode.NORMAL, ModeTable.getTarget(ModeTable.cell(Mode.NORMAL, 0)));
+    assertEquals(Mode.RESCUE, ModeTable.getTarget(ModeTable.cell(Mode.RESCUE, 0)));
+    assertEquals(Mode.INITIALISATION,
+        ModeTable.getTarget(ModeTable.cell(Mode.INITIALISATION, 0)));
+  }
+
+  /**
+   * Check a level sensor reading below zero in normal mode is reported, and that the controller
+   * then stays in rescue mode instead of stopping.
+   */
+  @Test
+  public void test_controller_rescue_01() {
+    SimulatedBoiler boiler = started();
+    inject(boiler, FaultComponent.LEVEL_SENSOR, "StuckNegativeOne");
+    Mailbox output = boiler.clockPeriod();
+    assertTrue(output.contains(new Message(MessageKind.LEVEL_FAILURE_DETECTION)));
+    assertTrue(output.contains(new Message(MessageKind.MODE_m, Mode.RESCUE)));
+    assertFalse(output.contains(new Message(MessageKind.MODE_m, Mode.EMERGENCY_STOP)));
+    assertEquals(Mode.RESCUE, boiler.getController().getMode());
+    output = boiler.clockPeriod();
+    assertFalse(output.contains(new Message(MessageKind.LEVEL_FAILURE_DETECTION)));
+    assertEquals(Mode.RESCUE, boiler.getController().getMode());
+  }
+
+  /**
+   * Check a steam sensor reading below zero in normal mode is reported once, and that the
+   * controller then stays in degraded mode.
+   */
+  @Test
+  public void test_controller_degraded_01() {
+    SimulatedBoiler boiler = started();
+    inject(boiler, FaultComponent.STEAM_SENSOR, "StuckNegativeOne");
+    Mailbox output = boiler.clockPeriod();
+    assertTrue(output.contains(new Message(MessageKind.STEAM_FAILURE_DETECTION)));
+    assertTrue(output.contains(new Message(MessageKind.MODE_m, Mode.DEGRADED)));
+    assertEquals(Mode.DEGRADED, boiler.getController().getMode());
+    output = boiler.clockPeriod();
+    assertFalse(output.contains(new Message(MessageKind.STEAM_FAILURE_DETECTION)));
+    assertEquals(Mode.DEGRADED, boiler.getController().getMode());
+  }
+
+  /**
+   * Construct a boiler and run it for a minute, by which time it is in normal mode.
+   *
+   * @return The boiler.
+   */
+  private static SimulatedBoiler started() {
+    SimulatedBoiler boiler = SimulatedBoiler.waiting(SteamBoilerCharacteristics.DEFAULT);
+    for (int period = 0; period != 12; ++period) {
+      boiler.clockPeriod();
+    }
+    assertEquals(Mode.NORMAL, boiler.getController().getMode());
+    return boiler;
+  }
+
+  private static void inject(SimulatedBoiler boiler, FaultComponent component, String model) {
+    component.inject(boiler.getPhysicalUnits(), SteamBoilerCharacteristics.DEFAULT,
+        component.getModel(model), 0);
+  }
+}
@@ -0,0 +1,110 @@
+package steam.boiler.tests;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.experimental.ParallelComputer;
+import org.junit.runner.Description;
+import org.junit.runner.JUnitCore;
+import org.junit.runner.Result;
+import org.junit.runner.notification.Failure;
+import org.junit.runner.notification.RunListener;
+
+/**
+ * Runs test classes with their test methods spread over several threads, and reports the wall
+ * time of every test. Tests may run concurrently because each test constructs its own controller
+ * and physical units, the mailboxes used by {@link TestUtils} are per thread, and the matchers it
+ * provides are immutable.
+ *
+ * <p>Run with <code>java steam.boiler.tests.ParallelTestRunner [class...]</code>, which runs
+ * <code>FunctionalTests</code> and <code>SafetyTests</code> when no classes are given. The exit
+ * status is non-zero if any test fails.
+ *
+ * @author Harsh
+ *
+ */
+public class ParallelTestRunner {
+
+  /**
+   * The test classes run when none are given.
+   */
+  private static final String[] DEFAULT_CLASSES = { "steam.boiler.tests.FunctionalTests",
+      "steam.boiler.tests.SafetyTests" };
+
+  /**
+   * Run a set of test classes, with both the classes and their methods running in parallel.
+   *
+   * @param classes
+   *          The test classes.
+   * @param timings
+   *          Receives the wall time (in nanoseconds) of every test which was run.
+   * @return The result of the run.
+   */
+  public static Result run(Class<?>[] classes, Map<Description, Long> timings) {
+    JUnitCore core = new JUnitCore();
+    core.addListener(new Timer(timings));
+    return core.run(new ParallelComputer(true, true), classes);
+  }
+
+  /**
+   * Records the wall time of each test. Several tests run at once, each starting and finishing
+   * on its own thread, hence the start times are kept in a concurrent map.
+   */
+  @RunListener.ThreadSafe
+  private static final class Timer extends RunListener {
+    private final Map<Description, Long> started = new ConcurrentHashMap<>();
+    private final Map<Description, Long> timings;
+
+    Timer(Map<Description, Long> timings) {
+      this.timings = timings;
+    }
+
+    @Override
+    public void testStarted(Description description) {
+      this.started.put(description, System.nanoTime());
+    }
+
+    @Override
+    public void testFinished(Description description) {
+      Long start = this.started.remove(description);
+      if (start != null) {
+        this.timings.put(description, System.nanoTime() - start);
+      }
+    }
+  }
+
+  /**
+   * Entry point.
+   *
+   * @param args
+   *          The names of the test classes to run.
+   * @throws ClassNotFoundException
+   *           If a test class cannot be found.
+   */
+  public static void main(String[] args) throws ClassNotFoundException {
+    String[] names = args.length > 0 ? args : DEFAULT_CLASSES;
+    Class<?>[] classes = new Class<?>[names.length];
+    for (int i = 0; i != names.length; ++i) {
+      classes[i] = Class.forName(names[i]);
+    }
+    Map<Description, Long> timings = new ConcurrentHashMap<>();
+    long start = System.nanoTime();
+    Result result = run(classes, timings);
+    long wall = System.nanoTime() - start;
+    List<Description> tests = new ArrayList<>(timings.keySet());
+    // slowest first, so that the tests worth splitting up are at the top.
+    tests.sort((d, e) -> Long.compare(timings.get(e), timings.get(d)));
+    for (Description test : tests) {
+      System.out.printf("%8.1fms %s.%s%n", timings.get(test) / 1e6, test.getClassName(),
+          test.getMethodName());
+    }
+    for (Failure failure : result.getFailures()) {
+      System.out.println("FAILED " + failure.getTestHeader() + ": " + failure.getMessage());
+    }
+    System.out.printf("tests=%d failures=%d ignored=%d wall=%.1fms%n", result.getRunCount(),
+        result.getFailureCount(), result.getIgnoreCount(), wall / 1e6);
+    System.exit(result.wasSuccessful() ? 0 : 1);
+  }
+}
@@ -0,0 +1,90 @@
+package steam.boiler.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import steam.boiler.core.PumpStore;
+import steam.boiler.core.SteamBoilerController;
+import steam.boiler.runner.SimulatedBoiler;
+import steam.boiler.util.Mailbox;
+import steam.boiler.util.SteamBoilerCharacteristics;
+
+/**
+ * Tests for predictive water level control, see
+ * {@link SteamBoilerController#setPredictiveControl(boolean)}.
+ *
+ * @author Harsh
+ *
+ */
+public class PredictiveControlTests {
+
+  /**
+   * Check the pumps filling the boiler during initialisation are left open once they are
+   * predicted to bring the level near the midpoint of N1 and N2, rather than all being closed.
+   * Starting from 150 litres, 6.7 litres per second are needed to reach the midpoint over three
+   * cycles, so the first two pumps (8 litres per second) are opened and then left alone until the
+   * level reaches N1.
+   */
+  @Test
+  public void test_predictive_initialisation_01() {
+    SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+    SimulatedBoiler boiler = SimulatedBoiler.waiting(config);
+    boiler.getPhysicalUnits().getBoiler().pumpInWater(150);
+    SteamBoilerController controller = boiler.getController();
+    controller.setPredictiveControl(true);
+    boiler.clockPeriod();
+    PumpStore store = controller.getPumpStore();
+    assertEquals(2, controller.getPumpCommandsSent());
+    while (controller.getMode() == Mailbox.Mode.INITIALISATION) {
+      assertTrue(store.isCommandedOpen(0));
+      assertTrue(store.isCommandedOpen(1));
+      assertFalse(store.isCommandedOpen(2));
+      assertFalse(store.isCommandedOpen(3));
+      boiler.clockPeriod();
+    }
+    assertEquals(2, controller.getPumpCommandsSent());
+    assertTrue(boiler.getPhysicalUnits().getBoiler().getWaterLevel()
+        >= config.getMinimalNormalLevel());
+  }
+
+  /**
+   * Check that, over an hour from start up, predictive control settles into the normal range
+   * sooner than the default heuristic and switches pumps far less often.
+   */
+  @Test
+  public void test_predictive_settle_01() {
+    long[] heuristic = settle(false);
+    long[] predictive = settle(true);
+    assertTrue(predictive[0] + " s against " + heuristic[0] + " s",
+        predictive[0] < heuristic[0]);
+    assertTrue(predictive[1] + " switches against " + heuristic[1],
+        2 * predictive[1] < heuristic[1]);
+  }
+
+  /**
+   * Run the default boiler from start up for an hour.
+   *
+   * @param predictive
+   *          Whether predictive control is enabled.
+   * @return The simulated time (in seconds) after which the level never leaves the normal range
+   *         again, and the number of pump commands sent.
+   */
+  private static long[] settle(boolean predictive) {
+    SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+    SimulatedBoiler boiler = SimulatedBoiler.waiting(config);
+    boiler.getController().setPredictiveControl(predictive);
+    long settle = 0;
+    while (boiler.getTotalElapsed() < 3600 * 1000) {
+      boiler.clockPeriod();
+      double level = boiler.getPhysicalUnits().getBoiler().getWaterLevel();
+      if (level < config.getMinimalNormalLevel() || level > config.getMaximalNormalLevel()) {
+        settle = boiler.getTotalElapsed();
+      }
+    }
+    assertEquals(Mailbox.Mode.NORMAL, boiler.getController().getMode());
+    return new long[] { settle / 1000, boiler.getController().getPumpCommandsSent() };
+  }
+}
@@ -0,0 +1,138 @@
+package steam.boiler.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+import steam.boiler.core.BoundedMailbox;
+import steam.boiler.core.Messages;
+import steam.boiler.core.PumpFailureDetector;
+import steam.boiler.core.SteamBoilerController;
+import steam.boiler.model.PhysicalUnits;
+import steam.boiler.model.PumpModels;
+import steam.boiler.model.SteamSensorModels;
+import steam.boiler.runner.SimulatedBoiler;
+import steam.boiler.util.Mailbox;
+import steam.boiler.util.Mailbox.Message;
+import steam.boiler.util.Mailbox.MessageKind;
+import steam.boiler.util.SteamBoilerCharacteristics;
+
+/**
+ * Tests for {@link PumpFailureDetector}, run against the simulated boiler.
+ *
+ * @author Harsh
+ *
+ */
+public class PumpFailureDetectorTests {
+
+  /**
+   * Check the mass balance still finds a pump pumping half its capacity once another pump has
+   * been found stuck open, since the stuck pump is counted in the state it reports.
+   */
+  @Test
+  public void test_detector_mass_balance_01() {
+    SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+    SimulatedBoiler boiler = SimulatedBoiler.waiting(config);
+    PhysicalUnits units = boiler.getPhysicalUnits();
+    run(boiler, 18);
+    // pump 3 is open now, and is stuck open the next time it is closed.
+    PhysicalUnits.Pump stuck = new PumpModels.SticksOpen(3, config.getPumpCapacity(3), units);
+    if (units.getPump(3).isOpen()) {
+      stuck.open();
+    }
+    units.setPump(3, stuck);
+    assertEquals(1, count(run(boiler, 12), new Message(MessageKind.PUMP_FAILURE_DETECTION_n, 3)));
+    PhysicalUnits.Pump half = new PumpModels.ReducedHalf(1, config.getPumpCapacity(1), units);
+    if (units.getPump(1).isOpen()) {
+      half.open();
+    }
+    units.setPump(1, half);
+    Mailbox output = run(boiler, 30);
+    assertEquals(1, count(output, new Message(MessageKind.PUMP_FAILURE_DETECTION_n, 1)));
+    assertEquals(0, count(output, new Message(MessageKind.MODE_m, Mailbox.Mode.EMERGENCY_STOP)));
+  }
+
+  /**
+   * Check a pump which stops sending its state is reported once, but is not marked broken and so
+   * is still opened.
+   */
+  @Test
+  public void test_detector_silent_01() {
+    SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+    SimulatedBoiler boiler = SimulatedBoiler.waiting(config);
+    PhysicalUnits units = boiler.getPhysicalUnits();
+    run(boiler, 12);
+    PhysicalUnits.Pump silent = new PumpModels.TxFailureAll(1, config.getPumpCapacity(1), units);
+    if (units.getPump(1).isOpen()) {
+      silent.open();
+    }
+    units.setPump(1, silent);
+    Mailbox output = run(boiler, 48);
+    assertEquals(1, count(output, new Message(MessageKind.PUMP_FAILURE_DETECTION_n, 1)));
+    assertFalse(boiler.getController().getPumpStore().isBroken(1));
+    assertTrue(count(output, new Message(MessageKind.OPEN_PUMP_n, 1)) > 0);
+    assertEquals(0, count(output, new Message(MessageKind.MODE_m, Mailbox.Mode.EMERGENCY_STOP)));
+  }
+
+  /**
+   * Check a controller which takes over from the saved state of another does not report a
+   * failure again, or forget the steam sensor has failed.
+   */
+  @Test
+  public void test_detector_failover_01() {
+    SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+    SimulatedBoiler boiler = SimulatedBoiler.waiting(config);
+    PhysicalUnits units = boiler.getPhysicalUnits();
+    run(boiler, 12);
+    units.setPump(1, new PumpModels.TxFailureAll(1, config.getPumpCapacity(1), units));
+    units.setSteamSensor(new SteamSensorModels.StuckNegativeOne(units));
+    Mailbox output = run(boiler, 2);
+    assertEquals(1, count(output, new Message(MessageKind.PUMP_FAILURE_DETECTION_n, 1)));
+    assertEquals(1, count(output, new Message(MessageKind.STEAM_FAILURE_DETECTION)));
+    SteamBoilerController controller = boiler.getController();
+    ByteBuffer state = ByteBuffer.allocate(controller.getStateSize());
+    controller.saveState(state);
+    state.flip();
+    SteamBoilerController standby = new SteamBoilerController(config);
+    standby.restoreState(state);
+    SimulatedBoiler takeover = new SimulatedBoiler(standby, units);
+    output = run(takeover, 12);
+    assertEquals(0, count(output, new Message(MessageKind.PUMP_FAILURE_DETECTION_n, 1)));
+    assertEquals(0, count(output, new Message(MessageKind.STEAM_FAILURE_DETECTION)));
+    assertEquals(Mailbox.Mode.DEGRADED, standby.getMode());
+  }
+
+  /**
+   * Run the boiler for a number of periods.
+   *
+   * @param boiler
+   *          The boiler.
+   * @param periods
+   *          The number of periods.
+   * @return Every message the controller sent, in order.
+   */
+  private static Mailbox run(SimulatedBoiler boiler, int periods) {
+    Mailbox result = new BoundedMailbox(64 * periods);
+    for (int period = 0; period != periods; ++period) {
+      Mailbox output = boiler.clockPeriod();
+      for (int index = 0; index < output.size(); index++) {
+        result.send(output.read(index));
+      }
+    }
+    return result;
+  }
+
+  private static int count(Mailbox mailbox, Message message) {
+    int result = 0;
+    for (int index = 0; index < mailbox.size(); index++) {
+      if (Messages.same(mailbox.read(index), message)) {
+        result++;
+      }
+    }
+    return result;
+  }
+}
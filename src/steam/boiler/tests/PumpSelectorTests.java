@@ -0,0 +1,138 @@
+package steam.boiler.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import steam.boiler.core.PumpSelector;
+import steam.boiler.core.PumpStore;
+
+/**
+ * Tests for {@link PumpSelector}.
+ *
+ * @author Harsh
+ *
+ */
+public class PumpSelectorTests {
+
+  /**
+   * Check pumps of equal capacity are taken lowest index first.
+   */
+  @Test
+  public void test_selector_ties_01() {
+    PumpSelector selector = new PumpSelector(store(4, 4, 4, 4));
+    assertEquals(8, selector.select(8), 0);
+    assertSelected(selector, true, true, false, false);
+  }
+
+  /**
+   * Check deferred pumps are only taken once the others of the same capacity are, without
+   * changing the capacity selected.
+   */
+  @Test
+  public void test_selector_ties_02() {
+    PumpSelector selector = new PumpSelector(store(4, 4, 4, 4));
+    long[] deferred = { 0b0011 };
+    assertEquals(8, selector.select(8, deferred), 0);
+    assertSelected(selector, false, false, true, true);
+    assertEquals(12, selector.select(12, deferred), 0);
+    assertSelected(selector, true, false, true, true);
+  }
+
+  /**
+   * Check a deferred pump is still taken when it is the only one of the capacity needed.
+   */
+  @Test
+  public void test_selector_ties_03() {
+    PumpSelector selector = new PumpSelector(store(2, 4, 4, 8));
+    long[] deferred = { 0b1001 };
+    assertEquals(10, selector.select(10, deferred), 0);
+    assertSelected(selector, true, false, false, true);
+    assertEquals(4, selector.select(4, deferred), 0);
+    assertSelected(selector, false, true, false, false);
+  }
+
+  /**
+   * Check the largest pumps which fit are taken first on a mixed capacity boiler.
+   */
+  @Test
+  public void test_selector_mixed_01() {
+    PumpSelector selector = new PumpSelector(store(2, 4, 8, 16));
+    assertEquals(22, selector.select(22), 0);
+    assertSelected(selector, true, true, false, true);
+    assertEquals(28, selector.select(29), 0);
+    assertSelected(selector, false, true, true, true);
+  }
+
+  /**
+   * Check the smallest pump left over is added when overshooting is closer than falling short,
+   * and not otherwise.
+   */
+  @Test
+  public void test_selector_mixed_02() {
+    PumpSelector selector = new PumpSelector(store(3, 10));
+    assertEquals(13, selector.select(12), 0);
+    assertSelected(selector, true, true);
+    assertEquals(10, selector.select(11), 0);
+    assertSelected(selector, false, true);
+    assertEquals(0, selector.select(1), 0);
+    assertSelected(selector, false, false);
+  }
+
+  /**
+   * Check broken pumps are never taken, and are taken again once repaired.
+   */
+  @Test
+  public void test_selector_broken_01() {
+    PumpStore store = store(2, 4, 8);
+    PumpSelector selector = new PumpSelector(store);
+    store.setBroken(2, true);
+    assertEquals(6, selector.select(8), 0);
+    assertSelected(selector, true, true, false);
+    store.setBroken(2, false);
+    assertEquals(8, selector.select(8), 0);
+    assertSelected(selector, false, false, true);
+  }
+
+  /**
+   * Check nothing is selected when every pump is broken.
+   */
+  @Test
+  public void test_selector_broken_02() {
+    PumpStore store = store(4, 4, 4);
+    PumpSelector selector = new PumpSelector(store);
+    for (int index = 0; index < store.size(); index++) {
+      store.setBroken(index, true);
+    }
+    assertEquals(0, selector.select(12), 0);
+    assertSelected(selector, false, false, false);
+    assertEquals(0, selector.getSelectedCapacity(), 0);
+  }
+
+  /**
+   * Construct a store of pumps with given capacities, none of which are broken.
+   *
+   * @param capacities
+   *          The capacity of each pump.
+   * @return The store.
+   */
+  private static PumpStore store(double... capacities) {
+    PumpStore store = new PumpStore(capacities.length);
+    for (int index = 0; index < capacities.length; index++) {
+      store.setCapacity(index, capacities[index]);
+    }
+    return store;
+  }
+
+  private static void assertSelected(PumpSelector selector, boolean... expected) {
+    for (int index = 0; index < expected.length; index++) {
+      if (expected[index]) {
+        assertTrue("pump " + index + " not selected", selector.isSelected(index));
+      } else {
+        assertFalse("pump " + index + " selected", selector.isSelected(index));
+      }
+    }
+  }
+}
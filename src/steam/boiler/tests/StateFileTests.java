@@ -0,0 +1,214 @@
+package steam.boiler.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import org.junit.Test;
+
+import steam.boiler.core.StateFile;
+import steam.boiler.core.SteamBoilerController;
+import steam.boiler.runner.FaultComponent;
+import steam.boiler.runner.SimulatedBoiler;
+import steam.boiler.util.Mailbox;
+import steam.boiler.util.Mailbox.Message;
+import steam.boiler.util.Mailbox.MessageKind;
+import steam.boiler.util.Mailbox.Mode;
+import steam.boiler.util.SteamBoilerCharacteristics;
+
+/**
+ * Tests for {@link StateFile}, in particular that a slot left torn by an interrupted save is
+ * never restored.
+ *
+ * @author Harsh
+ *
+ */
+public class StateFileTests {
+
+  /**
+   * The size of the header at the start of the file.
+   */
+  private static final int HEADER_SIZE = 16;
+
+  /**
+   * Check a controller restored from the file holds the state of the controller which saved it.
+   *
+   * @throws IOException
+   *           If the state file cannot be used.
+   */
+  @Test
+  public void test_state_round_trip_01() throws IOException {
+    Path path = Files.createTempFile("controller", ".state");
+    try {
+      SimulatedBoiler boiler = SimulatedBoiler.waiting(SteamBoilerCharacteristics.DEFAULT);
+      SteamBoilerController controller = boiler.getController();
+      try (StateFile file = new StateFile(path, controller)) {
+        controller.setStateFile(file);
+        for (int period = 0; period != 12; ++period) {
+          boiler.clockPeriod();
+        }
+        assertEquals(Mode.NORMAL, controller.getMode());
+      }
+      SteamBoilerController standby = new SteamBoilerController(SteamBoilerCharacteristics.DEFAULT);
+      try (StateFile file = new StateFile(path, standby)) {
+        assertTrue(file.restore(standby));
+      }
+      assertEquals(Mode.NORMAL, standby.getMode());
+      assertEquals(controller.getWaterLevel(), standby.getWaterLevel(), 0);
+      assertEquals(controller.getOpenPumps(), standby.getOpenPumps());
+      assertEquals(state(controller), state(standby));
+    } finally {
+      Files.delete(path);
+    }
+  }
+
+  /**
+   * Check a controller restored while the level is being estimated in rescue mode carries on
+   * estimating from the same estimate, rather than judging the level by the failed reading.
+   *
+   * @throws IOException
+   *           If the state file cannot be used.
+   */
+  @Test
+  public void test_state_round_trip_02() throws IOException {
+    Path path = Files.createTempFile("controller", ".state");
+    try {
+      SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+      SimulatedBoiler boiler = SimulatedBoiler.waiting(config);
+      SteamBoilerController controller = boiler.getController();
+      for (int period = 0; period != 12; ++period) {
+        boiler.clockPeriod();
+      }
+      FaultComponent.LEVEL_SENSOR.inject(boiler.getPhysicalUnits(), config,
+          FaultComponent.LEVEL_SENSOR.getModel("StuckNegativeOne"), 0);
+      for (int period = 0; period != 3; ++period) {
+        boiler.clockPeriod();
+      }
+      assertEquals(Mode.RESCUE, controller.getMode());
+      assertTrue(controller.getLevelEstimator().isEstimating());
+      try (StateFile file = new StateFile(path, controller)) {
+        file.save(controller);
+      }
+      SteamBoilerController standby = new SteamBoilerController(config);
+      try (StateFile file = new StateFile(path, standby)) {
+        assertTrue(file.restore(standby));
+      }
+      assertEquals(state(controller), state(standby));
+      assertTrue(standby.getLevelEstimator().isEstimating());
+      assertEquals(controller.getLevelEstimator().getEstimate(),
+          standby.getLevelEstimator().getEstimate(), 0);
+      assertEquals(controller.getMassBalanceFilter().getSteamGain(),
+          standby.getMassBalanceFilter().getSteamGain(), 0);
+      SimulatedBoiler takeover = new SimulatedBoiler(standby, boiler.getPhysicalUnits());
+      for (int period = 0; period != 6; ++period) {
+        Mailbox output = takeover.clockPeriod();
+        assertFalse(output.contains(new Message(MessageKind.LEVEL_FAILURE_DETECTION)));
+        assertFalse(output.contains(new Message(MessageKind.MODE_m, Mode.EMERGENCY_STOP)));
+      }
+      assertEquals(Mode.RESCUE, standby.getMode());
+    } finally {
+      Files.delete(path);
+    }
+  }
+
+  /**
+   * Check a slot whose state was corrupted after its sequence numbers were written is treated as
+   * torn, and the state saved before it is restored instead.
+   *
+   * @throws IOException
+   *           If the state file cannot be used.
+   */
+  @Test
+  public void test_state_torn_01() throws IOException {
+    Path path = Files.createTempFile("controller", ".state");
+    try {
+      SimulatedBoiler boiler = SimulatedBoiler.waiting(SteamBoilerCharacteristics.DEFAULT);
+      SteamBoilerController controller = boiler.getController();
+      int slotSize;
+      try (StateFile file = new StateFile(path, controller)) {
+        boiler.clockPeriod();
+        Mode first = controller.getMode();
+        file.save(controller);
+        for (int period = 0; period != 12; ++period) {
+          boiler.clockPeriod();
+        }
+        assertFalse(first == controller.getMode());
+        file.save(controller);
+        assertEquals(2, file.getSequence());
+        slotSize = (int) (Files.size(path) - HEADER_SIZE) / 2;
+      }
+      // the second save went to the first slot, flip a bit of its mode.
+      corrupt(path, HEADER_SIZE + 8 + 3);
+      SteamBoilerController standby = new SteamBoilerController(SteamBoilerCharacteristics.DEFAULT);
+      try (StateFile file = new StateFile(path, standby)) {
+        assertEquals(1, file.getSequence());
+        assertTrue(file.restore(standby));
+        assertFalse(Mode.NORMAL == standby.getMode());
+      }
+      // with the other slot torn as well nothing is restored.
+      corrupt(path, HEADER_SIZE + slotSize + 8 + 3);
+      standby = new SteamBoilerController(SteamBoilerCharacteristics.DEFAULT);
+      try (StateFile file = new StateFile(path, standby)) {
+        assertEquals(0, file.getSequence());
+        assertFalse(file.restore(standby));
+      }
+    } finally {
+      Files.delete(path);
+    }
+  }
+
+  /**
+   * Check a slot whose end sequence number was never written is treated as torn.
+   *
+   * @throws IOException
+   *           If the state file cannot be used.
+   */
+  @Test
+  public void test_state_torn_02() throws IOException {
+    Path path = Files.createTempFile("controller", ".state");
+    try {
+      SimulatedBoiler boiler = SimulatedBoiler.waiting(SteamBoilerCharacteristics.DEFAULT);
+      SteamBoilerController controller = boiler.getController();
+      int slotSize;
+      try (StateFile file = new StateFile(path, controller)) {
+        boiler.clockPeriod();
+        file.save(controller);
+        file.save(controller);
+        slotSize = (int) (Files.size(path) - HEADER_SIZE) / 2;
+      }
+      // the second save went to the first slot, change the last byte of its end number.
+      corrupt(path, HEADER_SIZE + slotSize - 1);
+      try (StateFile file = new StateFile(path, controller)) {
+        assertEquals(1, file.getSequence());
+        assertTrue(file.restore(controller));
+      }
+    } finally {
+      Files.delete(path);
+    }
+  }
+
+  private static ByteBuffer state(SteamBoilerController controller) {
+    ByteBuffer buffer = ByteBuffer.allocate(controller.getStateSize());
+    controller.saveState(buffer);
+    buffer.flip();
+    return buffer;
+  }
+
+  private static void corrupt(Path path, int offset) throws IOException {
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ,
+        StandardOpenOption.WRITE)) {
+      ByteBuffer bytes = ByteBuffer.allocate(1);
+      channel.read(bytes, offset);
+      bytes.put(0, (byte) (bytes.get(0) ^ 1));
+      bytes.rewind();
+      channel.write(bytes, offset);
+    }
+  }
+}
@@ -4,17 +4,28 @@ import static org.junit.Assert.fail;
 
 import java.util.Arrays;
 
+import steam.boiler.core.BoundedMailbox;
+import steam.boiler.core.Messages;
 import steam.boiler.core.SteamBoilerController;
 import steam.boiler.model.PhysicalUnits;
 import steam.boiler.tests.TestUtils.MailboxMatcher;
 import steam.boiler.util.Mailbox;
-import steam.boiler.util.UnboundedMailbox;
 import steam.boiler.util.Mailbox.Message;
 import steam.boiler.util.Mailbox.MessageKind;
 import steam.boiler.util.Mailbox.Mode;
 
 public class TestUtils {
 
+  /**
+   * The amount of time (in milliseconds) by which the physical units are clocked at each step.
+   */
+  private static final int GRANULARITY = 100;
+
+  /**
+   * The amount of time (in milliseconds) between transmission cycles.
+   */
+  private static final int TRANSMISSION_PERIOD = 5000;
+
   // ========================================================================
   // Response Matchers
   // ========================================================================
@@ -22,54 +33,54 @@ public class TestUtils {
   /**
    * Match MODE_initialisation messages.
    */
-  public static MessageMatcher MODE_initialisation = new ConcreteMessageMatcher(
+  public static final MessageMatcher MODE_initialisation = new ConcreteMessageMatcher(
       Mailbox.MessageKind.MODE_m, Mode.INITIALISATION);
 
   /**
    * Match MODE_normal messages.
    */
-  public static MessageMatcher MODE_normal = new ConcreteMessageMatcher(Mailbox.MessageKind.MODE_m,
-      Mode.NORMAL);
+  public static final MessageMatcher MODE_normal = new ConcreteMessageMatcher(
+      Mailbox.MessageKind.MODE_m, Mode.NORMAL);
 
   /**
    * Match MODE_degraded messages.
    */
-  public static MessageMatcher MODE_degraded = new ConcreteMessageMatcher(
+  public static final MessageMatcher MODE_degraded = new ConcreteMessageMatcher(
       Mailbox.MessageKind.MODE_m, Mode.DEGRADED);
 
   /**
    * Match MODE_degraded messages.
    */
-  public static MessageMatcher MODE_rescue = new ConcreteMessageMatcher(Mailbox.MessageKind.MODE_m,
-      Mode.RESCUE);
+  public static final MessageMatcher MODE_rescue = new ConcreteMessageMatcher(
+      Mailbox.MessageKind.MODE_m, Mode.RESCUE);
 
   /**
    * Match MODE_emergencystop messages.
    */
-  public static MessageMatcher MODE_emergencystop = new ConcreteMessageMatcher(
+  public static final MessageMatcher MODE_emergencystop = new ConcreteMessageMatcher(
       Mailbox.MessageKind.MODE_m, Mode.EMERGENCY_STOP);
 
   /**
    * Match PROGRAM_READY messages.
    */
-  public static MessageMatcher PROGRAM_READY = new ConcreteMessageMatcher(
+  public static final MessageMatcher PROGRAM_READY = new ConcreteMessageMatcher(
       MessageKind.PROGRAM_READY);
 
   /**
    * Match VALVE messages.
    */
-  public static MessageMatcher VALVE = new ConcreteMessageMatcher(MessageKind.VALVE);
+  public static final MessageMatcher VALVE = new ConcreteMessageMatcher(MessageKind.VALVE);
 
   /**
    * Match LEVEL_FAILURE_DETECTION messages.
    */
-  public static MessageMatcher LEVEL_FAILURE_DETECTION = new ConcreteMessageMatcher(
+  public static final MessageMatcher LEVEL_FAILURE_DETECTION = new ConcreteMessageMatcher(
       MessageKind.LEVEL_FAILURE_DETECTION);
 
   /**
    * Match STEAM_FAILURE_DETECTION messages.
    */
-  public static MessageMatcher STEAM_FAILURE_DETECTION = new ConcreteMessageMatcher(
+  public static final MessageMatcher STEAM_FAILURE_DETECTION = new ConcreteMessageMatcher(
       MessageKind.STEAM_FAILURE_DETECTION);
 
   /**
@@ -157,8 +168,9 @@ public class TestUtils {
    */
   public static void clockOnceExpecting(SteamBoilerController controller, PhysicalUnits model,
       MailboxMatcher matcher) {
-    Mailbox input = new UnboundedMailbox(100);
-    Mailbox output = new UnboundedMailbox(100);
+    BoundedMailbox[] mailboxes = mailboxes(model);
+    Mailbox input = mailboxes[0];
+    Mailbox output = mailboxes[1];
     // Generation messages for controller from model
     model.transmit(input);
     // Clock controller to process incoming messages and return responses.
@@ -187,20 +199,17 @@ public class TestUtils {
    */
   public static void clockUntil(int timeout, SteamBoilerController controller,
       PhysicalUnits physicalUnits, MailboxMatcher matcher) {
-    final int granularity = 100; // ms
     int totalElapsed = 0; // ms
     // Convert timeout into microseconds
     timeout = timeout * 1000;
     //
     while (totalElapsed < timeout) {
-      Mailbox received = clock(granularity, totalElapsed, controller, physicalUnits);
-      if (received != null) {
-        // We received something back from controller, there see whether we have matched our event.
-        if (matcher.matches(received)) {
-          return;
-        }
+      Mailbox received = synchronise(controller, physicalUnits);
+      // We received something back from controller, there see whether we have matched our event.
+      if (matcher.matches(received)) {
+        return;
       }
-      totalElapsed += granularity;
+      totalElapsed += advanceWindow(timeout - totalElapsed, physicalUnits);
     }
     // If we get here, then the event wasn't matched within the required timeframe.
     fail("timeout occurred");
@@ -221,25 +230,62 @@ public class TestUtils {
    */
   public static void clockForWithout(int time, SteamBoilerController controller,
       PhysicalUnits physicalUnits, MailboxMatcher matcher) {
-    final int granularity = 100; // ms
     int totalElapsed = 0; // ms
     // Convert timeout into microseconds
     time = time * 1000;
     //
     while (totalElapsed < time) {
-      Mailbox received = clock(granularity, totalElapsed, controller, physicalUnits);
-      if (received != null) {
-        // We received something back from controller, there see whether we have matched our event.
-        if (matcher.matches(received)) {
-          // If we've matched this event, then that's bad news.
-          fail("bad event happened after " + totalElapsed + "ms (" + received + ")");
-        }
+      Mailbox received = synchronise(controller, physicalUnits);
+      // We received something back from controller, there see whether we have matched our event.
+      if (matcher.matches(received)) {
+        // If we've matched this event, then that's bad news.
+        fail("bad event happened after " + totalElapsed + "ms (" + received + ")");
       }
-      totalElapsed += granularity;
+      totalElapsed += advanceWindow(time - totalElapsed, physicalUnits);
     }
     // If we get here, then the given event obviously didn't happen so we're done.
   }
 
+  /**
+   * Clock the physical units by one step and then let them synchronise with the controller. This
+   * is the first step of every five second transmission window, and is the same as calling
+   * {@link #clock(int, int, SteamBoilerController, PhysicalUnits)} when the total time elapsed is a
+   * multiple of five seconds.
+   *
+   * @param controller
+   *          The controller under test.
+   * @param physicalUnits
+   *          The model of the physical units being manipulated.
+   * @return The messages received from the controller.
+   */
+  public static Mailbox synchronise(SteamBoilerController controller,
+      PhysicalUnits physicalUnits) {
+    return clock(GRANULARITY, 0, controller, physicalUnits);
+  }
+
+  /**
+   * Clock the physical units over the rest of a transmission window, i.e. the steps after
+   * {@link #synchronise(SteamBoilerController, PhysicalUnits)} up to (but not including) the next
+   * synchronisation point. No messages are exchanged during these steps. The physical units are
+   * still clocked in steps of 100ms, since a single longer step does not give the same state (for
+   * example, the steam sensor reports the steam produced during the last step alone).
+   *
+   * @param remaining
+   *          The amount of time (in milliseconds) left to clock for, including the step made by
+   *          synchronise, which may end the window early.
+   * @param physicalUnits
+   *          The model of the physical units being manipulated.
+   * @return The amount of time (in milliseconds) clocked over the whole window, including the step
+   *         made by synchronise.
+   */
+  public static int advanceWindow(int remaining, PhysicalUnits physicalUnits) {
+    int window = Math.min(TRANSMISSION_PERIOD, remaining);
+    for (int elapsed = GRANULARITY; elapsed < window; elapsed += GRANULARITY) {
+      physicalUnits.clock(GRANULARITY);
+    }
+    return window;
+  }
+
   /**
    * Clock the combined system for a given amount of time. This sends and receives messages between
    * the two components when the total time elapsed is a multiple of five seconds. Messages received
@@ -262,9 +308,10 @@ public class TestUtils {
     physicalUnits.clock(elapsed);
     // After every five seconds has elapsed we allow the controller and physical units to
     // synchronise (i.e. transmit messages between them).
-    if ((totalElapsed % 5000) == 0) {
-      Mailbox input = new UnboundedMailbox(100);
-      Mailbox output = new UnboundedMailbox(100);
+    if ((totalElapsed % TRANSMISSION_PERIOD) == 0) {
+      BoundedMailbox[] mailboxes = mailboxes(physicalUnits);
+      Mailbox input = mailboxes[0];
+      Mailbox output = mailboxes[1];
       // Generation messages for controller from model
       physicalUnits.transmit(input);
       // Clock controller to process incoming messages and return responses.
@@ -279,6 +326,35 @@ public class TestUtils {
     }
   }
 
+  /**
+   * The input and output mailboxes used by the clock methods, one pair per thread. These are
+   * cleared and reused on every transmission cycle, hence a mailbox returned by
+   * {@link #clock(int, int, SteamBoilerController, PhysicalUnits)} is only valid until the next
+   * transmission cycle.
+   */
+  private static final ThreadLocal<BoundedMailbox[]> MAILBOXES = new ThreadLocal<>();
+
+  /**
+   * Get the (empty) mailboxes of the current thread, making sure they are large enough for the
+   * messages exchanged with a given set of physical units.
+   *
+   * @param physicalUnits
+   *          The physical units which will transmit to and receive from the mailboxes.
+   * @return The input and output mailboxes, in that order.
+   */
+  private static BoundedMailbox[] mailboxes(PhysicalUnits physicalUnits) {
+    int capacity = Math.max(100, 4 * physicalUnits.getNumberOfPumps() + 16);
+    BoundedMailbox[] mailboxes = MAILBOXES.get();
+    if (mailboxes == null || mailboxes[0].getCapacity() < capacity) {
+      mailboxes = new BoundedMailbox[] { new BoundedMailbox(capacity),
+          new BoundedMailbox(capacity) };
+      MAILBOXES.set(mailboxes);
+    }
+    mailboxes[0].clearAll();
+    mailboxes[1].clearAll();
+    return mailboxes;
+  }
+
   /**
    * A mailbox match provides a way to match concrete messages without having to explicitly provide
    * all the details. For example, suppose we wanted to match any possible LEVEL_v message (e.g.
@@ -326,6 +402,9 @@ public class TestUtils {
    * @return
    */
   public static MailboxMatcher exactly(final MessageMatcher... matchers) {
+    if (isConcrete(matchers)) {
+      return new CompiledMailboxMatcher("exactly", true, matchers);
+    }
     return new MailboxMatcher() {
 
       @Override
@@ -366,6 +445,9 @@ public class TestUtils {
    * @return
    */
   public static MailboxMatcher atleast(final MessageMatcher... matchers) {
+    if (isConcrete(matchers)) {
+      return new CompiledMailboxMatcher("atleast", false, matchers);
+    }
     return new MailboxMatcher() {
 
       @Override
@@ -386,6 +468,109 @@ public class TestUtils {
     };
   }
 
+  private static boolean isConcrete(MessageMatcher[] matchers) {
+    for (MessageMatcher matcher : matchers) {
+      if (!(matcher instanceof ConcreteMessageMatcher)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * A mailbox matcher built from a set of concrete message matchers, which checks them all in a
+   * single pass over the mailbox. The matchers are grouped by the kind of message they match, so
+   * each message is only checked against matchers of its own kind, and messages of a kind no
+   * matcher is interested in are skipped with a single bit test. This gives the same answers as
+   * checking each matcher in turn against the whole mailbox, where each matcher takes the first
+   * message it matches.
+   *
+   * @author Harsh
+   *
+   */
+  private static final class CompiledMailboxMatcher implements MailboxMatcher {
+    private final String name;
+    private final boolean exact;
+    private final MessageMatcher[] original;
+    private final ConcreteMessageMatcher[] matchers;
+    /**
+     * Bit k is set if some matcher matches messages of the kind with ordinal k.
+     */
+    private final long kinds;
+    /**
+     * The indices of the matchers for each kind of message, by ordinal.
+     */
+    private final int[][] byKind;
+
+    public CompiledMailboxMatcher(String name, boolean exact, MessageMatcher[] matchers) {
+      this.name = name;
+      this.exact = exact;
+      this.original = matchers;
+      this.matchers = new ConcreteMessageMatcher[matchers.length];
+      int[] counts = new int[MessageKind.values().length];
+      long kinds = 0;
+      for (int j = 0; j != matchers.length; ++j) {
+        this.matchers[j] = (ConcreteMessageMatcher) matchers[j];
+        int kind = this.matchers[j].kind.ordinal();
+        counts[kind]++;
+        kinds |= 1L << kind;
+      }
+      this.kinds = kinds;
+      this.byKind = new int[counts.length][];
+      for (int k = 0; k != counts.length; ++k) {
+        this.byKind[k] = new int[counts[k]];
+        counts[k] = 0;
+      }
+      for (int j = 0; j != matchers.length; ++j) {
+        int kind = this.matchers[j].kind.ordinal();
+        this.byKind[kind][counts[kind]++] = j;
+      }
+    }
+
+    @Override
+    public boolean matches(Mailbox mailbox) {
+      int size = mailbox.size();
+      if (this.exact && size != this.matchers.length) {
+        return false;
+      }
+      // the matchers which have matched a message so far, the first 64 in a single word.
+      long matched = 0;
+      long[] more = this.matchers.length > 64 ? new long[(this.matchers.length - 1) >>> 6]
+          : null;
+      int remaining = this.matchers.length;
+      for (int i = 0; i != size && (remaining != 0 || this.exact); ++i) {
+        Message message = mailbox.read(i);
+        int kind = message.getKind().ordinal();
+        int claims = 0;
+        if ((this.kinds & (1L << kind)) != 0) {
+          for (int j : this.byKind[kind]) {
+            boolean done = j < 64 ? (matched & (1L << j)) != 0
+                : (more[(j >>> 6) - 1] & (1L << j)) != 0;
+            if (!done && this.matchers[j].matchesParameter(message)) {
+              if (j < 64) {
+                matched |= 1L << j;
+              } else {
+                more[(j >>> 6) - 1] |= 1L << j;
+              }
+              claims++;
+              remaining--;
+            }
+          }
+        }
+        // every message must be the first match of exactly one matcher.
+        if (this.exact && claims != 1) {
+          return false;
+        }
+      }
+      return remaining == 0;
+    }
+
+    @Override
+    public String toString() {
+      return this.name + Arrays.toString(this.original);
+    }
+  }
+
   /**
    * A concrete message matcher messages of a given kind. For example, it could be used to match any
    * kind of <code>LEVEL_v</code> message.
@@ -396,35 +581,42 @@ public class TestUtils {
   private static class ConcreteMessageMatcher implements MailboxMatcher,MessageMatcher {
     private final MessageKind kind;
     private final ParameterMatcher parameter;
+    private final int shape;
 
     public ConcreteMessageMatcher(MessageKind kind) {
       this.kind = kind;
       this.parameter = null;
+      this.shape = Messages.shape(kind);
     }
 
     public ConcreteMessageMatcher(MessageKind kind, ParameterMatcher parameter) {
       this.kind = kind;
       this.parameter = parameter;
+      this.shape = Messages.shape(kind);
     }
 
     public ConcreteMessageMatcher(MessageKind kind, Mode modeParameter) {
       this.kind = kind;
       this.parameter = new ModeParameterMatcher(modeParameter);
+      this.shape = Messages.shape(kind);
     }
 
     public ConcreteMessageMatcher(MessageKind kind, int integerParameter) {
       this.kind = kind;
       this.parameter = new IntegerParameterMatcher(integerParameter);
+      this.shape = Messages.shape(kind);
     }
 
     public ConcreteMessageMatcher(MessageKind kind, boolean booleanParameter) {
       this.kind = kind;
       this.parameter = new BooleanParameterMatcher(booleanParameter);
+      this.shape = Messages.shape(kind);
     }
 
     public ConcreteMessageMatcher(MessageKind kind, double doubleParameter) {
       this.kind = kind;
       this.parameter = new DoubleParameterMatcher(doubleParameter);
+      this.shape = Messages.shape(kind);
     }
 
     @Override
@@ -434,54 +626,43 @@ public class TestUtils {
 
     @Override
     public int match(Mailbox m) {
+      if (m instanceof BoundedMailbox) {
+        // only visit the messages of the right kind.
+        BoundedMailbox mailbox = (BoundedMailbox) m;
+        for (int i = mailbox.indexOf(kind); i >= 0; i = mailbox.nextIndexOf(i)) {
+          if (matchesParameter(mailbox.read(i))) {
+            return i;
+          }
+        }
+        return -1;
+      }
       for (int i = 0; i != m.size(); ++i) {
-        if (matches(m.read(i))) {
+        Message message = m.read(i);
+        if (message.getKind() == kind && matchesParameter(message)) {
           return i;
         }
       }
       return -1;
     }
 
-    private boolean matches(Message m) {
-      if (m.getKind() == kind) {
-        switch (kind) {
-          case PROGRAM_READY:
-          case PHYSICAL_UNITS_READY:
-          case VALVE:
-          case LEVEL_FAILURE_DETECTION:
-          case STEAM_FAILURE_DETECTION:
-          case LEVEL_REPAIRED_ACKNOWLEDGEMENT:
-          case STEAM_REPAIRED_ACKNOWLEDGEMENT:
-          case STOP:
-          case STEAM_BOILER_WAITING:
-          case LEVEL_REPAIRED:
-          case STEAM_REPAIRED:
-          case LEVEL_FAILURE_ACKNOWLEDGEMENT:
-          case STEAM_OUTCOME_FAILURE_ACKNOWLEDGEMENT:
-            return true;
-          case MODE_m:
-            return parameter.matches(m.getModeParameter());
-          case OPEN_PUMP_n:
-          case CLOSE_PUMP_n:
-          case PUMP_FAILURE_DETECTION_n:
-          case PUMP_CONTROL_FAILURE_DETECTION_n:
-          case PUMP_REPAIRED_ACKNOWLEDGEMENT_n:
-          case PUMP_CONTROL_REPAIRED_ACKNOWLEDGEMENT_n:
-          case PUMP_REPAIRED_n:
-          case PUMP_CONTROL_REPAIRED_n:
-          case PUMP_FAILURE_ACKNOWLEDGEMENT_n:
-            return parameter.matches(m.getIntegerParameter());
-          case LEVEL_v:
-          case STEAM_v:
-            return parameter.matches(m.getDoubleParameter());
-          case PUMP_STATE_n_b:
-          case PUMP_CONTROL_STATE_n_b:
-            return parameter.matches(m.getIntegerParameter(), m.getBooleanParameter());
-          default:
-            throw new IllegalArgumentException("invalid message kind");
-        }
+    /**
+     * Check the parameters of a message already known to be of the right kind.
+     */
+    private boolean matchesParameter(Message m) {
+      switch (shape) {
+        case Messages.NONE:
+          return true;
+        case Messages.MODE:
+          return parameter.matches(m.getModeParameter());
+        case Messages.INTEGER:
+          return parameter.matches(m.getIntegerParameter());
+        case Messages.DOUBLE:
+          return parameter.matches(m.getDoubleParameter());
+        case Messages.INTEGER_BOOLEAN:
+          return parameter.matches(m.getIntegerParameter(), m.getBooleanParameter());
+        default:
+          throw new IllegalArgumentException("invalid message kind");
       }
-      return false;
     }
 
     @Override